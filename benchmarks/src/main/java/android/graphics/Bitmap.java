@@ -0,0 +1,61 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Android class so the library can run on a desktop JVM,
+ * bitmaps only know their size
+ */
+public final class Bitmap {
+    public enum CompressFormat {
+        JPEG, PNG, WEBP
+    }
+
+    public enum Config {
+        ALPHA_8, RGB_565, ARGB_4444, ARGB_8888
+    }
+
+    private final int width;
+    private final int height;
+    private final Config config;
+
+    private Bitmap(int width, int height, Config config) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+    }
+
+    public static Bitmap createBitmap(int width, int height, Config config) {
+        return new Bitmap(width, height, config);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public int getRowBytes() {
+        return width * 4;
+    }
+
+    public int getByteCount() {
+        return getRowBytes() * height;
+    }
+
+    public int getAllocationByteCount() {
+        return getByteCount();
+    }
+
+    public boolean isMutable() {
+        return true;
+    }
+
+    public boolean isRecycled() {
+        return false;
+    }
+}
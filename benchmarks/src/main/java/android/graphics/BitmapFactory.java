@@ -0,0 +1,28 @@
+package android.graphics;
+
+import java.io.InputStream;
+
+/**
+ * Stand-in for the Android class so the library can run on a desktop JVM,
+ * it can't decode anything
+ */
+public class BitmapFactory {
+    public static class Options {
+        public boolean inJustDecodeBounds;
+        public int inSampleSize;
+        public boolean inMutable;
+        public Bitmap inBitmap;
+        public Bitmap.Config inPreferredConfig;
+        public int outWidth;
+        public int outHeight;
+        public String outMimeType;
+    }
+
+    public static Bitmap decodeStream(InputStream is) {
+        return null;
+    }
+
+    public static Bitmap decodeStream(InputStream is, Rect outPadding, Options opts) {
+        return null;
+    }
+}
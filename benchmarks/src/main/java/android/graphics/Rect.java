@@ -0,0 +1,11 @@
+package android.graphics;
+
+/**
+ * Stand-in for the Android class so the library can run on a desktop JVM
+ */
+public final class Rect {
+    public int left;
+    public int top;
+    public int right;
+    public int bottom;
+}
@@ -0,0 +1,16 @@
+package android.os;
+
+/**
+ * Stand-in for the Android class so the library can run on a desktop JVM,
+ * reports the platform the library is built against
+ */
+public class Build {
+    public static class VERSION {
+        public static final int SDK_INT = 16;
+    }
+
+    public static class VERSION_CODES {
+    }
+
+    private Build() {}
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * Stand-in for the Android class so the library can run on a desktop JVM
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_LOWEST = 19;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+    public static final int THREAD_PRIORITY_LESS_FAVORABLE = 1;
+
+    public static void setThreadPriority(int priority) {}
+
+    private Process() {}
+}
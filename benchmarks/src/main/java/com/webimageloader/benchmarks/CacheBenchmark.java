@@ -0,0 +1,125 @@
+package com.webimageloader.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.webimageloader.util.ConcurrentLruCache;
+import com.webimageloader.util.LruCache;
+
+/**
+ * Memory cache lookups, done on the UI thread for every image bound to a view.
+ * Keys are drawn from a space slightly larger than the cache so some lookups
+ * miss and cause a put.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+    private static final int MAX_SIZE = 256;
+    private static final int KEY_COUNT = 512;
+    private static final int KEY_SPACE = 320;
+
+    @Param({ "lru", "clock", "tinylfu" })
+    public String implementation;
+
+    private Cache cache;
+    private String[] keys;
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        private Random random = new Random();
+        private int[] indexes = new int[1024];
+        private int position;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            for (int i = 0; i < indexes.length; i++) {
+                indexes[i] = random.nextInt(KEY_SPACE);
+            }
+        }
+
+        int next() {
+            position = (position + 1) & (indexes.length - 1);
+            return indexes[position];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        if ("lru".equals(implementation)) {
+            final LruCache<String, String> lruCache = new LruCache<String, String>(MAX_SIZE);
+            cache = new Cache() {
+                @Override
+                public String get(String key) {
+                    return lruCache.get(key);
+                }
+
+                @Override
+                public void put(String key, String value) {
+                    lruCache.put(key, value);
+                }
+            };
+        } else {
+            final ConcurrentLruCache<String, String> concurrentCache =
+                    new ConcurrentLruCache<String, String>(MAX_SIZE, "tinylfu".equals(implementation));
+            cache = new Cache() {
+                @Override
+                public String get(String key) {
+                    return concurrentCache.get(key);
+                }
+
+                @Override
+                public void put(String key, String value) {
+                    concurrentCache.put(key, value);
+                }
+            };
+        }
+
+        keys = new String[KEY_COUNT];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = "http://example.com/images/" + i + ".jpg";
+        }
+
+        for (int i = 0; i < MAX_SIZE; i++) {
+            cache.put(keys[i], keys[i]);
+        }
+    }
+
+    @Benchmark
+    public String getOrPut(ThreadState state) {
+        return access(state.next());
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String getOrPutContended(ThreadState state) {
+        return access(state.next());
+    }
+
+    private String access(int index) {
+        String key = keys[index];
+        String value = cache.get(key);
+        if (value == null) {
+            cache.put(key, key);
+            value = key;
+        }
+
+        return value;
+    }
+
+    private interface Cache {
+        String get(String key);
+        void put(String key, String value);
+    }
+}
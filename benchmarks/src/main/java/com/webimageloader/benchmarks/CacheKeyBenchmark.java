@@ -0,0 +1,63 @@
+package com.webimageloader.benchmarks;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import com.webimageloader.Request;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.transformation.ScaleTransformation;
+import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.Hasher;
+
+/**
+ * Cache keys as they pass through the loaders. A request is looked up in
+ * the memory cache and pending requests by its key, and the disk cache asks
+ * for the name of its file several times while loading and saving it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CacheKeyBenchmark {
+    private String url = "http://example.com/images/thumbnails/2013/04/a1b2c3d4e5f6.jpg";
+    private Transformation transformation = new ScaleTransformation(200, 200);
+    private EnumSet<Request.Flag> flags = EnumSet.noneOf(Request.Flag.class);
+
+    private LoaderRequest request = new LoaderRequest(url, transformation, flags);
+
+    // Shared between threads, like the one used for the disk cache
+    private Hasher hasher = new Hasher();
+
+    @Benchmark
+    public String diskNameOfNewRequest() {
+        return new LoaderRequest(url, transformation, flags).getKey().getDiskName();
+    }
+
+    @Benchmark
+    public String diskNameRepeated() {
+        return request.getKey().getDiskName();
+    }
+
+    @Benchmark
+    public String diskNameOfRevalidation() {
+        return request.withMetadata(null).getKey().getDiskName();
+    }
+
+    @Benchmark
+    public String hash() {
+        return hasher.hash(url);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String hashContended() {
+        return hasher.hash(url);
+    }
+}
@@ -0,0 +1,151 @@
+package com.webimageloader.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.webimageloader.loader.DiskLruCacheStore;
+import com.webimageloader.loader.DiskStore;
+import com.webimageloader.loader.PackedDiskStore;
+import com.webimageloader.util.Hasher;
+
+/**
+ * Disk cache stores filled with thumbnails. Measures opening the store, which
+ * happens when the image loader is built, and reading both values of an
+ * entry, which happens for every disk hit.
+ * <p>
+ * The space used on disk is printed when each trial ends, look for
+ * "bytes on disk" in the output.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DiskStoreBenchmark {
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 2;
+    private static final long MAX_SIZE = 512L * 1024 * 1024;
+
+    @Param({ "disklrucache", "packed" })
+    public String store;
+
+    @Param({ "10000" })
+    public int entries;
+
+    @Param({ "4096" })
+    public int imageSize;
+
+    private File directory;
+    private String[] keys;
+
+    private DiskStore opened;
+    private Random random = new Random();
+    private byte[] buffer = new byte[8192];
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = File.createTempFile("diskstore", null);
+        directory.delete();
+
+        Hasher hasher = new Hasher();
+        keys = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            keys[i] = hasher.hash("http://example.com/images/" + i + ".jpg");
+        }
+
+        byte[] image = new byte[imageSize];
+        byte[] metadata = new byte[64];
+        random.nextBytes(image);
+
+        DiskStore s = open();
+        try {
+            for (String key : keys) {
+                DiskStore.Editor editor = s.edit(key);
+                write(editor, 0, image);
+                write(editor, 1, metadata);
+                editor.commit();
+            }
+        } finally {
+            s.close();
+        }
+
+        opened = open();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        opened.close();
+
+        long bytes = 0;
+        File[] files = directory.listFiles();
+        for (File file : files) {
+            bytes += file.length();
+            file.delete();
+        }
+        directory.delete();
+
+        System.out.println();
+        System.out.println(store + ": " + bytes + " bytes on disk in " + files.length + " files for " + entries + " entries");
+    }
+
+    @Benchmark
+    public long openAndClose() throws IOException {
+        DiskStore s = open();
+        long size = s.size();
+        s.close();
+
+        return size;
+    }
+
+    @Benchmark
+    public long hit() throws IOException {
+        DiskStore.Snapshot snapshot = opened.get(keys[random.nextInt(keys.length)]);
+        try {
+            return read(snapshot.getInputStream(1)) + read(snapshot.getInputStream(0));
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private DiskStore open() throws IOException {
+        DiskStore.Factory factory = "packed".equals(store) ? PackedDiskStore.FACTORY : DiskLruCacheStore.FACTORY;
+
+        return factory.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+    }
+
+    private long read(InputStream is) throws IOException {
+        long total = 0;
+        try {
+            int i;
+            while ((i = is.read(buffer)) != -1) {
+                total += i;
+            }
+        } finally {
+            is.close();
+        }
+
+        return total;
+    }
+
+    private static void write(DiskStore.Editor editor, int index, byte[] data) throws IOException {
+        OutputStream os = editor.newOutputStream(index);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.webimageloader.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.webimageloader.util.Hasher;
+
+/**
+ * Hashing cache keys into disk cache file names, done for every disk lookup
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HasherBenchmark {
+    private Hasher hasher = new Hasher();
+    private String key = "http://example.com/images/thumbnails/2013/04/a1b2c3d4e5f6.jpgwebimageloader_scale-200x200";
+
+    @Benchmark
+    public String hash() {
+        return hasher.hash(key);
+    }
+}
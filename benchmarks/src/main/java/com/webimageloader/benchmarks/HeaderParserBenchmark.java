@@ -0,0 +1,69 @@
+package com.webimageloader.benchmarks;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.webimageloader.util.HeaderParser;
+
+/**
+ * Parsing Cache-Control, done for every network response
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HeaderParserBenchmark {
+    private URLConnection simple;
+    private URLConnection complex;
+    private URLConnection missing;
+
+    @Setup
+    public void setUp() throws MalformedURLException {
+        simple = new HeaderConnection("max-age=3600");
+        complex = new HeaderConnection("public, no-transform, s-maxage=600, max-age = 86400, stale-while-revalidate=60");
+        missing = new HeaderConnection(null);
+    }
+
+    @Benchmark
+    public long simple() {
+        return HeaderParser.getMaxAge(simple);
+    }
+
+    @Benchmark
+    public long complex() {
+        return HeaderParser.getMaxAge(complex);
+    }
+
+    @Benchmark
+    public long missing() {
+        return HeaderParser.getMaxAge(missing);
+    }
+
+    private static class HeaderConnection extends URLConnection {
+        private final String cacheControl;
+
+        HeaderConnection(String cacheControl) throws MalformedURLException {
+            super(new URL("http://example.com/image.jpg"));
+
+            this.cacheControl = cacheControl;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return "Cache-Control".equalsIgnoreCase(name) ? cacheControl : null;
+        }
+
+        @Override
+        public void connect() throws IOException {}
+    }
+}
@@ -0,0 +1,51 @@
+package com.webimageloader.benchmarks;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.webimageloader.Request;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.transformation.ScaleTransformation;
+import com.webimageloader.transformation.Transformation;
+
+/**
+ * Building requests and their cache keys, done for every image bound to a view
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LoaderRequestBenchmark {
+    private String url = "http://example.com/images/thumbnails/2013/04/a1b2c3d4e5f6.jpg";
+    private Transformation transformation = new ScaleTransformation(200, 200);
+    private EnumSet<Request.Flag> flags = EnumSet.noneOf(Request.Flag.class);
+
+    private LoaderRequest request = new LoaderRequest(url, transformation, flags);
+    private LoaderRequest other = new LoaderRequest(url, transformation, flags);
+
+    @Benchmark
+    public LoaderRequest create() {
+        return new LoaderRequest(url, null, flags);
+    }
+
+    @Benchmark
+    public LoaderRequest createWithTransformation() {
+        return new LoaderRequest(url, transformation, flags);
+    }
+
+    @Benchmark
+    public LoaderRequest withoutTransformation() {
+        return request.withoutTransformation();
+    }
+
+    @Benchmark
+    public boolean equalsAndHashCode() {
+        return request.hashCode() == other.hashCode() && request.equals(other);
+    }
+}
@@ -0,0 +1,75 @@
+package com.webimageloader.benchmarks;
+
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.Request;
+import com.webimageloader.loader.LoaderManager;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.LoaderWork;
+import com.webimageloader.loader.PendingRequests;
+
+/**
+ * Request deduplication, simulating views being rebound to new images while
+ * scrolling. Each view (tag) is rebound to a request that is often already
+ * pending for another view.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PendingRequestsBenchmark {
+    private static final int VIEW_COUNT = 16;
+    private static final int REQUEST_COUNT = 64;
+
+    private static final LoaderManager.Listener EMPTY_LISTENER = new LoaderManager.Listener() {
+        @Override
+        public void onLoaded(Bitmap b) {}
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onProgress(float value) {}
+    };
+
+    private PendingRequests pendingRequests;
+    private Object[] tags;
+    private LoaderRequest[] requests;
+    private int position;
+
+    @Setup
+    public void setUp() {
+        pendingRequests = new PendingRequests(null);
+
+        tags = new Object[VIEW_COUNT];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = new Object();
+        }
+
+        requests = new LoaderRequest[REQUEST_COUNT];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new LoaderRequest("http://example.com/images/" + i + ".jpg", null, EnumSet.noneOf(Request.Flag.class));
+        }
+    }
+
+    @Benchmark
+    public LoaderWork rebind() {
+        position++;
+
+        Object tag = tags[position % VIEW_COUNT];
+        // Views see requests in a different order so they overlap
+        LoaderRequest request = requests[(position * 7 / 3) % REQUEST_COUNT];
+
+        return pendingRequests.addRequest(tag, request, EMPTY_LISTENER);
+    }
+}
@@ -0,0 +1,71 @@
+package com.webimageloader.loader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+import android.test.AndroidTestCase;
+
+public class CancellableInputStreamTest extends AndroidTestCase {
+    private static final int LENGTH = 64 * 1024;
+
+    public void testAbortsWhenCancelled() throws IOException {
+        LoaderWork work = TestWork.create();
+        LoaderWork.Manager manager = TestWork.start(work);
+
+        final long[] aborted = { -1 };
+        InputStream is = new CancellableInputStream(new ByteArrayInputStream(new byte[LENGTH]), manager,
+                new CancellableInputStream.AbortListener() {
+                    @Override
+                    public void onAbort(long bytesRead) {
+                        aborted[0] = bytesRead;
+                    }
+                });
+
+        byte[] buffer = new byte[1024];
+        assertEquals(1024, is.read(buffer));
+
+        work.cancel();
+
+        try {
+            is.read(buffer);
+            fail("Reading should stop after cancelling");
+        } catch (InterruptedIOException e) {
+            // Expected
+        }
+
+        assertEquals(1024, aborted[0]);
+
+        // The listener is only called once
+        aborted[0] = -1;
+        try {
+            is.read();
+            fail("Reading should stop after cancelling");
+        } catch (InterruptedIOException e) {
+            // Expected
+        }
+        assertEquals(-1, aborted[0]);
+    }
+
+    public void testReadsToEndIfNotCancelled() throws IOException {
+        LoaderWork.Manager manager = TestWork.start(TestWork.create());
+
+        InputStream is = new CancellableInputStream(new ByteArrayInputStream(new byte[LENGTH]), manager,
+                new CancellableInputStream.AbortListener() {
+                    @Override
+                    public void onAbort(long bytesRead) {
+                        fail("Should not abort");
+                    }
+                });
+
+        byte[] buffer = new byte[1024];
+        int total = 0;
+        int read;
+        while ((read = is.read(buffer)) != -1) {
+            total += read;
+        }
+
+        assertEquals(LENGTH, total);
+    }
+}
@@ -0,0 +1,114 @@
+package com.webimageloader.loader;
+
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+public class ConcurrencyLimiterTest extends AndroidTestCase {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final int SIZE = 100 * 1024;
+    private static final long LATENCY = 50 * MS;
+
+    private long now = 0;
+
+    public void testGrowsOnFastLink() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8, null);
+
+        // Plenty of bandwidth, every download gets the same speed
+        for (int i = 0; i < 50; i++) {
+            runWindow(limiter, 1000);
+        }
+
+        assertEquals(8, limiter.getLimit());
+    }
+
+    public void testSettlesOnShapedLink() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 16, null);
+
+        // Room for four downloads, after that they share the bandwidth
+        for (int i = 0; i < 100; i++) {
+            runWindow(limiter, 4);
+        }
+
+        int limit = limiter.getLimit();
+        assertTrue("Limit was " + limit, limit >= 4 && limit <= 5);
+    }
+
+    public void testBacksOffOnDrops() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 8, null);
+
+        for (int i = 0; i < 8; i++) {
+            limiter.onStart(now);
+        }
+        for (int i = 0; i < 8; i++) {
+            limiter.onDropped(now += MS);
+        }
+
+        assertEquals(6, limiter.getLimit());
+    }
+
+    public void testBacksOffWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 8, null);
+
+        runWindow(limiter, 1000);
+        int limit = limiter.getLimit();
+
+        // Queues are building up somewhere
+        for (int i = 0; i < limit; i++) {
+            limiter.onStart(now);
+        }
+        for (int i = 0; i < limit; i++) {
+            limiter.onSuccess(now += MS, 5 * LATENCY, SIZE);
+        }
+
+        assertEquals((int) (limit * 0.75), limiter.getLimit());
+    }
+
+    public void testIgnoredDoesNotCount() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 8, null);
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onStart(now);
+            limiter.onIgnored();
+        }
+
+        assertEquals(2, limiter.getLimit());
+    }
+
+    public void testNotifiesListener() {
+        final int[] changed = { -1 };
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 8, new ConcurrencyLimiter.Listener() {
+            @Override
+            public void onLimitChanged(int limit) {
+                changed[0] = limit;
+            }
+        });
+
+        runWindow(limiter, 1000);
+
+        assertEquals(2, changed[0]);
+    }
+
+    /**
+     * Run as many downloads as the limit allows over a simulated link where
+     * each download gets 1 MB/s until {@code capacity} downloads are running,
+     * after that the bandwidth is shared and the queues grow
+     */
+    private void runWindow(ConcurrencyLimiter limiter, int capacity) {
+        int count = limiter.getLimit();
+        double load = Math.max(1.0, (double) count / capacity);
+
+        long latency = (long) (LATENCY * load);
+        long transfer = (long) (SIZE * MS / 1024 * load);
+
+        long start = now;
+        for (int i = 0; i < count; i++) {
+            limiter.onStart(start);
+        }
+        for (int i = 0; i < count; i++) {
+            now = start + latency + transfer + i;
+            limiter.onSuccess(now, latency, SIZE);
+        }
+    }
+}
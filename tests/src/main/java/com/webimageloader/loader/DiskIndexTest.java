@@ -0,0 +1,197 @@
+package com.webimageloader.loader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.test.AndroidTestCase;
+
+public class DiskIndexTest extends AndroidTestCase {
+    private static final int MAX_ENTRIES = 1000;
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = File.createTempFile("index", null);
+        file.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+
+        super.tearDown();
+    }
+
+    public void testEmptyCacheIsComplete() {
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+        assertTrue(index.isMissing("a"));
+
+        index.put("a", entry(0, "etag"));
+        assertFalse(index.isMissing("a"));
+    }
+
+    public void testUnknownCacheIsIncomplete() {
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, false);
+
+        assertFalse(index.isComplete());
+        assertFalse(index.isMissing("a"));
+    }
+
+    public void testReopen() {
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+        index.put("a", new DiskIndex.Entry(1000, 42, 123));
+        index.put("b", entry(Metadata.NEVER_EXPIRES, ""));
+        index.remove("b");
+        index.close();
+
+        index = DiskIndex.open(file, MAX_ENTRIES, false);
+        assertTrue(index.isComplete());
+        assertTrue(index.isMissing("b"));
+
+        DiskIndex.Entry entry = index.get("a");
+        assertEquals(1000, entry.getExpires());
+        assertEquals(42, entry.getEtagHash());
+        assertEquals(123, entry.getSize());
+    }
+
+    public void testNotClosedStaysComplete() {
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+        index.put("a", entry(0, "etag"));
+        index.close();
+
+        // Opened but never closed, like when the process is killed
+        index = DiskIndex.open(file, MAX_ENTRIES, false);
+        index.put("b", entry(0, "etag"));
+        index.put("c", entry(0, "etag"));
+        index.remove("a");
+
+        index = DiskIndex.open(file, MAX_ENTRIES, false);
+        assertTrue(index.isComplete());
+        assertTrue(index.isMissing("a"));
+        assertNotNull(index.get("b"));
+        assertNotNull(index.get("c"));
+
+        // And again, after the index rewrote the file when opened
+        index = DiskIndex.open(file, MAX_ENTRIES, false);
+        assertTrue(index.isComplete());
+        assertNotNull(index.get("b"));
+    }
+
+    public void testSavedWhileRunning() {
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+        for (int i = 0; i < 3000; i++) {
+            index.put("key" + (i % MAX_ENTRIES), entry(i, "etag" + i));
+        }
+
+        index = DiskIndex.open(file, MAX_ENTRIES, false);
+        assertTrue(index.isComplete());
+        assertEquals(2010, index.get("key10").getExpires());
+        assertEquals(2999, index.get("key999").getExpires());
+    }
+
+    public void testConcurrentChanges() throws InterruptedException {
+        final DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        String key = "key" + (j % 100);
+                        if ((j + thread) % 3 == 0) {
+                            index.remove(key);
+                        } else {
+                            index.put(key, entry(j, ""));
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // The file ends up with the changes in the order they were made
+        DiskIndex reopened = DiskIndex.open(file, MAX_ENTRIES, false);
+        assertTrue(reopened.isComplete());
+        for (int i = 0; i < 100; i++) {
+            DiskIndex.Entry entry = index.get("key" + i);
+            DiskIndex.Entry read = reopened.get("key" + i);
+
+            if (entry == null) {
+                assertNull(read);
+            } else {
+                assertEquals(entry.getExpires(), read.getExpires());
+            }
+        }
+    }
+
+    public void testPartialChangeIsIncomplete() throws IOException {
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+        index.put("a", entry(0, "etag"));
+
+        // Killed while appending a change
+        OutputStream os = new FileOutputStream(file, true);
+        os.write(new byte[] { 1, 0 });
+        os.close();
+
+        index = DiskIndex.open(file, MAX_ENTRIES, false);
+        assertFalse(index.isComplete());
+        assertNotNull(index.get("a"));
+    }
+
+    public void testEvictionMakesIncomplete() {
+        DiskIndex index = DiskIndex.open(file, 2, true);
+        index.put("a", entry(0, ""));
+        index.put("b", entry(0, ""));
+        assertTrue(index.isComplete());
+
+        index.put("c", entry(0, ""));
+        assertFalse(index.isComplete());
+        assertNull(index.get("a"));
+
+        index = DiskIndex.open(file, 2, false);
+        assertFalse(index.isComplete());
+        assertNotNull(index.get("c"));
+    }
+
+    public void testCorruptFile() throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        os.write(new byte[] { 1, 2, 3 });
+        os.close();
+
+        DiskIndex index = DiskIndex.open(file, MAX_ENTRIES, true);
+        assertFalse(index.isComplete());
+        assertNull(index.get("a"));
+    }
+
+    public void testMatches() {
+        Metadata metadata = new Metadata("image/png", 0, 0, "etag");
+
+        assertTrue(new DiskIndex.Entry(metadata, 100).matches(metadata, 100));
+        assertFalse(new DiskIndex.Entry(metadata, 100).matches(metadata, 101));
+        assertTrue(new DiskIndex.Entry(metadata, DiskIndex.UNKNOWN_SIZE).matches(metadata, 101));
+        assertFalse(new DiskIndex.Entry(metadata, 100).matches(new Metadata("image/png", 0, 0, "other"), 100));
+    }
+
+    public void testExpired() {
+        assertFalse(entry(Metadata.NEVER_EXPIRES, "").isExpired(Long.MAX_VALUE));
+        assertFalse(entry(1000, "").isExpired(1000));
+        assertTrue(entry(1000, "").isExpired(1001));
+        assertTrue(entry(1000, "").withExpires(2000).isExpired(2001));
+        assertFalse(entry(1000, "").withExpires(2000).isExpired(1500));
+    }
+
+    private static DiskIndex.Entry entry(long expires, String etag) {
+        return new DiskIndex.Entry(new Metadata("image/png", 0, expires, etag), DiskIndex.UNKNOWN_SIZE);
+    }
+}
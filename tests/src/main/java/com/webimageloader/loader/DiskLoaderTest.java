@@ -0,0 +1,99 @@
+package com.webimageloader.loader;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.test.AndroidTestCase;
+
+import com.webimageloader.Request;
+
+public class DiskLoaderTest extends AndroidTestCase {
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    private File directory;
+    private DiskLoader loader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = File.createTempFile("disk", null);
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (loader != null) {
+            loader.close();
+        }
+
+        deleteDirectory(directory);
+
+        super.tearDown();
+    }
+
+    public void testExpiredLegacyEntryIsRevalidated() throws Exception {
+        final LoaderRequest request = createRequest("http://example.com/image.png");
+        final Metadata metadata = new Metadata("image/png", 0, 1000, "etag");
+
+        // Written before the metadata was stored in front of the image
+        loader = DiskLoader.open(directory, MAX_SIZE, 1, Scheduler.PRIORITY, new DiskStore.Factory() {
+            @Override
+            public DiskStore open(File directory, int appVersion, int valueCount, long maxSize) throws IOException {
+                DiskStore store = PackedDiskStore.open(directory, appVersion, valueCount, maxSize);
+
+                DiskStore.Editor editor = store.edit(request.getKey().getDiskName());
+                editor.newOutputStream(0).close();
+
+                DataOutputStream os = new DataOutputStream(editor.newOutputStream(1));
+                os.writeUTF(metadata.getContentType());
+                os.writeLong(metadata.getLastModified());
+                os.writeLong(metadata.getExpires());
+                os.writeUTF(metadata.getEtag());
+                os.close();
+
+                editor.commit();
+
+                return store;
+            }
+        });
+
+        final CountDownLatch revalidated = new CountDownLatch(1);
+        Loader network = new Loader() {
+            @Override
+            public void load(LoaderWork.Manager manager, LoaderRequest r) {
+                if (r.getMetadata() != null && "etag".equals(r.getMetadata().getEtag())) {
+                    revalidated.countDown();
+                }
+            }
+        };
+
+        TestWork.create().start(Arrays.asList(loader, network), request);
+
+        assertTrue(revalidated.await(5, TimeUnit.SECONDS));
+    }
+
+    private static LoaderRequest createRequest(String url) {
+        return new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class));
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isDirectory()) {
+                    deleteDirectory(file);
+                } else {
+                    file.delete();
+                }
+            }
+        }
+
+        directory.delete();
+    }
+}
@@ -0,0 +1,129 @@
+package com.webimageloader.loader;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import android.test.AndroidTestCase;
+
+public class HostDispatcherTest extends AndroidTestCase {
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {}
+    };
+
+    public void testSingleHostUsesAllThreads() {
+        HostDispatcher dispatcher = new HostDispatcher(0);
+
+        for (int i = 0; i < 4; i++) {
+            assertTrue(start(dispatcher, "a", createManager(), NOOP, 4));
+        }
+    }
+
+    public void testHostKeepsToItsShare() {
+        HostDispatcher dispatcher = new HostDispatcher(0);
+
+        assertTrue(start(dispatcher, "a", createManager(), NOOP, 4));
+        assertTrue(start(dispatcher, "a", createManager(), NOOP, 4));
+
+        // Another host is waiting, leave the other half to it
+        dispatcher.onQueued("b", createManager());
+        assertFalse(start(dispatcher, "a", createManager(), NOOP, 4));
+
+        Map<String, int[]> counts = dispatcher.getCounts();
+        assertEquals(1, counts.get("a")[0]);
+        assertEquals(2, counts.get("a")[1]);
+        assertEquals(1, counts.get("b")[0]);
+        assertEquals(0, counts.get("b")[1]);
+    }
+
+    public void testMaxPerHost() {
+        HostDispatcher dispatcher = new HostDispatcher(1);
+        Runnable resume = new Runnable() {
+            @Override
+            public void run() {}
+        };
+
+        assertTrue(start(dispatcher, "a", createManager(), NOOP, 4));
+        assertFalse(start(dispatcher, "a", createManager(), resume, 4));
+
+        List<Runnable> resumed = dispatcher.onFinished("a", 4);
+        assertEquals(Collections.singletonList(resume), resumed);
+    }
+
+    public void testRoundRobin() {
+        HostDispatcher dispatcher = new HostDispatcher(0);
+        Runnable a2 = new NamedRunnable("a2");
+        Runnable a3 = new NamedRunnable("a3");
+        Runnable b2 = new NamedRunnable("b2");
+        Runnable b3 = new NamedRunnable("b3");
+
+        String[] hosts = { "a", "b", "a", "a", "b", "b" };
+        Runnable[] resumes = { NOOP, NOOP, a2, a3, b2, b3 };
+        LoaderWork.Manager[] managers = new LoaderWork.Manager[hosts.length];
+
+        // Everything is queued before the threads get to it
+        for (int i = 0; i < hosts.length; i++) {
+            managers[i] = createManager();
+            dispatcher.onQueued(hosts[i], managers[i]);
+        }
+
+        for (int i = 0; i < hosts.length; i++) {
+            boolean started = dispatcher.tryStart(hosts[i], managers[i], resumes[i], 2);
+            assertEquals(i < 2, started);
+        }
+
+        assertEquals(Collections.singletonList(a2), dispatcher.onFinished("a", 2));
+
+        // Both threads are free, one each
+        assertEquals(Arrays.asList(b2, a3), dispatcher.onFinished("b", 2));
+    }
+
+    public void testForgetsCancelled() {
+        HostDispatcher dispatcher = new HostDispatcher(1);
+
+        LoaderWork work = TestWork.create();
+        assertTrue(start(dispatcher, "a", createManager(), NOOP, 4));
+        assertFalse(start(dispatcher, "a", TestWork.start(work), NOOP, 4));
+
+        work.cancel();
+
+        // Nothing left to resume
+        assertTrue(dispatcher.onFinished("a", 4).isEmpty());
+        assertTrue(dispatcher.getCounts().isEmpty());
+    }
+
+    public void testGetHost() {
+        assertEquals("example.com", NetworkLoader.getHost("http://example.com/a.png"));
+        assertEquals("example.com:8080", NetworkLoader.getHost("https://Example.com:8080?a=b"));
+        assertEquals("example.com", NetworkLoader.getHost("http://example.com"));
+        assertNull(NetworkLoader.getHost("android.resource://com.example/1"));
+        assertNull(NetworkLoader.getHost("http:example"));
+    }
+
+    private static class NamedRunnable implements Runnable {
+        private final String name;
+
+        public NamedRunnable(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public void run() {}
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static boolean start(HostDispatcher dispatcher, String host, LoaderWork.Manager manager, Runnable resume, int threadCount) {
+        dispatcher.onQueued(host, manager);
+        return dispatcher.tryStart(host, manager, resume, threadCount);
+    }
+
+    private static LoaderWork.Manager createManager() {
+        return TestWork.start(TestWork.create());
+    }
+}
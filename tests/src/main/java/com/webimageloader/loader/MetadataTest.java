@@ -0,0 +1,140 @@
+package com.webimageloader.loader;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.test.AndroidTestCase;
+
+public class MetadataTest extends AndroidTestCase {
+    private static final byte[] IMAGE = { 1, 2, 3, 4, 5 };
+
+    public void testRoundTrip() throws IOException {
+        assertRoundTrip(new Metadata("image/jpeg", 1370000000000L, 1370000060000L, "\"abc123\""));
+        assertRoundTrip(new Metadata("image/png", 0, Metadata.NEVER_EXPIRES, null));
+        assertRoundTrip(new Metadata("image/x-custom", -5, 42, "W/\"weak\""));
+        assertRoundTrip(new Metadata(null, 0, 0, null));
+        assertRoundTrip(new Metadata("image/png", 0, 1000, null, 60000, Metadata.STALE_ALWAYS, false));
+        assertRoundTrip(new Metadata("image/png", 0, 1000, null, 0, 0, false));
+    }
+
+    public void testStaleWindowsAreOptional() throws IOException {
+        Metadata metadata = new Metadata("image/jpeg", 1370000000000L, Metadata.NEVER_EXPIRES, null);
+        Metadata stale = new Metadata("image/jpeg", 1370000000000L, Metadata.NEVER_EXPIRES, null, 0, 0, true);
+
+        // Two single byte varints, no-store isn't stored
+        assertEquals(metadata.getHeaderSize() + 2, stale.getHeaderSize());
+        assertFalse(Metadata.readHeader(new BufferedInputStream(new ByteArrayInputStream(write(stale)))).isNoStore());
+    }
+
+    public void testStaleness() {
+        Metadata metadata = new Metadata("image/png", 0, 1000, null, 500, 0, false);
+
+        assertTrue(metadata.canUseWhileRevalidating(1000, 1500));
+        assertFalse(metadata.canUseWhileRevalidating(1000, 1501));
+        assertFalse(metadata.canUseOnError(1000, 1001));
+
+        Metadata always = new Metadata("image/png", 0, 1000, null);
+        assertTrue(always.canUseWhileRevalidating(1000, Long.MAX_VALUE));
+        assertTrue(always.canUseOnError(1000, Long.MAX_VALUE));
+    }
+
+    public void testCompact() throws IOException {
+        Metadata metadata = new Metadata("image/jpeg", 1370000000000L, Metadata.NEVER_EXPIRES, null);
+
+        // Prefix, content type, two varints and an empty etag
+        assertEquals(7 + 1 + 6 + 1 + 1, metadata.getHeaderSize());
+    }
+
+    public void testNoHeader() throws IOException {
+        InputStream is = new BufferedInputStream(new ByteArrayInputStream(IMAGE));
+
+        assertNull(Metadata.readHeader(is));
+        assertImage(is);
+    }
+
+    public void testShortStream() throws IOException {
+        InputStream is = new BufferedInputStream(new ByteArrayInputStream(new byte[] { 'W', 'I' }));
+
+        assertNull(Metadata.readHeader(is));
+        assertEquals('W', is.read());
+    }
+
+    public void testUnknownVersion() throws IOException {
+        byte[] header = write(new Metadata("image/png", 0, 0, null));
+        header[4] = 99;
+
+        try {
+            Metadata.readHeader(new BufferedInputStream(new ByteArrayInputStream(header)));
+            fail("Header should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] header = write(new Metadata("image/png", 0, 0, "etag"));
+        byte[] truncated = new byte[header.length - IMAGE.length - 2];
+        System.arraycopy(header, 0, truncated, 0, truncated.length);
+
+        try {
+            Metadata.readHeader(new BufferedInputStream(new ByteArrayInputStream(truncated)));
+            fail("Header should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    public void testUnknownFields() throws IOException {
+        Metadata metadata = new Metadata("image/png", 0, 1000, "etag", 0, 0, false);
+        int size = metadata.getHeaderSize();
+
+        // Written by a newer version with three more bytes of fields
+        byte[] written = write(metadata);
+        byte[] data = new byte[written.length + 3];
+        System.arraycopy(written, 0, data, 0, size);
+        System.arraycopy(written, size, data, size + 3, IMAGE.length);
+        data[6] += 3;
+
+        InputStream is = new BufferedInputStream(new ByteArrayInputStream(data));
+        Metadata read = Metadata.readHeader(is);
+
+        assertEquals("etag", read.getEtag());
+        assertEquals(size + 3, read.getHeaderSize());
+        assertImage(is);
+    }
+
+    private void assertRoundTrip(Metadata metadata) throws IOException {
+        byte[] data = write(metadata);
+        assertEquals(metadata.getHeaderSize() + IMAGE.length, data.length);
+
+        InputStream is = new BufferedInputStream(new ByteArrayInputStream(data));
+        Metadata read = Metadata.readHeader(is);
+
+        assertEquals(metadata.getContentType(), read.getContentType());
+        assertEquals(metadata.getLastModified(), read.getLastModified());
+        assertEquals(metadata.getExpires(), read.getExpires());
+        assertEquals(metadata.getEtag(), read.getEtag());
+        assertEquals(metadata.getStaleWhileRevalidate(), read.getStaleWhileRevalidate());
+        assertEquals(metadata.getStaleIfError(), read.getStaleIfError());
+        assertImage(is);
+    }
+
+    private static byte[] write(Metadata metadata) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        metadata.writeHeader(os);
+        os.write(IMAGE);
+
+        return os.toByteArray();
+    }
+
+    private static void assertImage(InputStream is) throws IOException {
+        for (byte b : IMAGE) {
+            assertEquals(b, is.read());
+        }
+
+        assertEquals(-1, is.read());
+    }
+}
@@ -0,0 +1,111 @@
+package com.webimageloader.loader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.EnumSet;
+
+import android.test.AndroidTestCase;
+
+import com.webimageloader.HttpException;
+import com.webimageloader.Request;
+
+public class NegativeCacheTest extends AndroidTestCase {
+    private static final LoaderRequest REQUEST = createRequest("http://example.com/missing.png");
+
+    private long now;
+    private NegativeCache cache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        cache = new NegativeCache(2) {
+            @Override
+            protected long now() {
+                return now;
+            }
+        };
+    }
+
+    public void testRemembersError() {
+        FileNotFoundException error = new FileNotFoundException();
+        cache.put(REQUEST, error);
+
+        assertSame(error, cache.get(REQUEST));
+        assertSame(error, cache.get(createRequest("http://example.com/missing.png")));
+
+        now += NegativeCache.NOT_FOUND_TTL;
+        assertNull(cache.get(REQUEST));
+
+        NegativeCache.DebugInfo info = cache.getDebugInfo();
+        assertEquals(2, info.hitCount);
+        assertEquals(1, info.missCount);
+        assertEquals(1, info.size);
+    }
+
+    public void testBackoff() {
+        long ttl = NegativeCache.SERVER_ERROR_TTL;
+        for (int i = 0; i < 3; i++) {
+            cache.put(REQUEST, new HttpException(503, REQUEST.getUrl()));
+
+            now += ttl - 1;
+            assertNotNull(cache.get(REQUEST));
+            now += 1;
+            assertNull(cache.get(REQUEST));
+
+            ttl *= 2;
+        }
+    }
+
+    public void testBackoffIsCapped() {
+        for (int i = 0; i < 20; i++) {
+            cache.put(REQUEST, new FileNotFoundException());
+        }
+
+        now += NegativeCache.MAX_TTL;
+        assertNull(cache.get(REQUEST));
+    }
+
+    public void testSuccessResets() {
+        cache.put(REQUEST, new SocketTimeoutException());
+        cache.remove(REQUEST);
+        assertNull(cache.get(REQUEST));
+
+        // Back to the first ttl
+        cache.put(REQUEST, new SocketTimeoutException());
+        now += NegativeCache.NETWORK_ERROR_TTL;
+        assertNull(cache.get(REQUEST));
+    }
+
+    public void testTtls() {
+        assertEquals(NegativeCache.NOT_FOUND_TTL, NegativeCache.getTtl(new FileNotFoundException()));
+        assertEquals(NegativeCache.CLIENT_ERROR_TTL, NegativeCache.getTtl(new HttpException(403, "")));
+        assertEquals(NegativeCache.SERVER_ERROR_TTL, NegativeCache.getTtl(new HttpException(429, "")));
+        assertEquals(NegativeCache.SERVER_ERROR_TTL, NegativeCache.getTtl(new HttpException(500, "")));
+        assertEquals(NegativeCache.NETWORK_ERROR_TTL, NegativeCache.getTtl(new SocketTimeoutException()));
+        assertEquals(NegativeCache.NETWORK_ERROR_TTL, NegativeCache.getTtl(new IOException()));
+
+        // Not worth remembering
+        assertEquals(0, NegativeCache.getTtl(new InterruptedIOException()));
+        assertEquals(0, NegativeCache.getTtl(new OutOfMemoryError()));
+    }
+
+    public void testBounded() {
+        LoaderRequest other = createRequest("http://example.com/other.png");
+        LoaderRequest third = createRequest("http://example.com/third.png");
+
+        cache.put(REQUEST, new IOException());
+        cache.put(other, new IOException());
+        cache.put(third, new IOException());
+
+        assertNull(cache.get(REQUEST));
+        assertNotNull(cache.get(other));
+        assertNotNull(cache.get(third));
+    }
+
+    private static LoaderRequest createRequest(String url) {
+        return new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class));
+    }
+}
@@ -0,0 +1,609 @@
+package com.webimageloader.loader;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.webimageloader.HttpException;
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.Transport;
+import com.webimageloader.util.HeaderParser;
+import com.webimageloader.util.InputSupplier;
+
+public class NetworkLoaderTest extends AndroidTestCase {
+    private MockServer server;
+    private NetworkLoader loader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        server = new MockServer();
+        loader = new NetworkLoader(new NetworkLoader.Builder());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        loader.close();
+        server.close();
+
+        super.tearDown();
+    }
+
+    public void testLoad() throws Exception {
+        server.enqueue("HTTP/1.1 200 OK", "ETag: \"abc\"", "Content-Type: image/png", "hello");
+
+        Result result = load(server.getUrl(), null);
+
+        assertEquals("hello", result.body);
+        assertEquals("\"abc\"", result.metadata.getEtag());
+        assertEquals("image/png", result.metadata.getContentType());
+        assertNull(server.takeRequest().get("if-none-match"));
+
+        assertEquals(0, loader.getDebugInfo().inFlightCount);
+    }
+
+    public void testNotModified() throws Exception {
+        server.enqueue("HTTP/1.1 304 Not Modified", "ETag: \"abc\"", null);
+
+        Metadata metadata = new Metadata("image/png", 1000L, 0, "\"abc\"");
+        Result result = load(server.getUrl(), metadata);
+
+        assertTrue(result.notModified);
+        Map<String, String> headers = server.takeRequest();
+        assertEquals("\"abc\"", headers.get("if-none-match"));
+        assertEquals("Thu, 01 Jan 1970 00:00:01 GMT", headers.get("if-modified-since"));
+
+        assertEquals(0, loader.getDebugInfo().inFlightCount);
+    }
+
+    public void testFreshness() throws Exception {
+        // The server clock is an hour behind, only the Age header counts
+        long now = System.currentTimeMillis();
+        String date = HeaderParser.formatDate(now - 60 * 60 * 1000);
+        server.enqueue("HTTP/1.1 200 OK", "Date: " + date, "Age: 100", "Cache-Control: max-age=600", "hello");
+
+        Metadata metadata = load(server.getUrl(), null).metadata;
+
+        assertEquals(now + 500 * 1000, metadata.getExpires(), 5000);
+        assertEquals(Metadata.STALE_ALWAYS, metadata.getStaleWhileRevalidate());
+        assertEquals(Metadata.STALE_ALWAYS, metadata.getStaleIfError());
+        assertFalse(metadata.isNoStore());
+    }
+
+    public void testExpiresRelativeToDate() throws Exception {
+        long now = System.currentTimeMillis();
+        long date = now - 60 * 60 * 1000;
+        server.enqueue("HTTP/1.1 200 OK", "Date: " + HeaderParser.formatDate(date),
+                "Expires: " + HeaderParser.formatDate(date + 600 * 1000), "hello");
+
+        assertEquals(now + 600 * 1000, load(server.getUrl(), null).metadata.getExpires(), 5000);
+    }
+
+    public void testImmutable() throws Exception {
+        server.enqueue("HTTP/1.1 200 OK", "Cache-Control: max-age=60, immutable", "hello");
+
+        assertEquals(Metadata.NEVER_EXPIRES, load(server.getUrl(), null).metadata.getExpires());
+    }
+
+    public void testNoCache() throws Exception {
+        long now = System.currentTimeMillis();
+        server.enqueue("HTTP/1.1 200 OK", "Cache-Control: no-cache, max-age=600, stale-if-error=60", "hello");
+
+        Metadata metadata = load(server.getUrl(), null).metadata;
+
+        assertEquals(now, metadata.getExpires(), 5000);
+        assertEquals(0, metadata.getStaleWhileRevalidate());
+        assertEquals(0, metadata.getStaleIfError());
+    }
+
+    public void testStaleDirectives() throws Exception {
+        server.enqueue("HTTP/1.1 200 OK", "Cache-Control: max-age=60, stale-while-revalidate=30, stale-if-error=600, no-store", "hello");
+
+        Metadata metadata = load(server.getUrl(), null).metadata;
+
+        assertEquals(30 * 1000, metadata.getStaleWhileRevalidate());
+        assertEquals(600 * 1000, metadata.getStaleIfError());
+        assertTrue(metadata.isNoStore());
+    }
+
+    public void testServerError() throws Exception {
+        loader.close();
+        loader = new NetworkLoader(new NetworkLoader.Builder()
+                .setThreadCount(1)
+                .setAdaptiveThreadCount(1, 8));
+
+        // Quick errors must not look like a fast link, every window of
+        // successes at the limit would raise it
+        for (int i = 0; i < 4; i++) {
+            server.enqueue("HTTP/1.1 503 Service Unavailable", "busy");
+
+            Result result = new Result();
+            assertTrue(start(server.getUrl(), null, result).await(10, TimeUnit.SECONDS));
+
+            assertTrue(result.error instanceof HttpException);
+            assertEquals(503, ((HttpException) result.error).getStatusCode());
+
+            NetworkLoader.DebugInfo info = loader.getDebugInfo();
+            assertEquals(0, info.inFlightCount);
+            assertEquals(1, info.threadLimit);
+        }
+    }
+
+    public void testNotFound() throws Exception {
+        server.enqueue("HTTP/1.1 404 Not Found", "missing");
+
+        Result result = new Result();
+        assertTrue(start(server.getUrl(), null, result).await(10, TimeUnit.SECONDS));
+
+        assertTrue(result.error instanceof FileNotFoundException);
+    }
+
+    public void testResume() throws Exception {
+        server.enqueue("HTTP/1.1 206 Partial Content", "ETag: \"abc\"", "Content-Range: bytes 3-4/5", "lo");
+
+        Result result = resume(new Metadata("image/png", 0, 0, "\"abc\""), "hel");
+
+        assertEquals("hello", result.body);
+        Map<String, String> headers = server.takeRequest();
+        assertEquals("bytes=3-", headers.get("range"));
+        assertEquals("\"abc\"", headers.get("if-range"));
+        assertNull(headers.get("if-none-match"));
+
+        assertEquals(3, loader.getDebugInfo().bytesResumed);
+    }
+
+    public void testResumeWithLastModified() throws Exception {
+        server.enqueue("HTTP/1.1 206 Partial Content", "Content-Range: bytes 3-4/5", "lo");
+
+        Result result = resume(new Metadata("image/png", 1000L, 0, "W/\"weak\""), "hel");
+
+        assertEquals("hello", result.body);
+        assertEquals("Thu, 01 Jan 1970 00:00:01 GMT", server.takeRequest().get("if-range"));
+    }
+
+    public void testResumeChanged() throws Exception {
+        // The validator didn't match, the whole new image is sent
+        server.enqueue("HTTP/1.1 200 OK", "ETag: \"def\"", "world");
+
+        Result result = resume(new Metadata("image/png", 0, 0, "\"abc\""), "hel");
+
+        assertEquals("world", result.body);
+        assertEquals("\"def\"", result.metadata.getEtag());
+        assertEquals(0, loader.getDebugInfo().bytesResumed);
+    }
+
+    public void testResumeWrongRange() throws Exception {
+        server.enqueue("HTTP/1.1 206 Partial Content", "Content-Range: bytes 0-4/5", "hello");
+        server.enqueue("HTTP/1.1 200 OK", "hello");
+
+        Result result = resume(new Metadata("image/png", 0, 0, "\"abc\""), "hel");
+
+        assertEquals("hello", result.body);
+        assertNotNull(server.takeRequest().get("range"));
+        assertNull(server.takeRequest().get("range"));
+    }
+
+    public void testCustomTransport() throws Exception {
+        final List<Map<String, String>> requests = new ArrayList<Map<String, String>>();
+        Transport transport = new Transport() {
+            @Override
+            public Response execute(URL url, Map<String, String> headers) throws IOException {
+                requests.add(headers);
+                return new StringResponse("custom");
+            }
+
+            @Override
+            public int getConnectionCount() {
+                return 3;
+            }
+
+            @Override
+            public int getIdleConnectionCount() {
+                return 2;
+            }
+        };
+
+        loader.close();
+        loader = new NetworkLoader(new NetworkLoader.Builder().setTransport(transport));
+
+        Result result = load("http://example.com/image.png", new Metadata("image/png", 0, 0, "\"abc\""));
+
+        assertEquals("custom", result.body);
+        assertEquals(1, requests.size());
+        assertEquals("\"abc\"", requests.get(0).get("If-None-Match"));
+
+        NetworkLoader.DebugInfo info = loader.getDebugInfo();
+        assertEquals(0, info.inFlightCount);
+        assertEquals(3, info.connectionCount);
+        assertEquals(2, info.idleConnectionCount);
+    }
+
+    public void testAbortClosesNonHttpStream() throws Exception {
+        final boolean[] closed = { false };
+        URL url = new URL(null, "test://image", new URLStreamHandler() {
+            @Override
+            protected URLConnection openConnection(URL u) {
+                return new URLConnection(u) {
+                    @Override
+                    public void connect() {}
+
+                    @Override
+                    public InputStream getInputStream() {
+                        return new ByteArrayInputStream(new byte[16]) {
+                            @Override
+                            public void close() {
+                                closed[0] = true;
+                            }
+                        };
+                    }
+                };
+            }
+        });
+
+        URLConnectionTransport transport = new URLConnectionTransport(null, null, 0, 0);
+        Transport.Response response = transport.execute(url, Collections.<String, String>emptyMap());
+        response.abort();
+
+        assertTrue(closed[0]);
+    }
+
+    public void testAdaptiveThreadCount() throws Exception {
+        loader.close();
+        loader = new NetworkLoader(new NetworkLoader.Builder()
+                .setThreadCount(4)
+                .setAdaptiveThreadCount(1, 8));
+
+        assertEquals(4, loader.getDebugInfo().threadLimit);
+
+        // The server handles one download at a time, running more at once
+        // only makes them wait longer for the first byte
+        int count = 24;
+        server.setBodyDelay(30);
+        for (int i = 0; i < count; i++) {
+            server.enqueue("HTTP/1.1 200 OK", "hello");
+        }
+
+        List<CountDownLatch> latches = new ArrayList<CountDownLatch>();
+        for (int i = 0; i < count; i++) {
+            latches.add(start(server.getUrl(), null, new Result()));
+        }
+        for (CountDownLatch latch : latches) {
+            assertTrue(latch.await(30, TimeUnit.SECONDS));
+        }
+
+        int limit = loader.getDebugInfo().threadLimit;
+        assertTrue("Limit was " + limit, limit < 4);
+    }
+
+    public void testSlowHostDoesNotStarveOthers() throws Exception {
+        MockServer slowServer = new MockServer();
+        try {
+            slowServer.setBodyDelay(200);
+            for (int i = 0; i < 6; i++) {
+                slowServer.enqueue("HTTP/1.1 200 OK", "slow");
+            }
+            for (int i = 0; i < 2; i++) {
+                server.enqueue("HTTP/1.1 200 OK", "fast");
+            }
+
+            List<CountDownLatch> slow = new ArrayList<CountDownLatch>();
+            for (int i = 0; i < 6; i++) {
+                slow.add(start(slowServer.getUrl(), null, new Result()));
+            }
+
+            List<CountDownLatch> fast = new ArrayList<CountDownLatch>();
+            for (int i = 0; i < 2; i++) {
+                fast.add(start(server.getUrl(), null, new Result()));
+            }
+
+            for (CountDownLatch latch : fast) {
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+            }
+
+            // The fast host got a thread before the slow host was done
+            int slowDone = 0;
+            for (CountDownLatch latch : slow) {
+                if (latch.getCount() == 0) {
+                    slowDone++;
+                }
+            }
+            assertTrue("Slow downloads done: " + slowDone, slowDone <= 3);
+
+            for (CountDownLatch latch : slow) {
+                assertTrue(latch.await(10, TimeUnit.SECONDS));
+            }
+
+            // The threads finish up after the results are delivered
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!loader.getDebugInfo().hosts.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(loader.getDebugInfo().hosts.isEmpty());
+        } finally {
+            slowServer.close();
+        }
+    }
+
+    private Result resume(Metadata metadata, String start) throws Exception {
+        File directory = File.createTempFile("partial", null);
+        directory.delete();
+
+        PartialStore partials = PartialStore.open(directory, 1);
+        PartialStore.Writer writer = partials.begin("key", metadata);
+        writer.mirror(new ByteArrayOutputStream()).write(start.getBytes("US-ASCII"));
+        writer.keep();
+
+        LoaderRequest request = new LoaderRequest(server.getUrl(), null, EnumSet.noneOf(Request.Flag.class));
+        Result result = new Result();
+        assertTrue(start(request.withPartial(partials.get("key")), result).await(10, TimeUnit.SECONDS));
+        if (result.error != null) {
+            throw new AssertionError(result.error);
+        }
+
+        partials.remove("key");
+        directory.delete();
+
+        return result;
+    }
+
+    private Result load(String url, Metadata metadata) throws InterruptedException {
+        Result result = new Result();
+        CountDownLatch latch = start(url, metadata, result);
+
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        if (result.error != null) {
+            throw new AssertionError(result.error);
+        }
+
+        return result;
+    }
+
+    private CountDownLatch start(String url, Metadata metadata, Result result) {
+        LoaderRequest request = new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class));
+        if (metadata != null) {
+            request = request.withMetadata(metadata);
+        }
+
+        return start(request, result);
+    }
+
+    private CountDownLatch start(LoaderRequest request, final Result result) {
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        LoaderWork work = new LoaderWork(new Loader.Listener() {
+            @Override
+            public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+                try {
+                    result.body = read(input.getInput());
+                    result.metadata = metadata;
+                } catch (IOException e) {
+                    result.error = e;
+                }
+
+                latch.countDown();
+            }
+
+            @Override
+            public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onNotModified(Metadata metadata) {
+                result.notModified = true;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                result.error = t;
+                latch.countDown();
+            }
+        }, new ImageLoader.ProgressListener() {
+            @Override
+            public void onProgress(float value) {}
+        });
+
+        work.start(Collections.<Loader>singletonList(loader), request);
+
+        return latch;
+    }
+
+    private static String read(InputStream is) throws IOException {
+        try {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = is.read()) != -1) {
+                sb.append((char) c);
+            }
+
+            return sb.toString();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static class Result {
+        String body;
+        Metadata metadata;
+        boolean notModified;
+        Throwable error;
+    }
+
+    private static class StringResponse implements Transport.Response {
+        private String body;
+
+        public StringResponse(String body) {
+            this.body = body;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return 200;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return null;
+        }
+
+        @Override
+        public long getDateHeader(String name) {
+            return 0;
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.length();
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(body.getBytes());
+        }
+
+        @Override
+        public void abort() {}
+
+        @Override
+        public void close() {}
+    }
+
+    /**
+     * Minimal HTTP server answering each connection with the next queued
+     * response and recording the request headers
+     */
+    private static class MockServer implements Runnable {
+        private final ServerSocket serverSocket;
+        private final LinkedBlockingQueue<String[]> responses = new LinkedBlockingQueue<String[]>();
+        private final LinkedBlockingQueue<Map<String, String>> requests = new LinkedBlockingQueue<Map<String, String>>();
+
+        private volatile long bodyDelay;
+
+        public MockServer() throws IOException {
+            serverSocket = new ServerSocket(0);
+
+            Thread thread = new Thread(this, "MockServer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/image.png";
+        }
+
+        /**
+         * Queue a response, the last argument is the body or null
+         */
+        public void enqueue(String... response) {
+            responses.add(response);
+        }
+
+        /**
+         * Spread sending each body over this many milliseconds
+         */
+        public void setBodyDelay(long millis) {
+            bodyDelay = millis;
+        }
+
+        public Map<String, String> takeRequest() throws InterruptedException {
+            return requests.poll(10, TimeUnit.SECONDS);
+        }
+
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (IOException e) {
+                    // Closed
+                    return;
+                }
+
+                try {
+                    serve(socket);
+                } catch (IOException e) {
+                    // The client went away before reading everything
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        // Ignore
+                    }
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException, InterruptedException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+
+            // Skip the request line and record the headers
+            reader.readLine();
+            Map<String, String> headers = new HashMap<String, String>();
+            String line;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int i = line.indexOf(':');
+                headers.put(line.substring(0, i).trim().toLowerCase(Locale.US), line.substring(i + 1).trim());
+            }
+            requests.add(headers);
+
+            String[] response = responses.take();
+            String body = response[response.length - 1];
+
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < response.length - 1; i++) {
+                sb.append(response[i]).append("\r\n");
+            }
+            if (body != null) {
+                sb.append("Content-Length: ").append(body.length()).append("\r\n");
+            }
+            sb.append("Connection: close\r\n\r\n");
+
+            OutputStream os = socket.getOutputStream();
+            os.write(sb.toString().getBytes("US-ASCII"));
+            os.flush();
+
+            if (body != null) {
+                byte[] bytes = body.getBytes("US-ASCII");
+                for (int i = 0; i < bytes.length; i++) {
+                    Thread.sleep(bodyDelay / bytes.length);
+                    os.write(bytes[i]);
+                    os.flush();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package com.webimageloader.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+
+public class PackedDiskStoreTest extends AndroidTestCase {
+    private static final int APP_VERSION = 1;
+    private static final int VALUE_COUNT = 2;
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    private File directory;
+    private PackedDiskStore store;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = File.createTempFile("store", null);
+        directory.delete();
+
+        store = PackedDiskStore.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        store.close();
+        deleteDirectory(directory);
+
+        super.tearDown();
+    }
+
+    public void testPutAndGet() throws IOException {
+        put("a", "image", "metadata");
+
+        assertValues("a", "image", "metadata");
+        assertNull(store.get("b"));
+    }
+
+    public void testReplaceKeepsUnwrittenValues() throws IOException {
+        put("a", "image", "metadata");
+
+        DiskStore.Editor editor = store.edit("a");
+        write(editor, 1, "updated");
+        editor.commit();
+
+        assertValues("a", "image", "updated");
+        assertEquals(1, store.count());
+    }
+
+    public void testNewEntryNeedsAllValues() throws IOException {
+        DiskStore.Editor editor = store.edit("a");
+        write(editor, 0, "image");
+
+        try {
+            editor.commit();
+            fail("Commit should fail");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+
+        assertNull(store.get("a"));
+        // The edit is over, a new one can be started
+        assertNotNull(store.edit("a"));
+    }
+
+    public void testSingleEditor() throws IOException {
+        DiskStore.Editor editor = store.edit("a");
+        assertNull(store.edit("a"));
+
+        editor.abort();
+        assertNotNull(store.edit("a"));
+    }
+
+    public void testRemove() throws IOException {
+        put("a", "image", "metadata");
+
+        assertTrue(store.remove("a"));
+        assertFalse(store.remove("a"));
+        assertNull(store.get("a"));
+        assertEquals(0, store.size());
+    }
+
+    public void testReopen() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            put("key" + i, "image" + i, "metadata" + i);
+        }
+        store.remove("key50");
+
+        long size = store.size();
+        store.close();
+        store = PackedDiskStore.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+
+        assertEquals(99, store.count());
+        assertEquals(size, store.size());
+        assertValues("key99", "image99", "metadata99");
+        assertNull(store.get("key50"));
+    }
+
+    public void testVersionChangeDiscards() throws IOException {
+        put("a", "image", "metadata");
+        store.close();
+
+        store = PackedDiskStore.open(directory, APP_VERSION + 1, VALUE_COUNT, MAX_SIZE);
+        assertNull(store.get("a"));
+        assertEquals(0, store.count());
+    }
+
+    public void testCorruptIndexDiscards() throws IOException {
+        put("a", "image", "metadata");
+        store.close();
+
+        OutputStream os = new java.io.FileOutputStream(new File(directory, "index"));
+        os.write(new byte[] { 1, 2, 3 });
+        os.close();
+
+        store = PackedDiskStore.open(directory, APP_VERSION, VALUE_COUNT, MAX_SIZE);
+        assertNull(store.get("a"));
+
+        put("b", "image", "metadata");
+        assertValues("b", "image", "metadata");
+    }
+
+    public void testGrowsIndex() throws IOException {
+        // More than the initial capacity
+        for (int i = 0; i < 5000; i++) {
+            put("key" + i, "i", "m");
+        }
+
+        assertEquals(5000, store.count());
+        for (int i = 0; i < 5000; i += 97) {
+            assertValues("key" + i, "i", "m");
+        }
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws IOException {
+        store.close();
+        store = PackedDiskStore.open(directory, APP_VERSION, VALUE_COUNT, 64 * 1024);
+
+        byte[] data = new byte[10 * 1024];
+        put("a", data);
+        put("b", data);
+        put("c", data);
+
+        // Use a so that b is the oldest
+        store.get("a").close();
+
+        for (int i = 0; i < 4; i++) {
+            put("filler" + i, data);
+        }
+
+        assertTrue(store.size() <= 64 * 1024);
+        assertNotNull(store.get("a"));
+        assertNull(store.get("b"));
+    }
+
+    public void testCompaction() throws IOException {
+        byte[] data = new byte[64 * 1024];
+        new Random(0).nextBytes(data);
+
+        // Write several segments worth, replacing the same keys over and over
+        for (int i = 0; i < 400; i++) {
+            put("key" + (i % 10), data);
+        }
+
+        assertEquals(10, store.count());
+
+        long onDisk = 0;
+        for (File file : directory.listFiles()) {
+            if (file.getName().startsWith("segment-")) {
+                onDisk += file.length();
+            }
+        }
+
+        // Garbage has been reclaimed
+        assertTrue("Too much on disk: " + onDisk, onDisk < 4 * store.size() + 4 * 1024 * 1024);
+
+        for (int i = 0; i < 10; i++) {
+            DiskStore.Snapshot snapshot = store.get("key" + i);
+            assertTrue(Arrays.equals(data, read(snapshot.getInputStream(0))));
+            snapshot.close();
+        }
+    }
+
+    private void put(String key, String image, String metadata) throws IOException {
+        DiskStore.Editor editor = store.edit(key);
+        write(editor, 0, image);
+        write(editor, 1, metadata);
+        editor.commit();
+    }
+
+    private void put(String key, byte[] image) throws IOException {
+        DiskStore.Editor editor = store.edit(key);
+
+        OutputStream os = editor.newOutputStream(0);
+        os.write(image);
+        os.close();
+        write(editor, 1, "");
+
+        editor.commit();
+    }
+
+    private void assertValues(String key, String image, String metadata) throws IOException {
+        DiskStore.Snapshot snapshot = store.get(key);
+        assertNotNull(snapshot);
+
+        try {
+            assertEquals(image, new String(read(snapshot.getInputStream(0)), "UTF-8"));
+            assertEquals(metadata, new String(read(snapshot.getInputStream(1)), "UTF-8"));
+            assertEquals(image.length(), snapshot.getLength(0));
+            assertEquals(image.length(), snapshot.map(0).remaining());
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void write(DiskStore.Editor editor, int index, String value) throws IOException {
+        OutputStream os = editor.newOutputStream(index);
+        try {
+            os.write(value.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int i;
+        while ((i = is.read(buffer)) != -1) {
+            os.write(buffer, 0, i);
+        }
+        is.close();
+
+        return os.toByteArray();
+    }
+
+    private static void deleteDirectory(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+
+        directory.delete();
+    }
+}
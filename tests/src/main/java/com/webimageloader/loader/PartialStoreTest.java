@@ -0,0 +1,128 @@
+package com.webimageloader.loader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import android.test.AndroidTestCase;
+
+public class PartialStoreTest extends AndroidTestCase {
+    private static final Metadata METADATA = new Metadata("image/jpeg", 0, 0, "\"abc\"");
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        directory = File.createTempFile("partial", null);
+        directory.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+
+        super.tearDown();
+    }
+
+    public void testKeep() throws IOException {
+        PartialStore partials = PartialStore.open(directory, 4);
+
+        ByteArrayOutputStream download = new ByteArrayOutputStream();
+        PartialStore.Writer writer = partials.begin("a", METADATA);
+        OutputStream os = writer.mirror(download);
+        os.write(new byte[] { 1, 2, 3 });
+        os.write(4);
+        writer.keep();
+
+        // Written through to the real destination too
+        assertEquals(4, download.size());
+
+        assertTrue(partials.contains("a"));
+        assertEntry(partials.get("a"), 4);
+
+        // Found again after reopening
+        assertEntry(PartialStore.open(directory, 4).get("a"), 4);
+    }
+
+    public void testDiscard() throws IOException {
+        PartialStore partials = PartialStore.open(directory, 4);
+        keep(partials, "a", METADATA);
+
+        PartialStore.Writer writer = partials.begin("a", METADATA);
+        writer.mirror(new ByteArrayOutputStream()).write(new byte[] { 1, 2, 3, 4, 5 });
+        writer.discard();
+
+        assertFalse(partials.contains("a"));
+        assertNull(partials.get("a"));
+        assertEquals(0, directory.list().length);
+    }
+
+    public void testNothingWritten() throws IOException {
+        PartialStore partials = PartialStore.open(directory, 4);
+
+        partials.begin("a", METADATA).keep();
+
+        assertNull(partials.get("a"));
+    }
+
+    public void testWithoutValidator() throws IOException {
+        PartialStore partials = PartialStore.open(directory, 4);
+        keep(partials, "a", new Metadata("image/jpeg", 0, 0, "W/\"weak\""));
+
+        // Can't be resumed, so it's removed
+        assertNull(partials.get("a"));
+        assertFalse(partials.contains("a"));
+    }
+
+    public void testCanResume() {
+        assertTrue(PartialStore.canResume(METADATA));
+        assertTrue(PartialStore.canResume(new Metadata(null, 1000, 0, null)));
+        assertFalse(PartialStore.canResume(new Metadata(null, 0, 0, "W/\"weak\"")));
+        assertFalse(PartialStore.canResume(new Metadata(null, 0, 0, null)));
+        assertFalse(PartialStore.canResume(null));
+    }
+
+    public void testTrim() throws Exception {
+        PartialStore partials = PartialStore.open(directory, 2);
+        keep(partials, "a", METADATA);
+        new File(directory, "a").setLastModified(1000);
+        keep(partials, "b", METADATA);
+        keep(partials, "c", METADATA);
+
+        assertFalse(partials.contains("a"));
+        assertTrue(partials.contains("b"));
+        assertTrue(partials.contains("c"));
+    }
+
+    private static void keep(PartialStore partials, String key, Metadata metadata) throws IOException {
+        PartialStore.Writer writer = partials.begin(key, metadata);
+        writer.mirror(new ByteArrayOutputStream()).write(new byte[] { 1, 2, 3, 4 });
+        writer.keep();
+    }
+
+    private static void assertEntry(PartialStore.Entry entry, int length) throws IOException {
+        assertNotNull(entry);
+        assertEquals("\"abc\"", entry.getMetadata().getEtag());
+        assertEquals(length, entry.getLength());
+
+        InputStream is = entry.getInput();
+        try {
+            for (int i = 1; i <= length; i++) {
+                assertEquals(i, is.read());
+            }
+            assertEquals(-1, is.read());
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package com.webimageloader.loader;
+
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.webimageloader.Request;
+
+/**
+ * Measures how long the UI thread waits in {@link PendingRequests} while
+ * background threads are publishing progress, and checks it is shorter
+ * than with the previous design where every method synchronized on the
+ * same monitor.
+ */
+public class PendingRequestsContentionTest extends AndroidTestCase {
+    private static final String TAG = "PendingRequestsContentionTest";
+
+    private static final int REQUEST_COUNT = 64;
+    private static final int WORKER_COUNT = 4;
+    private static final int UI_ITERATIONS = 20000;
+    /** Each design is measured this many times, keeping the best run */
+    private static final int RUNS = 3;
+
+    private static final LoaderManager.Listener SLOW_LISTENER = new LoaderManager.Listener() {
+        @Override
+        public void onLoaded(Bitmap b) {}
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onProgress(float value) {
+            // Roughly the cost of obtaining and posting a message
+            long end = System.nanoTime() + 2000;
+            while (System.nanoTime() < end);
+        }
+    };
+
+    private static final LoaderManager.Listener EMPTY_LISTENER = new LoaderManager.Listener() {
+        @Override
+        public void onLoaded(Bitmap b) {}
+
+        @Override
+        public void onError(Throwable t) {}
+
+        @Override
+        public void onProgress(float value) {}
+    };
+
+    public void testUiThreadWaitTime() throws InterruptedException {
+        long locked = Long.MAX_VALUE;
+        long concurrent = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            // Alternate so both see the same background load
+            locked = Math.min(locked, measure(new LockedPendingRequests()));
+            concurrent = Math.min(concurrent, measure(new PendingRequests(null)));
+        }
+
+        Log.i(TAG, "UI thread time, single monitor: " + TimeUnit.NANOSECONDS.toMillis(locked) + " ms");
+        Log.i(TAG, "UI thread time, concurrent: " + TimeUnit.NANOSECONDS.toMillis(concurrent) + " ms");
+
+        assertTrue("UI thread waited " + concurrent + " ns, single monitor " + locked + " ns",
+                concurrent < locked);
+    }
+
+    public void testReuseAndCancel() {
+        PendingRequests pendingRequests = new PendingRequests(null);
+        LoaderRequest request = createRequest(0);
+
+        Object tag1 = new Object();
+        Object tag2 = new Object();
+
+        assertNotNull(pendingRequests.addRequest(tag1, request, EMPTY_LISTENER));
+        assertNull(pendingRequests.addRequest(tag2, request, EMPTY_LISTENER));
+
+        // The request is still needed by the second tag
+        pendingRequests.cancel(tag1);
+        assertNull(pendingRequests.addRequest(tag1, request, EMPTY_LISTENER));
+
+        pendingRequests.cancel(tag1);
+        pendingRequests.cancel(tag2);
+
+        // Everyone is gone, so we should get new work
+        assertNotNull(pendingRequests.addRequest(tag1, request, EMPTY_LISTENER));
+    }
+
+    private long measure(final PendingRequests pendingRequests) throws InterruptedException {
+        final LoaderRequest[] requests = new LoaderRequest[REQUEST_COUNT];
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            requests[i] = createRequest(i);
+
+            // Keep every request pending with an untagged listener
+            pendingRequests.addRequest(null, requests[i], SLOW_LISTENER);
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final CountDownLatch started = new CountDownLatch(WORKER_COUNT);
+        Thread[] workers = new Thread[WORKER_COUNT];
+        for (int i = 0; i < WORKER_COUNT; i++) {
+            final Random random = new Random(i);
+            workers[i] = new Thread() {
+                @Override
+                public void run() {
+                    started.countDown();
+                    while (running.get()) {
+                        LoaderRequest request = requests[random.nextInt(REQUEST_COUNT)];
+                        pendingRequests.publishProgress(request, random.nextFloat());
+                    }
+                }
+            };
+            workers[i].start();
+        }
+
+        started.await();
+
+        Random random = new Random();
+        Object[] tags = new Object[16];
+        for (int i = 0; i < tags.length; i++) {
+            tags[i] = new Object();
+        }
+
+        long waited = 0;
+        for (int i = 0; i < UI_ITERATIONS; i++) {
+            Object tag = tags[i % tags.length];
+            LoaderRequest request = requests[random.nextInt(REQUEST_COUNT)];
+
+            long start = System.nanoTime();
+            pendingRequests.getBitmap(tag, request);
+            pendingRequests.addRequest(tag, request, EMPTY_LISTENER);
+            waited += System.nanoTime() - start;
+        }
+
+        running.set(false);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        return waited;
+    }
+
+    private static LoaderRequest createRequest(int i) {
+        return new LoaderRequest("http://example.com/" + i + ".png", null, EnumSet.noneOf(Request.Flag.class));
+    }
+
+    /**
+     * The previous design, where everything synchronized on one monitor
+     */
+    private static class LockedPendingRequests extends PendingRequests {
+        public LockedPendingRequests() {
+            super(null);
+        }
+
+        @Override
+        public synchronized Bitmap getBitmap(Object tag, LoaderRequest request) {
+            return super.getBitmap(tag, request);
+        }
+
+        @Override
+        public synchronized LoaderWork addRequest(Object tag, LoaderRequest request, LoaderManager.Listener listener) {
+            return super.addRequest(tag, request, listener);
+        }
+
+        @Override
+        public synchronized void cancel(Object tag) {
+            super.cancel(tag);
+        }
+
+        @Override
+        protected synchronized void publishProgress(LoaderRequest request, float value) {
+            super.publishProgress(request, value);
+        }
+
+        @Override
+        protected synchronized void deliverResult(LoaderRequest request, Bitmap b, Metadata metadata) {
+            super.deliverResult(request, b, metadata);
+        }
+
+        @Override
+        protected synchronized void deliverError(LoaderRequest request, Throwable t) {
+            super.deliverError(request, t);
+        }
+    }
+}
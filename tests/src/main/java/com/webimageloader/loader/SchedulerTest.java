@@ -0,0 +1,160 @@
+package com.webimageloader.loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.test.AndroidTestCase;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.util.InputSupplier;
+
+public class SchedulerTest extends AndroidTestCase {
+    private static final Loader.Listener EMPTY_LISTENER = new Loader.Listener() {
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {}
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {}
+
+        @Override
+        public void onNotModified(Metadata metadata) {}
+
+        @Override
+        public void onError(Throwable t) {}
+    };
+
+    private static final ImageLoader.ProgressListener EMPTY_PROGRESS = new ImageLoader.ProgressListener() {
+        @Override
+        public void onProgress(float value) {}
+    };
+
+    public void testFifo() throws InterruptedException {
+        RecordingLoader loader = new RecordingLoader(Scheduler.FIFO);
+        loader.block();
+
+        start(loader, "a", Request.PRIORITY_LOW);
+        start(loader, "b", Request.PRIORITY_HIGH);
+        start(loader, "c", Request.PRIORITY_NORMAL);
+
+        assertEquals(list("a", "b", "c"), loader.finish(3));
+    }
+
+    public void testPriority() throws InterruptedException {
+        RecordingLoader loader = new RecordingLoader(Scheduler.PRIORITY);
+        loader.block();
+
+        start(loader, "a", Request.PRIORITY_NORMAL);
+        start(loader, "b", Request.PRIORITY_LOW);
+        start(loader, "c", Request.PRIORITY_HIGH);
+        start(loader, "d", Request.PRIORITY_NORMAL);
+
+        assertEquals(list("c", "a", "d", "b"), loader.finish(4));
+    }
+
+    public void testLifoWithinPriority() throws InterruptedException {
+        RecordingLoader loader = new RecordingLoader(Scheduler.PRIORITY_LIFO);
+        loader.block();
+
+        start(loader, "a", Request.PRIORITY_NORMAL);
+        start(loader, "b", Request.PRIORITY_NORMAL);
+        start(loader, "c", Request.PRIORITY_LOW);
+        start(loader, "d", Request.PRIORITY_NORMAL);
+
+        assertEquals(list("d", "b", "a", "c"), loader.finish(4));
+    }
+
+    public void testPrioritize() throws InterruptedException {
+        RecordingLoader loader = new RecordingLoader(Scheduler.PRIORITY_LIFO);
+        loader.block();
+
+        LoaderWork a = start(loader, "a", Request.PRIORITY_NORMAL);
+        start(loader, "b", Request.PRIORITY_NORMAL);
+        LoaderWork c = start(loader, "c", Request.PRIORITY_LOW);
+
+        // Requested again, it should go before b
+        a.prioritize(Request.PRIORITY_NORMAL);
+        // Raised priority
+        c.prioritize(Request.PRIORITY_HIGH);
+
+        assertEquals(list("c", "a", "b"), loader.finish(3));
+    }
+
+    public void testCancelRemovesFromQueue() throws InterruptedException {
+        RecordingLoader loader = new RecordingLoader(Scheduler.PRIORITY);
+        loader.block();
+
+        LoaderWork a = start(loader, "a", Request.PRIORITY_NORMAL);
+        start(loader, "b", Request.PRIORITY_NORMAL);
+
+        a.cancel();
+
+        assertEquals(list("b"), loader.finish(1));
+    }
+
+    private static LoaderWork start(Loader loader, String url, int priority) {
+        LoaderWork work = new LoaderWork(EMPTY_LISTENER, EMPTY_PROGRESS, priority);
+        LoaderRequest request = new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class), priority);
+        work.start(Collections.singletonList(loader), request);
+
+        return work;
+    }
+
+    private static List<String> list(String... urls) {
+        List<String> list = new ArrayList<String>();
+        Collections.addAll(list, urls);
+
+        return list;
+    }
+
+    /**
+     * Single threaded loader recording in which order requests are loaded
+     */
+    private static class RecordingLoader extends SimpleBackgroundLoader {
+        private final CountDownLatch blocker = new CountDownLatch(1);
+        private final CountDownLatch started = new CountDownLatch(1);
+        private final List<String> loaded = Collections.synchronizedList(new ArrayList<String>());
+
+        private CountDownLatch done;
+
+        public RecordingLoader(Scheduler scheduler) {
+            super("Test", Process.THREAD_PRIORITY_DEFAULT, 1, scheduler);
+        }
+
+        /**
+         * Occupy the only thread so that the following requests are queued
+         */
+        public void block() throws InterruptedException {
+            start(this, "blocker", Request.PRIORITY_NORMAL);
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+        }
+
+        public List<String> finish(int count) throws InterruptedException {
+            done = new CountDownLatch(count);
+            blocker.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+
+            close();
+
+            return new ArrayList<String>(loaded);
+        }
+
+        @Override
+        protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+            if ("blocker".equals(request.getUrl())) {
+                started.countDown();
+                blocker.await();
+                return;
+            }
+
+            loaded.add(request.getUrl());
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.webimageloader.loader;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import android.graphics.Bitmap;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.util.InputSupplier;
+
+/**
+ * Work which ignores its results, for tests which only need a
+ * {@link LoaderWork.Manager} to cancel or to check for cancellation
+ */
+final class TestWork {
+    static LoaderWork create() {
+        return new LoaderWork(new Loader.Listener() {
+            @Override
+            public void onStreamLoaded(InputSupplier input, Metadata metadata) {}
+
+            @Override
+            public void onBitmapLoaded(Bitmap b, Metadata metadata) {}
+
+            @Override
+            public void onNotModified(Metadata metadata) {}
+
+            @Override
+            public void onError(Throwable t) {}
+        }, new ImageLoader.ProgressListener() {
+            @Override
+            public void onProgress(float value) {}
+        });
+    }
+
+    /**
+     * Start the work with a loader which does nothing
+     *
+     * @return the manager handed to the loader
+     */
+    static LoaderWork.Manager start(LoaderWork work) {
+        final LoaderWork.Manager[] manager = new LoaderWork.Manager[1];
+        Loader loader = new Loader() {
+            @Override
+            public void load(LoaderWork.Manager m, LoaderRequest request) {
+                manager[0] = m;
+            }
+        };
+
+        work.start(Collections.singletonList(loader), new LoaderRequest("test", null, EnumSet.noneOf(Request.Flag.class)));
+
+        return manager[0];
+    }
+
+    private TestWork() {}
+}
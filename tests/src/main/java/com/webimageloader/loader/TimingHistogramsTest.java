@@ -0,0 +1,99 @@
+package com.webimageloader.loader;
+
+import java.util.Collections;
+import java.util.EnumSet;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.loader.TimingListener.Source;
+import com.webimageloader.loader.TimingListener.Stage;
+import com.webimageloader.util.InputSupplier;
+
+public class TimingHistogramsTest extends AndroidTestCase {
+    private static final LoaderRequest REQUEST = new LoaderRequest("test", null, EnumSet.noneOf(Request.Flag.class));
+
+    public void testEmpty() {
+        TimingHistograms histograms = new TimingHistograms();
+        TimingHistograms.Histogram h = histograms.getHistogram(Stage.DECODE, Source.DISK);
+
+        assertEquals(0, h.count);
+        assertEquals(0, h.getMeanNanos());
+        assertEquals(0, h.getPercentileNanos(50));
+    }
+
+    public void testPercentiles() {
+        TimingHistograms histograms = new TimingHistograms();
+        for (int i = 0; i < 90; i++) {
+            histograms.onTiming(REQUEST, Stage.DOWNLOAD, Source.NETWORK, 1000);
+        }
+        for (int i = 0; i < 10; i++) {
+            histograms.onTiming(REQUEST, Stage.DOWNLOAD, Source.NETWORK, 1000000);
+        }
+
+        TimingHistograms.Histogram h = histograms.getHistogram(Stage.DOWNLOAD, Source.NETWORK);
+        assertEquals(100, h.count);
+        assertEquals((90 * 1000L + 10 * 1000000L) / 100, h.getMeanNanos());
+
+        // Percentiles are within a factor of two
+        assertBetween(1000, 2000, h.getPercentileNanos(50));
+        assertBetween(1000, 2000, h.getPercentileNanos(90));
+        assertBetween(1000000, 2000000, h.getPercentileNanos(99));
+    }
+
+    public void testSeparatedBySource() {
+        TimingHistograms histograms = new TimingHistograms();
+        histograms.onTiming(REQUEST, Stage.QUEUE_WAIT, Source.DISK, 10);
+        histograms.onTiming(REQUEST, Stage.QUEUE_WAIT, Source.NETWORK, 10);
+        histograms.onTiming(REQUEST, Stage.DELIVERY, null, 10);
+
+        assertEquals(1, histograms.getHistogram(Stage.QUEUE_WAIT, Source.DISK).count);
+        assertEquals(0, histograms.getHistogram(Stage.QUEUE_WAIT, Source.MEMORY).count);
+        assertEquals(2, histograms.getHistogram(Stage.QUEUE_WAIT).count);
+        assertEquals(1, histograms.getHistogram(Stage.DELIVERY, null).count);
+
+        histograms.reset();
+        assertEquals(0, histograms.getHistogram(Stage.QUEUE_WAIT).count);
+    }
+
+    public void testWorkUsesSource() {
+        TimingHistograms histograms = new TimingHistograms();
+        LoaderWork work = new LoaderWork(new Loader.Listener() {
+            @Override
+            public void onStreamLoaded(InputSupplier input, Metadata metadata) {}
+
+            @Override
+            public void onBitmapLoaded(Bitmap b, Metadata metadata) {}
+
+            @Override
+            public void onNotModified(Metadata metadata) {}
+
+            @Override
+            public void onError(Throwable t) {}
+        }, new ImageLoader.ProgressListener() {
+            @Override
+            public void onProgress(float value) {}
+        }, Request.PRIORITY_NORMAL, histograms);
+
+        work.recordTiming(REQUEST, Stage.DECODE, System.nanoTime());
+        assertEquals(1, histograms.getHistogram(Stage.DECODE, null).count);
+
+        final LoaderWork.Manager[] manager = new LoaderWork.Manager[1];
+        work.start(Collections.singletonList((Loader) new Loader() {
+            @Override
+            public void load(LoaderWork.Manager m, LoaderRequest request) {
+                manager[0] = m;
+            }
+        }), REQUEST);
+
+        manager[0].setSource(Source.DISK);
+        work.recordTiming(REQUEST, Stage.DECODE, System.nanoTime());
+        assertEquals(1, histograms.getHistogram(Stage.DECODE, Source.DISK).count);
+    }
+
+    private static void assertBetween(long min, long max, long actual) {
+        assertTrue(actual + " not in [" + min + ", " + max + "]", actual >= min && actual <= max);
+    }
+}
@@ -0,0 +1,174 @@
+package com.webimageloader.loader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+
+import com.webimageloader.ImageLoader;
+import com.webimageloader.Request;
+import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.InputSupplier;
+
+public class TransformingLoaderTest extends AndroidTestCase {
+    private static final ImageLoader.ProgressListener EMPTY_PROGRESS = new ImageLoader.ProgressListener() {
+        @Override
+        public void onProgress(float value) {}
+    };
+
+    private SourceLoader source;
+    private TransformingLoader loader;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        source = new SourceLoader();
+        loader = new TransformingLoader(null, Collections.<Loader>singletonList(source), null);
+    }
+
+    public void testSharesSource() {
+        ResultListener small = new ResultListener();
+        ResultListener large = new ResultListener();
+
+        start(new SizeTransformation(10), small);
+        start(new SizeTransformation(20), large);
+
+        assertEquals(1, source.managers.size());
+
+        source.deliver(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertEquals(10, small.bitmap.getWidth());
+        assertEquals(20, large.bitmap.getWidth());
+    }
+
+    public void testDifferentFlagsDontShareSource() {
+        start(new SizeTransformation(10), new ResultListener());
+        start(new SizeTransformation(20), new ResultListener(), EnumSet.of(Request.Flag.IGNORE_CACHE));
+        start(new SizeTransformation(30), new ResultListener(), EnumSet.of(Request.Flag.NO_CACHE));
+        start(new SizeTransformation(40), new ResultListener(), EnumSet.of(Request.Flag.SKIP_DISK_CACHE));
+        start(new SizeTransformation(50), new ResultListener(), EnumSet.of(Request.Flag.SKIP_DISK_CACHE));
+
+        assertEquals(4, source.managers.size());
+        assertTrue(source.requests.get(3).hasFlag(Request.Flag.SKIP_DISK_CACHE));
+    }
+
+    public void testNewSourceAfterDelivery() {
+        start(new SizeTransformation(10), new ResultListener());
+        source.deliver(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        start(new SizeTransformation(20), new ResultListener());
+
+        assertEquals(2, source.managers.size());
+    }
+
+    public void testCancelledWhenNobodyWaits() {
+        LoaderWork a = start(new SizeTransformation(10), new ResultListener());
+        LoaderWork b = start(new SizeTransformation(20), new ResultListener());
+
+        LoaderWork.Manager shared = source.managers.get(0);
+
+        a.cancel();
+        assertFalse(shared.isCancelled());
+
+        b.cancel();
+        assertTrue(shared.isCancelled());
+    }
+
+    public void testCancelledWaiterNotDelivered() {
+        ResultListener cancelled = new ResultListener();
+        ResultListener waiting = new ResultListener();
+
+        LoaderWork work = start(new SizeTransformation(10), cancelled);
+        start(new SizeTransformation(20), waiting);
+
+        work.cancel();
+        source.deliver(Bitmap.createBitmap(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertNull(cancelled.bitmap);
+        assertEquals(20, waiting.bitmap.getWidth());
+    }
+
+    private LoaderWork start(Transformation transformation, ResultListener listener) {
+        return start(transformation, listener, EnumSet.noneOf(Request.Flag.class));
+    }
+
+    private LoaderWork start(Transformation transformation, ResultListener listener, EnumSet<Request.Flag> flags) {
+        LoaderWork work = new LoaderWork(listener, EMPTY_PROGRESS);
+        work.start(Collections.<Loader>singletonList(loader), new LoaderRequest("test", transformation, flags));
+
+        return work;
+    }
+
+    /**
+     * Source which delivers when told to
+     */
+    private static class SourceLoader implements Loader {
+        private List<LoaderWork.Manager> managers = new ArrayList<LoaderWork.Manager>();
+        private List<LoaderRequest> requests = new ArrayList<LoaderRequest>();
+
+        @Override
+        public void load(LoaderWork.Manager manager, LoaderRequest request) {
+            assertNull(request.getTransformation());
+
+            managers.add(manager);
+            requests.add(request);
+        }
+
+        public void deliver(Bitmap b) {
+            managers.get(managers.size() - 1).deliverBitmap(b, new Metadata(null, 0, 0, null));
+        }
+    }
+
+    private static class ResultListener implements Loader.Listener {
+        private Bitmap bitmap;
+
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {}
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            bitmap = b;
+        }
+
+        @Override
+        public void onNotModified(Metadata metadata) {}
+
+        @Override
+        public void onError(Throwable t) {
+            fail(t.toString());
+        }
+    }
+
+    private static class SizeTransformation implements Transformation {
+        private int size;
+
+        public SizeTransformation(int size) {
+            this.size = size;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return "size-" + size;
+        }
+
+        @Override
+        public Bitmap.CompressFormat getCompressFormat() {
+            return null;
+        }
+
+        @Override
+        public Bitmap transform(InputSupplier input) throws IOException {
+            throw new IOException("Not supported");
+        }
+
+        @Override
+        public Bitmap transform(Bitmap b) {
+            return Bitmap.createScaledBitmap(b, size, size, true);
+        }
+    }
+}
@@ -7,6 +7,9 @@ import java.io.InputStream;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -19,7 +22,9 @@ import android.test.AndroidTestCase;
 
 import com.webimageloader.ImageLoader;
 import com.webimageloader.ImageLoader.Listener;
+import com.webimageloader.PreloadBatch;
 import com.webimageloader.Request;
+import com.webimageloader.loader.LoaderRequest;
 import com.webimageloader.transformation.SimpleTransformation;
 
 @TargetApi(16)
@@ -86,6 +91,29 @@ public class ImageLoaderTestCase extends AndroidTestCase {
         assertTrue(correctFile.sameAs(b));
     }
 
+    public void testDiskCacheTee() throws IOException {
+        int random = Math.abs(new Random().nextInt());
+        File cacheDir = new File(getContext().getCacheDir(), String.valueOf(random));
+        MockURLStreamHandler handler = new MockURLStreamHandler(getContext().getAssets());
+
+        ImageLoader loader = new ImageLoader.Builder(getContext())
+                .enableDiskCache(cacheDir, TEN_MEGABYTES)
+                .enableDiskCacheTee()
+                .addURLSchemeHandler("mock", handler)
+                .build();
+
+        try {
+            assertTrue(correctFile.sameAs(loader.loadBlocking(CORRECT_MOCK_FILE_PATH)));
+            assertEquals(1, handler.timesOpened);
+
+            // Saved while decoding, should now come from disk
+            assertTrue(correctFile.sameAs(loader.loadBlocking(CORRECT_MOCK_FILE_PATH)));
+            assertEquals(1, handler.timesOpened);
+        } finally {
+            loader.destroy();
+        }
+    }
+
     public void testTag() throws InterruptedException {
         final CountDownLatch latch = new CountDownLatch(1);
 
@@ -144,6 +172,28 @@ public class ImageLoaderTestCase extends AndroidTestCase {
         }
     }
 
+    public void testMissingImageRemembered() throws IOException {
+        ImageLoader loader = new ImageLoader.Builder(getContext())
+                .enableMemoryCache(TEN_MEGABYTES)
+                .enableNegativeCache(16)
+                .addURLSchemeHandler("mock", streamHandler)
+                .build();
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                loader.loadBlocking(WRONG_FILE_PATH);
+                fail("Should have thrown an exception");
+            } catch (FileNotFoundException e) {
+                // Expected
+            }
+        }
+
+        assertEquals(1, loader.getNegativeCacheInfo().hitCount);
+        assertNull(this.loader.getNegativeCacheInfo());
+
+        loader.destroy();
+    }
+
     public void testMemory() throws IOException {
         loader.loadBlocking(CORRECT_MOCK_FILE_PATH);
         Bitmap b = loader.load(null, CORRECT_MOCK_FILE_PATH, EMPTY_LISTENER);
@@ -456,6 +506,58 @@ public class ImageLoaderTestCase extends AndroidTestCase {
         assertEquals(1f, h.value);
     }
 
+    public void testPreloadAll() throws InterruptedException, IOException {
+        PreloadBatch batch = loader.preloadAll(createRequests(10), 2, null);
+
+        assertTrue(batch.await(TIMEOUT * 5, TimeUnit.SECONDS));
+        assertTrue(batch.isFinished());
+        assertEquals(10, batch.getCompletedCount());
+        assertEquals(0, batch.getFailedCount());
+        assertEquals(1f, batch.getProgress());
+        assertEquals(10, streamHandler.timesOpened);
+
+        // Should now be in memory
+        assertNotNull(loader.getMemoryCache().get(toLoaderRequest(createRequests(10).get(3))));
+    }
+
+    public void testPreloadAllDiskOnly() throws InterruptedException, IOException {
+        List<Request> requests = createRequests(5);
+        for (Request request : requests) {
+            request.addFlag(Request.Flag.DISK_ONLY);
+        }
+
+        PreloadBatch batch = loader.preloadAll(requests);
+        assertTrue(batch.await(TIMEOUT * 5, TimeUnit.SECONDS));
+        assertEquals(5, streamHandler.timesOpened);
+
+        // Not decoded into memory but available on disk
+        Request request = createRequests(5).get(2);
+        assertNull(loader.getMemoryCache().get(toLoaderRequest(request)));
+        assertTrue(correctFile.sameAs(loader.loadBlocking(request)));
+        assertEquals(5, streamHandler.timesOpened);
+    }
+
+    public void testPreloadAllCancel() throws InterruptedException {
+        PreloadBatch batch = loader.preloadAll(createRequests(10), 1, null);
+        batch.cancel();
+
+        assertTrue(batch.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(batch.isCancelled() || batch.isFinished());
+    }
+
+    private static List<Request> createRequests(int count) {
+        List<Request> requests = new ArrayList<Request>();
+        for (int i = 0; i < count; i++) {
+            requests.add(new Request(CORRECT_MOCK_FILE_PATH + "/" + i));
+        }
+
+        return requests;
+    }
+
+    private static LoaderRequest toLoaderRequest(Request request) {
+        return new LoaderRequest(request.getUrl(), null, EnumSet.noneOf(Request.Flag.class));
+    }
+
     private static class IdentityTransformation extends SimpleTransformation {
         @Override
         public String getIdentifier() {
@@ -0,0 +1,85 @@
+package com.webimageloader.util;
+
+import java.util.Random;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Replays a trace of a feed where a small set of images (avatars, headers)
+ * is seen all the time while the user flings through long lists of
+ * thumbnails which are never seen again.
+ */
+public class AdmissionTraceTest extends AndroidTestCase {
+    private static final String TAG = "AdmissionTraceTest";
+
+    private static final int CACHE_SIZE = 100;
+    private static final int HOT_KEYS = 60;
+    private static final int SCAN_LENGTH = 400;
+    private static final int ROUNDS = 50;
+
+    public void testScanResistance() {
+        int[] trace = createTrace();
+
+        ConcurrentLruCache<Integer, Integer> lru = new ConcurrentLruCache<Integer, Integer>(CACHE_SIZE);
+        ConcurrentLruCache<Integer, Integer> tinyLfu = new ConcurrentLruCache<Integer, Integer>(CACHE_SIZE, true);
+
+        replay(lru, trace);
+        replay(tinyLfu, trace);
+
+        float lruHitRate = hitRate(lru);
+        float tinyLfuHitRate = hitRate(tinyLfu);
+
+        Log.i(TAG, "LRU hit rate: " + lruHitRate + ", " + lru);
+        Log.i(TAG, "TinyLFU hit rate: " + tinyLfuHitRate + ", " + tinyLfu + ", rejected " + tinyLfu.rejectedCount());
+
+        assertTrue(tinyLfu.size() <= CACHE_SIZE);
+        assertTrue(tinyLfu.rejectedCount() > 0);
+        assertTrue("TinyLFU should beat LRU on scans", tinyLfuHitRate > lruHitRate);
+    }
+
+    public void testRecencyWithoutScans() {
+        // Without any scans the hot set fits and both policies should hit
+        ConcurrentLruCache<Integer, Integer> tinyLfu = new ConcurrentLruCache<Integer, Integer>(CACHE_SIZE, true);
+
+        Random random = new Random(0);
+        for (int i = 0; i < 10000; i++) {
+            access(tinyLfu, random.nextInt(HOT_KEYS));
+        }
+
+        assertTrue(hitRate(tinyLfu) > 0.95f);
+    }
+
+    private static int[] createTrace() {
+        Random random = new Random(42);
+
+        int[] trace = new int[ROUNDS * SCAN_LENGTH * 2];
+        int unique = HOT_KEYS;
+        int i = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            // While scrolling, every other image is one of the hot ones
+            for (int j = 0; j < SCAN_LENGTH; j++) {
+                trace[i++] = random.nextInt(HOT_KEYS);
+                trace[i++] = unique++;
+            }
+        }
+
+        return trace;
+    }
+
+    private static void replay(ConcurrentLruCache<Integer, Integer> cache, int[] trace) {
+        for (int key : trace) {
+            access(cache, key);
+        }
+    }
+
+    private static void access(ConcurrentLruCache<Integer, Integer> cache, int key) {
+        if (cache.get(key) == null) {
+            cache.put(key, key);
+        }
+    }
+
+    private static float hitRate(ConcurrentLruCache<?, ?> cache) {
+        return (float) cache.hitCount() / (cache.hitCount() + cache.missCount());
+    }
+}
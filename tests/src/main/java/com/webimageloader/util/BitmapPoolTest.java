@@ -0,0 +1,164 @@
+package com.webimageloader.util;
+
+import java.util.EnumSet;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+import com.webimageloader.Request;
+import com.webimageloader.loader.LoaderRequest;
+import com.webimageloader.loader.MemoryCache;
+
+public class BitmapPoolTest extends AndroidTestCase {
+    private static final int BITMAP_SIZE = 10 * 10 * 4;
+
+    public void testReuseSameSize() {
+        if (!BitmapPool.isSupported()) {
+            return;
+        }
+
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE);
+        Bitmap b = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        assertTrue(pool.put(b));
+        assertEquals(BITMAP_SIZE, pool.size());
+
+        assertSame(b, pool.get(options(10, 10)));
+        assertNull(pool.get(options(10, 10)));
+        assertEquals(0, pool.size());
+    }
+
+    public void testRejectsUnusable() {
+        if (!BitmapPool.isSupported()) {
+            return;
+        }
+
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE);
+
+        assertFalse(pool.put(Bitmap.createBitmap(10, 10, Bitmap.Config.RGB_565)));
+
+        Bitmap recycled = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        assertFalse(pool.put(recycled));
+
+        // Would take up more than half the pool
+        assertFalse(pool.put(Bitmap.createBitmap(30, 30, Bitmap.Config.ARGB_8888)));
+    }
+
+    public void testOldVersionsOnlyReuseJpegAndPng() {
+        if (!BitmapPool.isSupported() || Android.isAPI(19)) {
+            return;
+        }
+
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE);
+        Bitmap b = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        pool.put(b);
+
+        BitmapFactory.Options gif = options(10, 10);
+        gif.outMimeType = "image/gif";
+        assertNull(pool.get(gif));
+
+        BitmapFactory.Options png = options(10, 10);
+        png.outMimeType = "image/png";
+        assertSame(b, pool.get(png));
+    }
+
+    public void testEvictsOldest() {
+        if (!BitmapPool.isSupported()) {
+            return;
+        }
+
+        BitmapPool pool = new BitmapPool(2 * BITMAP_SIZE);
+        Bitmap first = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap second = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        Bitmap third = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertEquals(2 * BITMAP_SIZE, pool.size());
+        assertEquals(1, pool.getDebugInfo().evictionCount);
+        assertSame(second, pool.get(options(10, 10)));
+        assertSame(third, pool.get(options(10, 10)));
+    }
+
+    public void testMemoryCacheFeedsPool() {
+        if (!BitmapPool.isSupported()) {
+            return;
+        }
+
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE);
+        MemoryCache cache = new MemoryCache(8 * BITMAP_SIZE, MemoryCache.Policy.LRU, pool);
+
+        Bitmap shared = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        cache.put(request("a"), shared, null);
+        cache.put(request("b"), shared, null);
+        cache.release(shared);
+
+        for (int i = 0; i < 7; i++) {
+            cache.put(request("filler" + i), Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888), null);
+        }
+
+        // Only one of the keys using the shared bitmap has been evicted
+        assertEquals(0, pool.getDebugInfo().putCount);
+
+        cache.put(request("filler7"), Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888), null);
+        assertEquals(1, pool.getDebugInfo().putCount);
+        assertSame(shared, pool.get(options(10, 10)));
+
+        cache.evictAll();
+        assertEquals(0, pool.size());
+    }
+
+    public void testEvictedBitmapsNotPooledUntilReleased() {
+        if (!BitmapPool.isSupported()) {
+            return;
+        }
+
+        BitmapPool pool = new BitmapPool(10 * BITMAP_SIZE);
+        MemoryCache cache = new MemoryCache(8 * BITMAP_SIZE, MemoryCache.Policy.LRU, pool);
+
+        Bitmap first = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        cache.put(request("first"), first, null);
+        cache.trimToSize(0);
+
+        // Evicted but possibly still on screen
+        assertEquals(0, pool.getDebugInfo().putCount);
+        assertSame(first, cache.get(request("first")).bitmap);
+
+        // Handed out again after the release
+        cache.release(first);
+        assertSame(first, cache.get(request("first")).bitmap);
+        cache.trimToSize(0);
+        assertEquals(0, pool.getDebugInfo().putCount);
+
+        // Released after it has been evicted
+        cache.release(first);
+        assertEquals(1, pool.getDebugInfo().putCount);
+        assertNull(cache.get(request("first")));
+
+        // Released before it has been evicted
+        Bitmap second = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+        cache.put(request("second"), second, null);
+        cache.release(second);
+        assertEquals(1, pool.getDebugInfo().putCount);
+
+        cache.trimToSize(0);
+        assertEquals(2, pool.getDebugInfo().putCount);
+        assertNull(cache.get(request("second")));
+    }
+
+    private static BitmapFactory.Options options(int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+
+        return options;
+    }
+
+    private static LoaderRequest request(String url) {
+        return new LoaderRequest(url, null, EnumSet.noneOf(Request.Flag.class));
+    }
+}
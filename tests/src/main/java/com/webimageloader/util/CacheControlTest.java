@@ -0,0 +1,49 @@
+package com.webimageloader.util;
+
+import android.test.AndroidTestCase;
+
+public class CacheControlTest extends AndroidTestCase {
+    public void testEmpty() {
+        CacheControl cacheControl = CacheControl.parse(null);
+
+        assertEquals(-1, cacheControl.getMaxAge());
+        assertEquals(-1, cacheControl.getStaleWhileRevalidate());
+        assertFalse(cacheControl.isNoCache());
+        assertFalse(cacheControl.isNoStore());
+    }
+
+    public void testDirectives() {
+        CacheControl cacheControl = CacheControl.parse("public, Max-Age=600, s-maxage=60, stale-while-revalidate=30,stale-if-error=86400, immutable");
+
+        assertEquals(600, cacheControl.getMaxAge());
+        assertEquals(60, cacheControl.getSMaxAge());
+        assertEquals(30, cacheControl.getStaleWhileRevalidate());
+        assertEquals(86400, cacheControl.getStaleIfError());
+        assertTrue(cacheControl.isImmutable());
+        assertFalse(cacheControl.isMustRevalidate());
+    }
+
+    public void testFlags() {
+        CacheControl cacheControl = CacheControl.parse("no-cache, no-store, proxy-revalidate");
+
+        assertTrue(cacheControl.isNoCache());
+        assertTrue(cacheControl.isNoStore());
+        assertTrue(cacheControl.isMustRevalidate());
+    }
+
+    public void testQuotedValues() {
+        // Only the listed header needs revalidation, not the image
+        CacheControl cacheControl = CacheControl.parse("private=\"Set-Cookie, Vary\", no-cache=\"Set-Cookie\", max-age=\"120\"");
+
+        assertFalse(cacheControl.isNoCache());
+        assertEquals(120, cacheControl.getMaxAge());
+    }
+
+    public void testInvalidValues() {
+        assertEquals(-1, CacheControl.parse("max-age=abc").getMaxAge());
+        assertEquals(-1, CacheControl.parse("max-age=-5").getMaxAge());
+        assertEquals(-1, CacheControl.parse("max-age").getMaxAge());
+        assertEquals(Integer.MAX_VALUE, CacheControl.parse("max-age=99999999999999999999").getMaxAge());
+        assertEquals(10, CacheControl.parse(",, max-age = 10 ,").getMaxAge());
+    }
+}
@@ -0,0 +1,135 @@
+package com.webimageloader.util;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Compares multi-threaded throughput of {@link LruCache} and
+ * {@link ConcurrentLruCache} with a read heavy workload, similar to
+ * what the memory cache sees while scrolling.
+ */
+public class CacheThroughputTest extends AndroidTestCase {
+    private static final String TAG = "CacheThroughputTest";
+
+    private static final int MAX_SIZE = 256;
+    private static final int KEY_SPACE = 320;
+    private static final int THREAD_COUNT = 4;
+    private static final int OPERATIONS = 200000;
+
+    // One write for every 16 reads
+    private static final int WRITE_RATIO = 16;
+
+    public void testThroughput() throws InterruptedException {
+        final LruCache<Integer, Integer> lruCache = new LruCache<Integer, Integer>(MAX_SIZE);
+        long lru = run(new Cache() {
+            @Override
+            public Integer get(Integer key) {
+                return lruCache.get(key);
+            }
+
+            @Override
+            public void put(Integer key, Integer value) {
+                lruCache.put(key, value);
+            }
+        });
+
+        final ConcurrentLruCache<Integer, Integer> concurrentCache = new ConcurrentLruCache<Integer, Integer>(MAX_SIZE);
+        long concurrent = run(new Cache() {
+            @Override
+            public Integer get(Integer key) {
+                return concurrentCache.get(key);
+            }
+
+            @Override
+            public void put(Integer key, Integer value) {
+                concurrentCache.put(key, value);
+            }
+        });
+
+        Log.i(TAG, "LruCache: " + lru + " ops/s, " + lruCache);
+        Log.i(TAG, "ConcurrentLruCache: " + concurrent + " ops/s, " + concurrentCache);
+
+        assertTrue(concurrentCache.size() <= MAX_SIZE);
+    }
+
+    public void testEviction() {
+        final Holder<Integer> evicted = new Holder<Integer>();
+
+        ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<Integer, Integer>(3) {
+            @Override
+            protected void entryRemoved(boolean wasEvicted, Integer key, Integer oldValue, Integer newValue) {
+                if (wasEvicted) {
+                    evicted.value = key;
+                }
+            }
+        };
+
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.put(3, 3);
+
+        // 1 was used recently and should get a second chance
+        cache.get(1);
+        cache.put(4, 4);
+
+        assertEquals(Integer.valueOf(2), evicted.value);
+        assertEquals(3, cache.size());
+        assertNotNull(cache.get(1));
+        assertNull(cache.get(2));
+
+        cache.evictAll();
+        assertEquals(0, cache.size());
+    }
+
+    private long run(final Cache cache) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREAD_COUNT);
+        final AtomicLong elapsed = new AtomicLong();
+
+        for (int i = 0; i < THREAD_COUNT; i++) {
+            final Random random = new Random(i);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    long begin = System.nanoTime();
+                    for (int j = 0; j < OPERATIONS; j++) {
+                        Integer key = random.nextInt(KEY_SPACE);
+                        if (j % WRITE_RATIO == 0) {
+                            cache.put(key, key);
+                        } else {
+                            cache.get(key);
+                        }
+                    }
+                    elapsed.addAndGet(System.nanoTime() - begin);
+
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        long averageNanos = elapsed.get() / THREAD_COUNT;
+        return (long) THREAD_COUNT * OPERATIONS * 1000000000L / Math.max(1, averageNanos);
+    }
+
+    private interface Cache {
+        Integer get(Integer key);
+        void put(Integer key, Integer value);
+    }
+
+    private static class Holder<T> {
+        public T value;
+    }
+}
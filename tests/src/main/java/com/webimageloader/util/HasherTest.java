@@ -0,0 +1,55 @@
+package com.webimageloader.util;
+
+import java.util.Arrays;
+
+import android.test.AndroidTestCase;
+
+public class HasherTest extends AndroidTestCase {
+    private Hasher hasher = new Hasher();
+
+    public void testSha1() {
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", hasher.hash("abc"));
+        assertEquals("da39a3ee5e6b4b0d3255bfef95601890afd80709", hasher.hash(""));
+    }
+
+    public void testNonAscii() {
+        // SHA-1 of the UTF-8 bytes
+        assertEquals("d127d3833921b504f8d78de20a6063256a29c92f", hasher.hash("\u00e5\u00e4\u00f6"));
+    }
+
+    public void testLongKey() {
+        char[] chars = new char[2000];
+        Arrays.fill(chars, 'a');
+        String key = new String(chars);
+
+        String first = hasher.hash(key);
+        assertEquals(first, hasher.hash(key));
+        assertFalse(first.equals(hasher.hash(key + "a")));
+    }
+
+    public void testThreads() throws InterruptedException {
+        final String expected = hasher.hash("http://example.com/image.jpg");
+        final boolean[] failed = new boolean[1];
+
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (!expected.equals(hasher.hash("http://example.com/image.jpg"))) {
+                            failed[0] = true;
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertFalse(failed[0]);
+    }
+}
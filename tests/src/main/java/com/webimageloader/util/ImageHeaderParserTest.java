@@ -0,0 +1,130 @@
+package com.webimageloader.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.test.AndroidTestCase;
+
+public class ImageHeaderParserTest extends AndroidTestCase {
+    public void testPng() throws IOException {
+        assertSize(encode(Bitmap.CompressFormat.PNG, 120, 80), 120, 80, "image/png");
+    }
+
+    public void testJpeg() throws IOException {
+        assertSize(encode(Bitmap.CompressFormat.JPEG, 120, 80), 120, 80, "image/jpeg");
+    }
+
+    public void testJpegWithMetadata() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, 0xff, 0xd8);
+        // APP1 segment of 1000 bytes, such as EXIF
+        write(out, 0xff, 0xe1, 1000 >> 8, 1000 & 0xff);
+        out.write(new byte[998]);
+        // Fill bytes before SOF2
+        write(out, 0xff, 0xff, 0xc2, 0, 17, 8, 0x01, 0x2c, 0x02, 0x58);
+
+        assertSize(out.toByteArray(), 600, 300, "image/jpeg");
+    }
+
+    public void testGif() throws IOException {
+        byte[] gif = { 'G', 'I', 'F', '8', '9', 'a', (byte) 0x90, 0x01, 0x2c, 0x01 };
+        assertSize(gif, 400, 300, "image/gif");
+    }
+
+    public void testWebpLossy() throws IOException {
+        ByteArrayOutputStream out = webp("VP8 ");
+        // Frame tag, start code, 14 bit dimensions
+        write(out, 0, 0, 0, 0x9d, 0x01, 0x2a, 0x40, 0x01, 0xf0, 0x00);
+
+        assertSize(out.toByteArray(), 320, 240, "image/webp");
+    }
+
+    public void testWebpLossless() throws IOException {
+        ByteArrayOutputStream out = webp("VP8L");
+        // Signature, then 14 bits each of width - 1 and height - 1
+        int width = 99;
+        int height = 49;
+        int bits = width | (height << 14);
+        write(out, 0x2f, bits & 0xff, (bits >> 8) & 0xff, (bits >> 16) & 0xff, (bits >> 24) & 0xff);
+
+        assertSize(out.toByteArray(), 100, 50, "image/webp");
+    }
+
+    public void testWebpExtended() throws IOException {
+        ByteArrayOutputStream out = webp("VP8X");
+        // Flags, then 24 bits each of width - 1 and height - 1
+        write(out, 0, 0, 0, 0, 0xff, 0x07, 0, 0x37, 0x04, 0);
+
+        assertSize(out.toByteArray(), 2048, 1080, "image/webp");
+    }
+
+    public void testUnknownFormat() throws IOException {
+        byte[] data = { 'B', 'M', 0, 0, 0, 0 };
+        assertFalse(ImageHeaderParser.readSize(new ByteArrayInputStream(data), new BitmapFactory.Options(), 1024));
+    }
+
+    public void testGivesUpAfterLimit() throws IOException {
+        byte[] jpeg = encode(Bitmap.CompressFormat.JPEG, 120, 80);
+
+        assertFalse(ImageHeaderParser.readSize(new ByteArrayInputStream(jpeg), new BitmapFactory.Options(), 4));
+    }
+
+    public void testSampledDecodeOpensStreamOnce() throws IOException {
+        final byte[] png = encode(Bitmap.CompressFormat.PNG, 400, 400);
+        final int[] opened = new int[1];
+
+        InputSupplier input = new InputSupplier() {
+            @Override
+            public long getLength() throws IOException {
+                return png.length;
+            }
+
+            @Override
+            public InputStream getInput() throws IOException {
+                opened[0]++;
+                return new ByteArrayInputStream(png);
+            }
+        };
+
+        Bitmap b = BitmapUtils.decodeSampledStream(input, 100, 100);
+
+        assertEquals(1, opened[0]);
+        assertEquals(100, b.getWidth());
+        assertEquals(100, b.getHeight());
+    }
+
+    private static void assertSize(byte[] data, int width, int height, String mimeType) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+
+        assertTrue(ImageHeaderParser.readSize(new ByteArrayInputStream(data), options, 64 * 1024));
+        assertEquals(width, options.outWidth);
+        assertEquals(height, options.outHeight);
+        assertEquals(mimeType, options.outMimeType);
+    }
+
+    private static byte[] encode(Bitmap.CompressFormat format, int width, int height) {
+        Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        b.compress(format, 90, out);
+
+        return out.toByteArray();
+    }
+
+    private static ByteArrayOutputStream webp(String chunk) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        write(out, 'R', 'I', 'F', 'F', 0, 0, 0, 0, 'W', 'E', 'B', 'P');
+        write(out, chunk.charAt(0), chunk.charAt(1), chunk.charAt(2), chunk.charAt(3), 0, 0, 0, 0);
+
+        return out;
+    }
+
+    private static void write(ByteArrayOutputStream out, int... bytes) {
+        for (int b : bytes) {
+            out.write(b);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.webimageloader.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+import android.test.AndroidTestCase;
+
+public class RawBitmapTest extends AndroidTestCase {
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        file = File.createTempFile("raw", null);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        file.delete();
+
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws IOException {
+        assertRoundTrip(Bitmap.Config.ARGB_8888);
+        assertRoundTrip(Bitmap.Config.RGB_565);
+    }
+
+    public void testSize() {
+        Bitmap b = Bitmap.createBitmap(10, 20, Bitmap.Config.ARGB_8888);
+
+        assertEquals(16 + b.getRowBytes() * 20, RawBitmap.getSize(b));
+    }
+
+    public void testNotRaw() throws IOException {
+        write(new byte[] { (byte) 0x89, 'P', 'N', 'G' });
+
+        FileInputStream is = new FileInputStream(file);
+        try {
+            assertFalse(RawBitmap.isRawBitmap(map(is)));
+        } finally {
+            is.close();
+        }
+
+        InputStream buffered = new BufferedInputStream(new FileInputStream(file));
+        try {
+            assertFalse(RawBitmap.isRawBitmap(buffered));
+            assertEquals(0x89, buffered.read());
+        } finally {
+            buffered.close();
+        }
+
+        assertFalse(RawBitmap.isRawBitmap(new BufferedInputStream(new ByteArrayInputStream(new byte[] { 'W', 'I' }))));
+    }
+
+    public void testTruncated() throws IOException {
+        Bitmap b = Bitmap.createBitmap(10, 10, Bitmap.Config.ARGB_8888);
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            RawBitmap.write(b, os);
+        } finally {
+            os.close();
+        }
+
+        // Cut off the last row
+        FileOutputStream truncate = new FileOutputStream(file, true);
+        try {
+            truncate.getChannel().truncate(file.length() - b.getRowBytes());
+        } finally {
+            truncate.close();
+        }
+
+        FileInputStream is = new FileInputStream(file);
+        try {
+            RawBitmap.read(map(is));
+            fail("Truncated file should not be read");
+        } catch (IOException e) {
+            // Expected
+        } finally {
+            is.close();
+        }
+    }
+
+    private void assertRoundTrip(Bitmap.Config config) throws IOException {
+        Bitmap b = Bitmap.createBitmap(13, 7, config);
+        b.eraseColor(Color.RED);
+
+        OutputStream os = new FileOutputStream(file);
+        try {
+            RawBitmap.write(b, os);
+        } finally {
+            os.close();
+        }
+
+        assertEquals(RawBitmap.getSize(b), file.length());
+
+        InputStream buffered = new BufferedInputStream(new FileInputStream(file));
+        try {
+            assertTrue(RawBitmap.isRawBitmap(buffered));
+            assertEquals(0x57, buffered.read());
+        } finally {
+            buffered.close();
+        }
+
+        FileInputStream is = new FileInputStream(file);
+        try {
+            ByteBuffer buffer = map(is);
+            assertTrue(RawBitmap.isRawBitmap(buffer));
+            assertEquals(0, buffer.position());
+
+            Bitmap read = RawBitmap.read(buffer);
+            assertEquals(13, read.getWidth());
+            assertEquals(7, read.getHeight());
+            assertEquals(config, read.getConfig());
+            assertTrue(b.sameAs(read));
+        } finally {
+            is.close();
+        }
+    }
+
+    private static ByteBuffer map(FileInputStream is) throws IOException {
+        FileChannel channel = is.getChannel();
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+
+    private void write(byte[] data) throws IOException {
+        OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(data);
+        } finally {
+            os.close();
+        }
+    }
+}
@@ -10,7 +10,9 @@ public class Constants {
     public static final long MAX_AGE_NOT_FORCED = -1;
 
     public static final int DEFAULT_DISK_THREADS = 1;
+    public static final int DEFAULT_DISK_WRITE_THREADS = 1;
     public static final int DEFAULT_NETWORK_THREADS = 2;
+    public static final int DEFAULT_PRELOAD_IN_FLIGHT = 4;
 
     public static final Bitmap.CompressFormat DEFAULT_COMPRESS_FORMAT = Bitmap.CompressFormat.JPEG;
     public static final int DEFAULT_COMPRESS_QUALITY = 75;
@@ -0,0 +1,24 @@
+package com.webimageloader;
+
+import java.io.IOException;
+
+/**
+ * Thrown when the server responds with an error status. Missing images,
+ * 404 and 410, are reported with a {@link java.io.FileNotFoundException}
+ * instead.
+ */
+public class HttpException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public HttpException(int statusCode, String url) {
+        super("Unexpected response " + statusCode + " for " + url);
+
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
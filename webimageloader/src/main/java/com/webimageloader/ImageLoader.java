@@ -6,14 +6,21 @@ import android.graphics.Bitmap;
 import android.util.Log;
 import com.webimageloader.content.ContentURLStreamHandler;
 import com.webimageloader.loader.DiskLoader;
+import com.webimageloader.loader.DiskLruCacheStore;
+import com.webimageloader.loader.DiskStore;
 import com.webimageloader.loader.LoaderManager;
 import com.webimageloader.loader.MemoryCache;
+import com.webimageloader.loader.NegativeCache;
 import com.webimageloader.loader.NetworkLoader;
+import com.webimageloader.loader.Scheduler;
+import com.webimageloader.loader.TimingListener;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
 
 import java.io.File;
 import java.io.IOException;
 import java.net.URLStreamHandler;
+import java.util.Collection;
 
 /**
  * This is the main class of WebImageLoader which can be constructed using a
@@ -78,6 +85,22 @@ public interface ImageLoader {
      */
     MemoryCache.DebugInfo getMemoryCacheInfo();
 
+    /**
+     * Get network debug info, such as how much was saved by aborting
+     * downloads for cancelled requests
+     *
+     * @return debug info
+     */
+    NetworkLoader.DebugInfo getNetworkInfo();
+
+    /**
+     * Get negative cache debug info, such as how many requests failed
+     * right away because they recently failed
+     *
+     * @return debug info or null if not available
+     */
+    NegativeCache.DebugInfo getNegativeCacheInfo();
+
     /**
      * Get the memory cache
      *
@@ -157,6 +180,29 @@ public interface ImageLoader {
      */
     void preload(Request request);
 
+    /**
+     * Preload several requests, loading a few of them at a time.
+     *
+     * @param requests the requests to preload
+     * @return the batch, which can be used to follow or cancel it
+     *
+     * @see #preloadAll(Collection, int, PreloadBatch.Listener)
+     */
+    PreloadBatch preloadAll(Collection<Request> requests);
+
+    /**
+     * Preload several requests, loading at most maxInFlight of them at a
+     * time so that other requests don't queue up behind all of them. Add
+     * {@link Request.Flag#DISK_ONLY} to the requests to only save them to
+     * the disk cache, leaving the memory cache alone.
+     *
+     * @param requests the requests to preload
+     * @param maxInFlight max number of requests loading at the same time
+     * @param listener called as the requests finish, can be null
+     * @return the batch, which can be used to follow or cancel it
+     */
+    PreloadBatch preloadAll(Collection<Request> requests, int maxInFlight, PreloadBatch.Listener listener);
+
     /**
      * Load an image from an url with the given listener. Previously pending
      * request for this tag will be automatically cancelled.
@@ -228,8 +274,22 @@ public interface ImageLoader {
 
         private NetworkLoader.Builder networkBuilder;
 
-        private DiskLoader diskLoader;
-        private MemoryCache memoryCache;
+        private File diskCacheDir;
+        private int diskCacheSize;
+        private int diskThreadCount;
+        private int diskWriteThreadCount = Constants.DEFAULT_DISK_WRITE_THREADS;
+        private boolean diskCacheTee;
+        private int rawDiskCacheSize;
+        private DiskStore.Factory diskStoreFactory = DiskLruCacheStore.FACTORY;
+
+        private Scheduler scheduler = Scheduler.PRIORITY;
+
+        private int memoryCacheSize;
+        private MemoryCache.Policy memoryCachePolicy;
+        private int bitmapPoolSize;
+        private int negativeCacheSize;
+
+        private TimingListener timingListener;
 
         /**
          * Create a new builder
@@ -255,15 +315,60 @@ public interface ImageLoader {
          * Enable the disk cache
          * @param cacheDir cache location
          * @param maxSize max size of the cache
-         * @param threadCount number of threads
+         * @param threadCount number of threads reading from the cache
          * @return this builder
          */
         public Builder enableDiskCache(File cacheDir, int maxSize, int threadCount) {
-            try {
-                diskLoader = DiskLoader.open(cacheDir, maxSize, threadCount);
-            } catch (IOException e) {
-                Log.e(TAG, "Disk cache not available", e);
-            }
+            diskCacheDir = cacheDir;
+            diskCacheSize = maxSize;
+            diskThreadCount = threadCount;
+
+            return this;
+        }
+
+        /**
+         * Write downloaded images to the disk cache while they are being
+         * decoded, instead of decoding them from the disk cache once they
+         * have been saved. This gets images on screen sooner the first time
+         * they are loaded but decoding is done on the network threads. Only
+         * has an effect if the disk cache is enabled.
+         *
+         * @return this builder
+         */
+        public Builder enableDiskCacheTee() {
+            diskCacheTee = true;
+
+            return this;
+        }
+
+        /**
+         * Set how the disk cache stores its entries, by default
+         * {@link DiskLruCacheStore#FACTORY} which keeps each image in a file
+         * of its own. {@link com.webimageloader.loader.PackedDiskStore#FACTORY}
+         * packs them into a few large files which is faster to open and read
+         * when caching a lot of small images. Switching discards the cache.
+         *
+         * @param factory opens the store
+         * @return this builder
+         */
+        public Builder setDiskStore(DiskStore.Factory factory) {
+            this.diskStoreFactory = factory;
+
+            return this;
+        }
+
+        /**
+         * Store small transformed images, such as thumbnails, as
+         * uncompressed pixels in the disk cache. Loading them from disk is
+         * then little more than a copy instead of a full decode, at the cost
+         * of taking more space. Only has an effect if the disk cache is
+         * enabled.
+         *
+         * @param maxSize max size in bytes of images stored this way
+         * @return this builder
+         */
+        public Builder enableRawDiskCache(int maxSize) {
+            rawDiskCacheSize = maxSize;
 
             return this;
         }
@@ -274,7 +379,68 @@ public interface ImageLoader {
          * @return this builder
          */
         public Builder enableMemoryCache(int maxSize) {
-            memoryCache = new MemoryCache(maxSize);
+            return enableMemoryCache(maxSize, MemoryCache.Policy.LRU);
+        }
+
+        /**
+         * Enable the memory cache
+         * @param maxSize max size of the cache
+         * @param policy policy used to decide which bitmaps to keep
+         * @return this builder
+         */
+        public Builder enableMemoryCache(int maxSize, MemoryCache.Policy policy) {
+            memoryCacheSize = maxSize;
+            memoryCachePolicy = policy;
+
+            return this;
+        }
+
+        /**
+         * Remember requests which failed, loading them again fails right
+         * away with the same error instead of trying the disk cache and
+         * the network. Missing images are remembered for minutes, other
+         * errors for seconds, doubling each time a URL fails again. Use
+         * {@link Request.Flag#IGNORE_CACHE} to retry anyway.
+         *
+         * @param maxSize max number of URLs to remember
+         * @return this builder
+         */
+        public Builder enableNegativeCache(int maxSize) {
+            negativeCacheSize = maxSize;
+
+            return this;
+        }
+
+        /**
+         * Reuse the memory of bitmaps which are no longer used when decoding
+         * new ones, this reduces garbage collection pauses while scrolling.
+         * Only has an effect if the memory cache is enabled and on Honeycomb
+         * and up.
+         * <p>
+         * Bitmaps are only reused after they have been passed to
+         * {@link MemoryCache#release(android.graphics.Bitmap)} and evicted from
+         * the memory cache, bitmaps which are never released are left to the
+         * garbage collector.
+         *
+         * @param maxSize max number of bytes to keep in the pool
+         * @return this builder
+         */
+        public Builder enableBitmapPool(int maxSize) {
+            bitmapPoolSize = maxSize;
+
+            return this;
+        }
+
+        /**
+         * Set the number of disk cache threads reading back downloaded images
+         * and updating cache entries. These run at a lower priority than the
+         * threads reading cache hits, which are set with
+         * {@link #enableDiskCache(File, int, int)}.
+         * @param count thread count
+         * @return this builder
+         */
+        public Builder setDiskWriteThreadCount(int count) {
+            diskWriteThreadCount = count;
 
             return this;
         }
@@ -290,6 +456,67 @@ public interface ImageLoader {
             return this;
         }
 
+        /**
+         * Set the max number of threads downloading from the same host at
+         * once, by default there is no limit. Regardless of this, a host only
+         * gets its share of the threads while other hosts are waiting.
+         * @param count max threads per host
+         * @return this builder
+         */
+        public Builder setMaxNetworkThreadsPerHost(int count) {
+            networkBuilder.setMaxThreadsPerHost(count);
+
+            return this;
+        }
+
+        /**
+         * Let the number of concurrent downloads adapt to the network, based
+         * on throughput and time to first byte. It starts at the count set
+         * by {@link #setNetworkThreadCount(int)}, the current limit is found in
+         * {@link NetworkLoader.DebugInfo#threadLimit}.
+         * @param minCount the least number of threads
+         * @param maxCount the most number of threads
+         * @return this builder
+         */
+        public Builder setAdaptiveNetworkThreadCount(int minCount, int maxCount) {
+            networkBuilder.setAdaptiveThreadCount(minCount, maxCount);
+
+            return this;
+        }
+
+        /**
+         * Set the scheduler deciding in which order queued images are loaded
+         * from disk and network, by default {@link Scheduler#PRIORITY}. Use
+         * {@link Scheduler#PRIORITY_LIFO} to load the most recently requested
+         * images first, which is useful for lists that are scrolled quickly.
+         *
+         * @param scheduler the scheduler
+         * @return this builder
+         *
+         * @see Request#setPriority(int)
+         */
+        public Builder setScheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+            networkBuilder.setScheduler(scheduler);
+
+            return this;
+        }
+
+        /**
+         * Set a listener receiving how long each stage of loading images took,
+         * such as waiting in a queue, downloading or decoding. Use
+         * {@link com.webimageloader.loader.TimingHistograms} to keep latency
+         * histograms.
+         *
+         * @param listener the listener, called from background threads
+         * @return this builder
+         */
+        public Builder setTimingListener(TimingListener listener) {
+            this.timingListener = listener;
+
+            return this;
+        }
+
         /**
          * Add a URL scheme handler
          * @param scheme the scheme to handle
@@ -315,6 +542,19 @@ public interface ImageLoader {
             return this;
         }
 
+        /**
+         * Set a transport which makes all http(s) requests, for example to use
+         * a client which multiplexes requests. Connection factories and
+         * handlers aren't used for requests made by a custom transport.
+         * @param transport the transport
+         * @return this builder
+         */
+        public Builder setTransport(Transport transport) {
+            networkBuilder.setTransport(transport);
+
+            return this;
+        }
+
         /**
          * Set a connection handler
          * @param handler handler to handle connections
@@ -385,8 +625,34 @@ public interface ImageLoader {
             networkBuilder.addURLSchemeHandler(ContentResolver.SCHEME_FILE, handler);
             networkBuilder.addURLSchemeHandler(ContentResolver.SCHEME_ANDROID_RESOURCE, handler);
 
+            DiskLoader diskLoader = null;
+            if (diskCacheDir != null) {
+                try {
+                    diskLoader = DiskLoader.open(diskCacheDir, diskCacheSize, diskThreadCount, diskWriteThreadCount, scheduler, diskStoreFactory);
+                    diskLoader.setTeeEnabled(diskCacheTee);
+                    diskLoader.setRawMaxSize(rawDiskCacheSize);
+                } catch (IOException e) {
+                    Log.e(TAG, "Disk cache not available", e);
+                }
+            }
+
+            MemoryCache memoryCache = null;
+            if (memoryCacheSize > 0) {
+                BitmapPool bitmapPool = null;
+                if (bitmapPoolSize > 0 && BitmapPool.isSupported()) {
+                    bitmapPool = new BitmapPool(bitmapPoolSize);
+                }
+
+                memoryCache = new MemoryCache(memoryCacheSize, memoryCachePolicy, bitmapPool);
+            }
+
+            NegativeCache negativeCache = null;
+            if (negativeCacheSize > 0) {
+                negativeCache = new NegativeCache(negativeCacheSize);
+            }
+
             NetworkLoader networkLoader = new NetworkLoader(networkBuilder);
-            LoaderManager loaderManager = new LoaderManager(memoryCache, diskLoader, networkLoader);
+            LoaderManager loaderManager = new LoaderManager(memoryCache, diskLoader, networkLoader, timingListener, negativeCache);
 
             return new ImageLoaderImpl(loaderManager);
         }
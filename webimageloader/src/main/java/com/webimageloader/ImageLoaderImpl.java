@@ -2,6 +2,7 @@ package com.webimageloader;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Collection;
 import java.util.concurrent.ExecutionException;
 
 import android.graphics.Bitmap;
@@ -10,7 +11,11 @@ import android.os.Looper;
 import android.os.Message;
 
 import com.webimageloader.loader.LoaderManager;
+import com.webimageloader.loader.LoaderRequest;
 import com.webimageloader.loader.MemoryCache;
+import com.webimageloader.loader.NegativeCache;
+import com.webimageloader.loader.NetworkLoader;
+import com.webimageloader.loader.TimingListener;
 import com.webimageloader.util.AbstractImageLoader;
 import com.webimageloader.util.WaitFuture;
 
@@ -21,7 +26,7 @@ class ImageLoaderImpl extends AbstractImageLoader {
     ImageLoaderImpl(LoaderManager loaderManager) {
         this.loaderManager = loaderManager;
 
-        handlerManager = new HandlerManager();
+        handlerManager = new HandlerManager(loaderManager.getTimingListener());
     }
 
     @Override
@@ -35,6 +40,22 @@ class ImageLoaderImpl extends AbstractImageLoader {
         }
     }
 
+    @Override
+    public NetworkLoader.DebugInfo getNetworkInfo() {
+        return loaderManager.getNetworkLoader().getDebugInfo();
+    }
+
+    @Override
+    public NegativeCache.DebugInfo getNegativeCacheInfo() {
+        NegativeCache negativeCache = loaderManager.getNegativeCache();
+
+        if (negativeCache != null) {
+            return negativeCache.getDebugInfo();
+        } else {
+            return null;
+        }
+    }
+
     @Override
     public MemoryCache getMemoryCache() {
         return loaderManager.getMemoryCache();
@@ -49,7 +70,7 @@ class ImageLoaderImpl extends AbstractImageLoader {
     public Bitmap loadBlocking(Request request, final ProgressListener progressListener) throws IOException {
         final WaitFuture future = new WaitFuture();
 
-        Bitmap b = loadInternal(null, request, new LoaderManager.Listener() {
+        Bitmap b = loadInternal(null, request.toLoaderRequest(), new LoaderManager.Listener() {
             @Override
             public void onLoaded(Bitmap b) {
                 future.set(b);
@@ -100,7 +121,15 @@ class ImageLoaderImpl extends AbstractImageLoader {
     }
 
     public void preload(Request request) {
-        loadInternal(null, request, null);
+        loadInternal(null, request.toLoaderRequest(), null);
+    }
+
+    @Override
+    public PreloadBatch preloadAll(Collection<Request> requests, int maxInFlight, PreloadBatch.Listener listener) {
+        PreloadBatch batch = new PreloadBatch(loaderManager, requests, maxInFlight, listener);
+        batch.start();
+
+        return batch;
     }
 
     @Override
@@ -110,7 +139,9 @@ class ImageLoaderImpl extends AbstractImageLoader {
 
     @Override
     public <T> Bitmap load(T tag, Request request, Listener<T> listener, ProgressListener progressListener) {
-        return loadInternal(tag, request, handlerManager.getListener(tag, listener, progressListener));
+        LoaderRequest loaderRequest = request.toLoaderRequest();
+
+        return loadInternal(tag, loaderRequest, handlerManager.getListener(tag, loaderRequest, listener, progressListener));
     }
 
     @Override
@@ -119,8 +150,8 @@ class ImageLoaderImpl extends AbstractImageLoader {
         loaderManager.cancel(tag);
     }
 
-    private Bitmap loadInternal(Object tag, Request request, LoaderManager.Listener listener) {
-        return loaderManager.load(tag, request.toLoaderRequest(), listener);
+    private Bitmap loadInternal(Object tag, LoaderRequest request, LoaderManager.Listener listener) {
+        return loaderManager.load(tag, request, listener);
     }
 
     @Override
@@ -130,20 +161,23 @@ class ImageLoaderImpl extends AbstractImageLoader {
 
     private static class HandlerManager {
         private Handler handler;
+        private TimingListener timingListener;
+
+        public HandlerManager(TimingListener timingListener) {
+            this.timingListener = timingListener;
 
-        public HandlerManager() {
             handler = new Handler(Looper.getMainLooper());
         }
 
-        public <T> LoaderManager.Listener getListener(T tag, Listener<T> listener, ProgressListener progressListener) {
+        public <T> LoaderManager.Listener getListener(T tag, LoaderRequest request, Listener<T> listener, ProgressListener progressListener) {
             if (tag != null) {
                 // It's possible there is already a callback in progress for this tag
                 // so we'll remove it
                 handler.removeCallbacksAndMessages(tag);
 
-                return new TagListener<T>(tag, listener, progressListener);
+                return new TagListener<T>(tag, request, listener, progressListener);
             } else {
-                return new TagListener<T>(listener, progressListener);
+                return new TagListener<T>(request, listener, progressListener);
             }
         }
 
@@ -153,16 +187,19 @@ class ImageLoaderImpl extends AbstractImageLoader {
 
         private class TagListener<T> implements LoaderManager.Listener {
             private WeakReference<T> reference;
+            private LoaderRequest request;
             private Listener<T> listener;
             private ProgressListener progressListener;
 
-            public TagListener(Listener<T> listener, ProgressListener progressListener) {
+            public TagListener(LoaderRequest request, Listener<T> listener, ProgressListener progressListener) {
+                this.request = request;
                 this.listener = listener;
                 this.progressListener = progressListener;
             }
 
-            public TagListener(T tag, Listener<T> listener, ProgressListener progressListener) {
+            public TagListener(T tag, LoaderRequest request, Listener<T> listener, ProgressListener progressListener) {
                 this.reference = new WeakReference<T>(tag);
+                this.request = request;
                 this.listener = listener;
                 this.progressListener = progressListener;
             }
@@ -170,11 +207,13 @@ class ImageLoaderImpl extends AbstractImageLoader {
             @Override
             public void onLoaded(final Bitmap b) {
                 final T tag = getTag();
+                final long posted = System.nanoTime();
 
                 post(tag, new Runnable() {
                     @Override
                     public void run() {
                         listener.onSuccess(tag, b);
+                        recordDelivery(posted);
                     }
                 });
             }
@@ -182,11 +221,13 @@ class ImageLoaderImpl extends AbstractImageLoader {
             @Override
             public void onError(final Throwable t) {
                 final T tag = getTag();
+                final long posted = System.nanoTime();
 
                 post(tag, new Runnable() {
                     @Override
                     public void run() {
                         listener.onError(tag, t);
+                        recordDelivery(posted);
                     }
                 });
             }
@@ -218,6 +259,12 @@ class ImageLoaderImpl extends AbstractImageLoader {
                 return tag;
             }
 
+            private void recordDelivery(long posted) {
+                if (timingListener != null) {
+                    timingListener.onTiming(request, TimingListener.Stage.DELIVERY, null, System.nanoTime() - posted);
+                }
+            }
+
             private void post(T tag, Runnable r) {
                 Message m = Message.obtain(handler, r);
                 m.obj = tag;
@@ -0,0 +1,292 @@
+package com.webimageloader;
+
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.webimageloader.loader.LoaderManager;
+import com.webimageloader.loader.LoaderRequest;
+
+/**
+ * A group of requests being preloaded, started with
+ * {@link ImageLoader#preloadAll(Collection, int, Listener)}. Only a limited
+ * number of them are loaded at a time, the rest wait here instead of
+ * filling up the queues of the loader.
+ */
+public class PreloadBatch {
+    /**
+     * Listener for a batch, always called on the main thread
+     */
+    public interface Listener {
+        /**
+         * Called each time a request in the batch has finished or failed
+         *
+         * @param batch the batch
+         */
+        void onProgress(PreloadBatch batch);
+
+        /**
+         * Called once every request has finished or failed, not called if
+         * the batch is cancelled
+         *
+         * @param batch the batch
+         */
+        void onFinished(PreloadBatch batch);
+    }
+
+    private final LoaderManager loaderManager;
+    private final Listener listener;
+    private final int maxInFlight;
+    private final Handler handler;
+
+    private final Item[] items;
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private int next = 0;
+    private int inFlight = 0;
+    private int completed = 0;
+    private int failed = 0;
+
+    private boolean cancelled = false;
+    private boolean starting = false;
+
+    PreloadBatch(LoaderManager loaderManager, Collection<Request> requests, int maxInFlight, Listener listener) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException("maxInFlight must be positive");
+        }
+
+        this.loaderManager = loaderManager;
+        this.listener = listener;
+        this.maxInFlight = maxInFlight;
+
+        handler = new Handler(Looper.getMainLooper());
+
+        items = new Item[requests.size()];
+        int i = 0;
+        for (Request request : requests) {
+            items[i++] = new Item(request.toLoaderRequest());
+        }
+    }
+
+    void start() {
+        if (items.length == 0) {
+            finish();
+        } else {
+            startMore();
+        }
+    }
+
+    /**
+     * @return number of requests in this batch
+     */
+    public int getCount() {
+        return items.length;
+    }
+
+    /**
+     * @return number of requests which have finished, including failed ones
+     */
+    public synchronized int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * @return number of requests which failed
+     */
+    public synchronized int getFailedCount() {
+        return failed;
+    }
+
+    /**
+     * Get the progress of the whole batch, counting partly downloaded images
+     *
+     * @return progress in the range 0f-1f
+     */
+    public float getProgress() {
+        if (items.length == 0) {
+            return 1f;
+        }
+
+        float progress = 0f;
+        for (Item item : items) {
+            progress += item.progress;
+        }
+
+        return Math.min(1f, progress / items.length);
+    }
+
+    public synchronized boolean isFinished() {
+        return completed == items.length;
+    }
+
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancel the requests in this batch which haven't finished
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (cancelled || completed == items.length) {
+                return;
+            }
+
+            cancelled = true;
+        }
+
+        for (Item item : items) {
+            if (item.isRunning()) {
+                loaderManager.cancel(item);
+            }
+        }
+
+        done.countDown();
+    }
+
+    /**
+     * Block until every request has finished or the batch is cancelled
+     *
+     * @param timeout max time to wait
+     * @param unit unit of the timeout
+     * @return true if the batch finished or was cancelled in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * Start requests until the limit is reached. Requests can finish right
+     * away, the thread already starting requests takes care of those instead
+     * of recursing.
+     */
+    private void startMore() {
+        synchronized (this) {
+            if (starting) {
+                return;
+            }
+
+            starting = true;
+        }
+
+        while (true) {
+            Item item;
+            synchronized (this) {
+                if (cancelled || inFlight >= maxInFlight || next >= items.length) {
+                    starting = false;
+                    return;
+                }
+
+                item = items[next++];
+                inFlight++;
+            }
+
+            item.start();
+        }
+    }
+
+    private void onItemFinished(boolean error) {
+        boolean finished;
+        synchronized (this) {
+            inFlight--;
+            completed++;
+            if (error) {
+                failed++;
+            }
+
+            finished = completed == items.length;
+        }
+
+        if (listener != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProgress(PreloadBatch.this);
+                }
+            });
+        }
+
+        if (finished) {
+            finish();
+        } else {
+            startMore();
+        }
+    }
+
+    private void finish() {
+        done.countDown();
+
+        if (listener != null) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onFinished(PreloadBatch.this);
+                }
+            });
+        }
+    }
+
+    /**
+     * A single request, also used as its tag so it can be cancelled
+     */
+    private class Item implements LoaderManager.Listener {
+        private final LoaderRequest request;
+
+        private volatile float progress = 0f;
+        private boolean started = false;
+        private boolean finished = false;
+
+        public Item(LoaderRequest request) {
+            this.request = request;
+        }
+
+        public synchronized boolean isRunning() {
+            return started && !finished;
+        }
+
+        public void start() {
+            synchronized (this) {
+                started = true;
+            }
+
+            Bitmap b = loaderManager.load(this, request, this);
+            if (b != null) {
+                // Already in memory
+                onLoaded(b);
+            }
+        }
+
+        @Override
+        public void onLoaded(Bitmap b) {
+            finish(false);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            finish(true);
+        }
+
+        @Override
+        public void onProgress(float value) {
+            progress = value;
+        }
+
+        private void finish(boolean error) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+
+                finished = true;
+            }
+
+            progress = 1f;
+            onItemFinished(error);
+        }
+    }
+}
@@ -16,6 +16,19 @@ import com.webimageloader.transformation.Transformation;
  * @author Alexander Blom <alexanderblom.se>
  */
 public class Request {
+    /**
+     * Priority for images which can wait, such as prefetching
+     */
+    public static final int PRIORITY_LOW = -10;
+    /**
+     * Default priority
+     */
+    public static final int PRIORITY_NORMAL = 0;
+    /**
+     * Priority for images which should be loaded before any others
+     */
+    public static final int PRIORITY_HIGH = 10;
+
     public enum Flag {
         /**
          * Flag which makes the request ignore any possibly cached bitmaps
@@ -29,12 +42,27 @@ public class Request {
          * Flag for skipping the disk cache, both for retrieval and storing,
          * useful for images already fetched from disk.
          */
-        SKIP_DISK_CACHE
+        SKIP_DISK_CACHE,
+        /**
+         * Flag which makes the request stop once the image is in the disk
+         * cache, without decoding it or adding it to the memory cache.
+         * Useful for prefetching without evicting images on screen. Only the
+         * original image is saved for requests with a transformation, and
+         * listeners get a null bitmap.
+         * <p>
+         * These requests are loaded with at most {@link #PRIORITY_LOW} and
+         * downloaded by a low priority thread of their own. Use them with
+         * {@link ImageLoader#preload(Request)} or
+         * {@link ImageLoader#preloadAll(java.util.Collection)} to not have
+         * anything posted to the main thread.
+         */
+        DISK_ONLY
     }
 
     private String url;
     private Transformation transformation;
     private EnumSet<Flag> flags = EnumSet.noneOf(Flag.class);
+    private int priority = PRIORITY_NORMAL;
 
     /**
      * Create a request for a resource in /res.
@@ -129,6 +157,24 @@ public class Request {
         return this;
     }
 
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Set the priority of this request, requests with a higher priority are
+     * loaded first. Requests with the same priority are ordered by the
+     * {@link com.webimageloader.loader.Scheduler} in use.
+     *
+     * @param priority the priority, {@link #PRIORITY_NORMAL} by default
+     * @return this request
+     */
+    public Request setPriority(int priority) {
+        this.priority = priority;
+
+        return this;
+    }
+
     /**
      * Add a flag to this request
      *
@@ -154,7 +200,7 @@ public class Request {
     }
 
     LoaderRequest toLoaderRequest() {
-        return new LoaderRequest(url, transformation, flags);
+        return new LoaderRequest(url, transformation, flags, priority);
     }
 
     private static String createUrl(String scheme, String authority, String path) {
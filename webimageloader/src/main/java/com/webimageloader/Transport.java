@@ -0,0 +1,80 @@
+package com.webimageloader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Interface for plugging in the HTTP client used to download images, for
+ * example one which multiplexes requests over a single connection. Unlike
+ * {@link ConnectionFactory} the whole exchange is left to the transport, the
+ * loader only sees the status, headers and body of the response. Only used
+ * for http(s) requests.
+ */
+public interface Transport {
+    /**
+     * Send a request and wait for the response headers. Note that this is
+     * called from a background thread.
+     *
+     * @param url the url
+     * @param headers extra request headers, such as conditional headers when
+     *        checking if a cached image is still valid
+     * @return the response, which will always be closed or aborted
+     * @throws IOException if the request failed
+     */
+    Response execute(URL url, Map<String, String> headers) throws IOException;
+
+    /**
+     * @return number of open connections in the pool, -1 if unknown
+     */
+    int getConnectionCount();
+
+    /**
+     * @return number of idle connections in the pool, -1 if unknown
+     */
+    int getIdleConnectionCount();
+
+    /**
+     * A response with its body not yet read
+     */
+    interface Response extends Closeable {
+        /**
+         * @return the status code, -1 if not a http response
+         */
+        int getStatusCode() throws IOException;
+
+        /**
+         * @param name name of the header, case insensitive
+         * @return the value of the header, or null if missing
+         */
+        String getHeader(String name);
+
+        /**
+         * @param name name of the header, case insensitive
+         * @return the date in the header in milliseconds, 0 if missing or
+         *         invalid
+         */
+        long getDateHeader(String name);
+
+        /**
+         * @return length of the body, -1 if unknown
+         */
+        long getContentLength();
+
+        /**
+         * Get the body, only called once. Closing the stream releases the
+         * response.
+         *
+         * @return the body
+         */
+        InputStream getBody() throws IOException;
+
+        /**
+         * Stop the response without reading the rest of the body, the
+         * connection should not be reused
+         */
+        void abort();
+    }
+}
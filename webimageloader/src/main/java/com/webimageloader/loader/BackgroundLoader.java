@@ -1,23 +1,29 @@
 package com.webimageloader.loader;
 
 import java.io.Closeable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import com.webimageloader.util.ListenerFuture;
 
 public abstract class BackgroundLoader implements Loader, Closeable {
-    private ExecutorService executor;
+    private ThreadPoolExecutor executor;
 
-    public BackgroundLoader(ExecutorService executor) {
+    public BackgroundLoader(ThreadPoolExecutor executor) {
         this.executor = executor;
     }
 
     @Override
     public void load(final LoaderWork.Manager manager, final LoaderRequest request) {
+        final long queued = System.nanoTime();
+
         run(manager, new ListenerFuture.Task() {
             @Override
             public void run() throws Exception {
+                TimingListener.Source source = getSource();
+                if (source != null) {
+                    manager.recordTiming(request, TimingListener.Stage.QUEUE_WAIT, source, queued);
+                }
+
                 loadInBackground(manager, request);
             }
         });
@@ -29,8 +35,25 @@ public abstract class BackgroundLoader implements Loader, Closeable {
     }
 
     protected void run(LoaderWork.Manager manager, ListenerFuture.Task task) {
-        Future<?> future = executor.submit(new ListenerFuture(task, manager));
+        run(executor, manager, task);
+    }
+
+    /**
+     * Run a task on another executor, belonging to the same work
+     */
+    protected void run(ThreadPoolExecutor executor, LoaderWork.Manager manager, ListenerFuture.Task task) {
+        Scheduler.Task future = new Scheduler.Task(executor, manager, new ListenerFuture(task, manager));
         manager.addFuture(future);
+        future.schedule();
+    }
+
+    /**
+     * Get the source this loader loads from, used for timings
+     *
+     * @return the source or null if timings should not be recorded
+     */
+    protected TimingListener.Source getSource() {
+        return null;
     }
 
     protected abstract void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception;
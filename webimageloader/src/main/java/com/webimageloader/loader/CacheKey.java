@@ -0,0 +1,98 @@
+package com.webimageloader.loader;
+
+import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.Hasher;
+
+/**
+ * Identifies an image in the caches, the URL together with any
+ * transformation. The hash code, the name used on disk and the key of the
+ * original image are only computed once, so the same key can be passed
+ * between the memory cache, pending requests and the disk cache.
+ */
+public final class CacheKey {
+    private static final Hasher HASHER = new Hasher();
+
+    private final String url;
+    private final String value;
+    private final int hash;
+
+    private volatile String diskName;
+    private volatile CacheKey withoutTransformation;
+
+    /**
+     * @param url url of the image
+     * @param transformation transformation applied to it, may be null
+     * @return the key
+     */
+    public static CacheKey create(String url, Transformation transformation) {
+        if (transformation != null) {
+            return new CacheKey(url, url + transformation.getIdentifier());
+        } else {
+            return new CacheKey(url, url);
+        }
+    }
+
+    private CacheKey(String url, String value) {
+        this.url = url;
+        this.value = value;
+        this.hash = value.hashCode();
+    }
+
+    /**
+     * @return the key of the original image, this key if it has no
+     *         transformation
+     */
+    public CacheKey withoutTransformation() {
+        if (url == value) {
+            // Created without a transformation
+            return this;
+        }
+
+        // Racing threads create equal keys, no need to lock
+        CacheKey key = withoutTransformation;
+        if (key == null) {
+            key = new CacheKey(url, url);
+            withoutTransformation = key;
+        }
+
+        return key;
+    }
+
+    /**
+     * @return a hash of this key suitable as a file name
+     */
+    public String getDiskName() {
+        // Racing threads compute the same name, no need to lock
+        String name = diskName;
+        if (name == null) {
+            name = HASHER.hash(value);
+            diskName = name;
+        }
+
+        return name;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if (obj instanceof CacheKey) {
+            CacheKey key = (CacheKey) obj;
+            return hash == key.hash && value.equals(key.value);
+        } else {
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return value;
+    }
+}
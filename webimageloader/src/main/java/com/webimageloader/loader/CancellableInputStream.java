@@ -0,0 +1,82 @@
+package com.webimageloader.loader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Stream which stops reading as soon as the work it belongs to has been
+ * cancelled, instead of reading everything to the end for nothing.
+ */
+class CancellableInputStream extends FilterInputStream {
+    /**
+     * Called once when reading is aborted
+     */
+    interface AbortListener {
+        /**
+         * @param bytesRead number of bytes read before aborting
+         */
+        void onAbort(long bytesRead);
+    }
+
+    private LoaderWork.Manager manager;
+    private AbortListener listener;
+
+    private long bytesRead;
+    private boolean aborted = false;
+
+    public CancellableInputStream(InputStream in, LoaderWork.Manager manager, AbortListener listener) {
+        super(in);
+
+        this.manager = manager;
+        this.listener = listener;
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkCancelled();
+
+        int b = super.read();
+        if (b != -1) {
+            bytesRead++;
+        }
+
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int count) throws IOException {
+        checkCancelled();
+
+        int read = super.read(buffer, offset, count);
+        if (read > 0) {
+            bytesRead += read;
+        }
+
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        checkCancelled();
+
+        long skipped = super.skip(count);
+        bytesRead += skipped;
+
+        return skipped;
+    }
+
+    private void checkCancelled() throws IOException {
+        if (!manager.isCancelled()) {
+            return;
+        }
+
+        if (!aborted) {
+            aborted = true;
+            listener.onAbort(bytesRead);
+        }
+
+        throw new InterruptedIOException("Request was cancelled");
+    }
+}
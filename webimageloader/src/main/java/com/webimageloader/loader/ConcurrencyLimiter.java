@@ -0,0 +1,178 @@
+package com.webimageloader.loader;
+
+/**
+ * Decides how many downloads can run at once, using additive increase and
+ * multiplicative decrease. Finished downloads are looked at in windows of as
+ * many downloads as the current limit, after each window:
+ * <ul>
+ * <li>If a download failed or the time to first byte rose well above the
+ * lowest seen, the link is congested and the limit is cut by a quarter</li>
+ * <li>If the limit was just raised but throughput didn't grow by at least half
+ * of what one more download should add, the extra download only competes for
+ * bandwidth and the limit goes back down by one</li>
+ * <li>Otherwise, if the limit was reached during the window, it is raised by
+ * one</li>
+ * </ul>
+ * Times are passed in by the caller in nanoseconds so a simulated link can be
+ * used in tests.
+ */
+class ConcurrencyLimiter {
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double PROBE_GAIN = 0.5;
+    private static final double BACKOFF_RATIO = 0.75;
+
+    interface Listener {
+        void onLimitChanged(int limit);
+    }
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final Listener listener;
+
+    private int limit;
+    private int inFlight;
+
+    private long minLatency = -1;
+    private int lastLimit;
+    private double lastThroughput = -1;
+
+    // The current window
+    private long windowStart = -1;
+    private int windowSamples;
+    private int windowDrops;
+    private int windowMaxInFlight;
+    private long windowLatency;
+    private long windowBytes;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, Listener listener) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits: " + minLimit + "-" + maxLimit);
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.listener = listener;
+
+        limit = clamp(initialLimit);
+        lastLimit = limit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Called when a download is started
+     */
+    public synchronized void onStart(long now) {
+        inFlight++;
+        windowMaxInFlight = Math.max(windowMaxInFlight, inFlight);
+
+        if (windowStart == -1) {
+            windowStart = now;
+        }
+    }
+
+    /**
+     * Called when a download has finished
+     *
+     * @param latency time to first byte
+     * @param bytes size of the body
+     */
+    public void onSuccess(long now, long latency, long bytes) {
+        int changed;
+        synchronized (this) {
+            inFlight--;
+
+            if (minLatency == -1 || latency < minLatency) {
+                minLatency = latency;
+            }
+
+            windowSamples++;
+            windowLatency += latency;
+            windowBytes += bytes;
+
+            changed = maybeEndWindow(now);
+        }
+
+        notifyListener(changed);
+    }
+
+    /**
+     * Called when a download failed or timed out
+     */
+    public void onDropped(long now) {
+        int changed;
+        synchronized (this) {
+            inFlight--;
+
+            windowSamples++;
+            windowDrops++;
+
+            changed = maybeEndWindow(now);
+        }
+
+        notifyListener(changed);
+    }
+
+    /**
+     * Called when a download was stopped early, telling nothing about the link
+     */
+    public synchronized void onIgnored() {
+        inFlight--;
+    }
+
+    /**
+     * @return the new limit or -1 if it didn't change
+     */
+    private int maybeEndWindow(long now) {
+        if (windowSamples < limit) {
+            return -1;
+        }
+
+        int successes = windowSamples - windowDrops;
+        long elapsed = Math.max(1, now - windowStart);
+        double throughput = (double) windowBytes / elapsed;
+
+        int newLimit = limit;
+        if (windowDrops > 0 || (successes > 0 && windowLatency / successes > minLatency * LATENCY_TOLERANCE)) {
+            newLimit = clamp((int) (limit * BACKOFF_RATIO));
+        } else if (limit > lastLimit && throughput < lastThroughput * (1 + PROBE_GAIN / lastLimit)) {
+            newLimit = clamp(limit - 1);
+        } else if (windowMaxInFlight >= limit) {
+            newLimit = clamp(limit + 1);
+        }
+
+        lastLimit = limit;
+        lastThroughput = throughput;
+
+        // Slowly forget the lowest latency in case the link changed
+        if (minLatency > 0) {
+            minLatency += minLatency >> 4;
+        }
+
+        windowStart = now;
+        windowSamples = 0;
+        windowDrops = 0;
+        windowMaxInFlight = inFlight;
+        windowLatency = 0;
+        windowBytes = 0;
+
+        if (newLimit == limit) {
+            return -1;
+        }
+
+        limit = newLimit;
+        return newLimit;
+    }
+
+    private void notifyListener(int changed) {
+        if (changed != -1 && listener != null) {
+            listener.onLimitChanged(changed);
+        }
+    }
+
+    private int clamp(int value) {
+        return Math.max(minLimit, Math.min(maxLimit, value));
+    }
+}
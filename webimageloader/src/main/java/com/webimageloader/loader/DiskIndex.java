@@ -0,0 +1,461 @@
+package com.webimageloader.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.util.IOUtil;
+
+/**
+ * Keeps the expiry, ETag hash and size of cache entries in memory, so that
+ * misses and freshness can be decided without opening the entry.
+ * <p>
+ * The index is saved next to the cache, and every change is appended to the
+ * file as it happens, so it survives the process being killed. It is
+ * complete, meaning that anything it doesn't know about isn't cached, if it
+ * was started together with an empty cache and never had to drop entries.
+ * Otherwise it is filled in as entries are read.
+ * <p>
+ * Entries are written to the store before they are added here, so being
+ * killed in between can make the index miss an entry, which only costs
+ * downloading it again.
+ */
+public class DiskIndex {
+    private static final String TAG = "DiskIndex";
+
+    private static final int MAGIC = 0x57494c49; // "WILI"
+    private static final int VERSION = 2;
+    /** Same as the current version, without appended changes */
+    private static final int VERSION_1 = 1;
+
+    private static final int OP_PUT = 1;
+    private static final int OP_REMOVE = 2;
+    private static final int OP_INCOMPLETE = 3;
+
+    /** Number of appended changes after which the file is rewritten */
+    private static final int COMPACT_INTERVAL = 1024;
+
+    /**
+     * Size of entries which were just written, filled in when read
+     */
+    public static final long UNKNOWN_SIZE = -1;
+
+    public static class Entry {
+        private final long expires;
+        private final int etagHash;
+        private final long size;
+
+        public Entry(long expires, int etagHash, long size) {
+            this.expires = expires;
+            this.etagHash = etagHash;
+            this.size = size;
+        }
+
+        public Entry(Metadata metadata, long size) {
+            this(metadata.getExpires(), metadata.getEtag().hashCode(), size);
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+
+        public int getEtagHash() {
+            return etagHash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public boolean isExpired(long now) {
+            return expires != Metadata.NEVER_EXPIRES && now > expires;
+        }
+
+        /**
+         * @return true if this entry describes the given version of an image
+         */
+        public boolean matches(Metadata metadata, long size) {
+            return (this.size == UNKNOWN_SIZE || this.size == size) && etagHash == metadata.getEtag().hashCode();
+        }
+
+        /**
+         * @return a copy with a new expiry
+         */
+        public Entry withExpires(long expires) {
+            return new Entry(expires, etagHash, size);
+        }
+    }
+
+    private final File file;
+    private final LinkedHashMap<String, Entry> entries;
+
+    private boolean complete;
+    /**
+     * Changes not yet written, guarded by this. They are queued in the same
+     * order as they are made in memory, but written outside of the lock so
+     * that lookups never wait for the file.
+     */
+    private List<byte[]> queuedChanges = new ArrayList<byte[]>();
+
+    // Guarded by logLock
+    private final Object logLock = new Object();
+    private DataOutputStream log;
+    private boolean closed;
+    private int changes = 0;
+
+    /**
+     * Load the index
+     *
+     * @param file where the index is saved
+     * @param maxEntries max number of entries to keep in memory
+     * @param cacheEmpty true if the cache is empty, which makes a new index
+     *            complete
+     * @return the index, empty if it could not be read
+     */
+    public static DiskIndex open(File file, int maxEntries, boolean cacheEmpty) {
+        DiskIndex index = new DiskIndex(file, maxEntries);
+
+        if (file.exists()) {
+            try {
+                index.read();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to read index, starting over", e);
+
+                index.entries.clear();
+                index.complete = false;
+            }
+        } else {
+            index.complete = cacheEmpty;
+        }
+
+        if (Logger.VERBOSE) Log.v(TAG, "Loaded " + index.entries.size() + " entries, complete: " + index.complete);
+
+        // Start from a compact file, this also drops a change which was
+        // only partly written when the process was killed
+        index.save();
+
+        return index;
+    }
+
+    private DiskIndex(File file, final int maxEntries) {
+        this.file = file;
+
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, DiskIndex.Entry> eldest) {
+                if (size() > maxEntries) {
+                    // The evicted entry might still be cached
+                    complete = false;
+                    return true;
+                }
+
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return true if keys not in the index are known not to be cached
+     */
+    public synchronized boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * @return the entry or null if it's unknown
+     */
+    public synchronized Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return true if the key is known not to be cached
+     */
+    public synchronized boolean isMissing(String key) {
+        return complete && !entries.containsKey(key);
+    }
+
+    public void put(String key, Entry entry) {
+        synchronized (this) {
+            boolean wasComplete = complete;
+            entries.put(key, entry);
+
+            queue(OP_PUT, key, entry);
+            if (wasComplete && !complete) {
+                queue(OP_INCOMPLETE, null, null);
+            }
+        }
+
+        writeChanges();
+    }
+
+    public void remove(String key) {
+        synchronized (this) {
+            if (entries.remove(key) == null) {
+                return;
+            }
+
+            queue(OP_REMOVE, key, null);
+        }
+
+        writeChanges();
+    }
+
+    /**
+     * Save the index and stop appending changes to it
+     */
+    public void close() {
+        synchronized (logLock) {
+            saveLocked();
+
+            closed = true;
+            IOUtil.closeQuietly(log);
+            log = null;
+        }
+    }
+
+    /**
+     * Queue a change to be appended to the file, must hold the lock
+     */
+    private void queue(int op, String key, Entry entry) {
+        try {
+            queuedChanges.add(encode(op, key, entry));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Append the queued changes to the file, rewriting it every so often
+     */
+    private void writeChanges() {
+        synchronized (logLock) {
+            List<byte[]> queued = takeQueuedChanges();
+            if (queued.isEmpty()) {
+                // Written by another thread already
+                return;
+            }
+
+            if (log != null) {
+                try {
+                    // Nothing is kept in a buffer, a killed process loses nothing
+                    for (byte[] change : queued) {
+                        log.write(change);
+                    }
+                    log.flush();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to append to index", e);
+                    stopLogging();
+                }
+            }
+
+            changes += queued.size();
+            if (changes >= COMPACT_INTERVAL) {
+                saveLocked();
+            }
+        }
+    }
+
+    private synchronized List<byte[]> takeQueuedChanges() {
+        List<byte[]> queued = queuedChanges;
+        queuedChanges = new ArrayList<byte[]>();
+
+        return queued;
+    }
+
+    /**
+     * Must hold the log lock
+     */
+    private void stopLogging() {
+        IOUtil.closeQuietly(log);
+        log = null;
+
+        // The file is missing changes now, make sure it isn't saved as
+        // complete the next time
+        synchronized (this) {
+            complete = false;
+        }
+    }
+
+    private static byte[] encode(int op, String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream os = new DataOutputStream(bytes);
+
+        os.writeByte(op);
+        if (key != null) {
+            os.writeUTF(key);
+        }
+
+        if (entry != null) {
+            writeEntry(os, entry);
+        }
+
+        os.close();
+        return bytes.toByteArray();
+    }
+
+    private void read() throws IOException {
+        DataInputStream is = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 8192));
+        try {
+            if (is.readInt() != MAGIC) {
+                throw new IOException("Not an index");
+            }
+
+            int version = is.readByte();
+            if (version != VERSION && version != VERSION_1) {
+                throw new IOException("Unsupported version " + version);
+            }
+
+            // Evicting while reading makes it incomplete again
+            complete = is.readBoolean();
+
+            int count = is.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = is.readUTF();
+                entries.put(key, readEntry(is));
+            }
+
+            if (version == VERSION) {
+                readChanges(is);
+            }
+        } finally {
+            IOUtil.closeQuietly(is);
+        }
+    }
+
+    private void readChanges(DataInputStream is) throws IOException {
+        int changeCount = 0;
+        try {
+            int op;
+            while ((op = is.read()) != -1) {
+                if (op == OP_PUT) {
+                    String key = is.readUTF();
+                    entries.put(key, readEntry(is));
+                } else if (op == OP_REMOVE) {
+                    entries.remove(is.readUTF());
+                } else if (op == OP_INCOMPLETE) {
+                    complete = false;
+                } else {
+                    throw new IOException("Unknown change " + op);
+                }
+
+                changeCount++;
+            }
+        } catch (EOFException e) {
+            // The process was killed while appending the last change, which
+            // means the store might have it
+            if (Logger.DEBUG) Log.d(TAG, "Index ends with a partial change");
+            complete = false;
+        }
+
+        if (Logger.VERBOSE) Log.v(TAG, "Read " + changeCount + " changes");
+    }
+
+    private static Entry readEntry(DataInputStream is) throws IOException {
+        long expires = is.readLong();
+        int etagHash = is.readInt();
+        long size = is.readLong();
+
+        return new Entry(expires, etagHash, size);
+    }
+
+    private static void writeEntry(DataOutputStream os, Entry entry) throws IOException {
+        os.writeLong(entry.expires);
+        os.writeInt(entry.etagHash);
+        os.writeLong(entry.size);
+    }
+
+    /**
+     * Rewrite the file with the current entries, changes made in the
+     * meantime are queued and appended once it has been replaced
+     */
+    private void save() {
+        synchronized (logLock) {
+            saveLocked();
+        }
+    }
+
+    /**
+     * Must hold the log lock
+     */
+    private void saveLocked() {
+        if (closed) {
+            return;
+        }
+
+        List<Map.Entry<String, Entry>> snapshot;
+        boolean markComplete;
+        synchronized (this) {
+            snapshot = new ArrayList<Map.Entry<String, Entry>>(entries.entrySet());
+            markComplete = complete;
+
+            // Already part of the snapshot
+            queuedChanges.clear();
+        }
+
+        changes = 0;
+
+        File tmp = new File(file.getPath() + ".tmp");
+        boolean saved = false;
+        try {
+            DataOutputStream os = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 8192));
+            try {
+                os.writeInt(MAGIC);
+                os.writeByte(VERSION);
+                os.writeBoolean(markComplete);
+                os.writeInt(snapshot.size());
+
+                for (Map.Entry<String, Entry> e : snapshot) {
+                    os.writeUTF(e.getKey());
+                    writeEntry(os, e.getValue());
+                }
+            } finally {
+                os.close();
+            }
+
+            saved = true;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save index", e);
+            tmp.delete();
+        }
+
+        if (saved && !tmp.renameTo(file)) {
+            Log.w(TAG, "Failed to rename " + tmp);
+            tmp.delete();
+            saved = false;
+        }
+
+        if (!saved) {
+            // The old file is missing the changes which were only in the
+            // snapshot, stop until the next try
+            stopLogging();
+            return;
+        }
+
+        IOUtil.closeQuietly(log);
+        log = null;
+
+        try {
+            log = new DataOutputStream(new FileOutputStream(file, true));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to append to index", e);
+            stopLogging();
+        }
+    }
+}
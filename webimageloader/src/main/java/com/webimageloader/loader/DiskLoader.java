@@ -7,23 +7,26 @@ import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import android.graphics.Bitmap;
 import android.os.Process;
 import android.util.Log;
 
-import com.jakewharton.disklrucache.DiskLruCache;
-import com.jakewharton.disklrucache.DiskLruCache.Editor;
-import com.jakewharton.disklrucache.DiskLruCache.Snapshot;
 import com.webimageloader.Constants;
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.loader.DiskStore.Editor;
+import com.webimageloader.loader.DiskStore.Snapshot;
 import com.webimageloader.util.ListenerFuture;
 import com.webimageloader.util.BitmapUtils;
-import com.webimageloader.util.Hasher;
 import com.webimageloader.util.IOUtil;
 import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.RawBitmap;
 
+import static com.webimageloader.Request.Flag.DISK_ONLY;
 import static com.webimageloader.Request.Flag.IGNORE_CACHE;
 import static com.webimageloader.Request.Flag.NO_CACHE;
 import static com.webimageloader.Request.Flag.SKIP_DISK_CACHE;
@@ -39,24 +42,111 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
     private static final int INPUT_METADATA = 1;
     private static final int VALUE_COUNT = 2;
 
-    private DiskLruCache cache;
-    private final Hasher hasher;
+    private static final String INDEX_FILE = "metadata.index";
+    private static final int INDEX_MAX_ENTRIES = 32 * 1024;
+
+    private static final String PARTIAL_DIRECTORY = "partial";
+    private static final int PARTIAL_MAX_FILES = 8;
+    /** Smaller downloads aren't worth resuming */
+    private static final int PARTIAL_MIN_SIZE = 64 * 1024;
+
+    private DiskStore cache;
+    private DiskIndex index;
+    private PartialStore partials;
+    private ThreadPoolExecutor writeExecutor;
+
+    private volatile boolean teeEnabled = false;
+    private volatile int rawMaxSize = 0;
 
     public static DiskLoader open(File directory, long maxSize, int threadCount) throws IOException {
-        return new DiskLoader(DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, maxSize), threadCount);
+        return open(directory, maxSize, threadCount, Scheduler.PRIORITY);
     }
 
-    private DiskLoader(DiskLruCache cache, int threadCount) {
-        super("Disk", Process.THREAD_PRIORITY_BACKGROUND, threadCount);
+    public static DiskLoader open(File directory, long maxSize, int threadCount, Scheduler scheduler) throws IOException {
+        return open(directory, maxSize, threadCount, scheduler, DiskLruCacheStore.FACTORY);
+    }
+
+    /**
+     * Open a disk loader
+     *
+     * @param directory cache location
+     * @param maxSize max size of the cache
+     * @param threadCount number of threads
+     * @param scheduler decides in which order requests are loaded
+     * @param storeFactory opens the store used for the cache
+     * @return the loader
+     * @throws IOException if the cache could not be opened
+     */
+    public static DiskLoader open(File directory, long maxSize, int threadCount, Scheduler scheduler, DiskStore.Factory storeFactory) throws IOException {
+        return open(directory, maxSize, threadCount, Constants.DEFAULT_DISK_WRITE_THREADS, scheduler, storeFactory);
+    }
+
+    /**
+     * Open a disk loader. Cache hits are read by their own threads, so that
+     * they never wait behind work done after downloads.
+     *
+     * @param directory cache location
+     * @param maxSize max size of the cache
+     * @param threadCount number of threads reading cache hits
+     * @param writeThreadCount number of threads reading back downloaded
+     *            images and updating entries
+     * @param scheduler decides in which order requests are loaded
+     * @param storeFactory opens the store used for the cache
+     * @return the loader
+     * @throws IOException if the cache could not be opened
+     */
+    public static DiskLoader open(File directory, long maxSize, int threadCount, int writeThreadCount, Scheduler scheduler, DiskStore.Factory storeFactory) throws IOException {
+        DiskStore cache = storeFactory.open(directory, APP_VERSION, VALUE_COUNT, maxSize);
+        DiskIndex index = DiskIndex.open(new File(directory, INDEX_FILE), INDEX_MAX_ENTRIES, cache.size() == 0);
+        PartialStore partials = PartialStore.open(new File(directory, PARTIAL_DIRECTORY), PARTIAL_MAX_FILES);
+
+        return new DiskLoader(cache, index, partials, threadCount, writeThreadCount, scheduler);
+    }
+
+    private DiskLoader(DiskStore cache, DiskIndex index, PartialStore partials, int threadCount, int writeThreadCount, Scheduler scheduler) {
+        super("Disk", Process.THREAD_PRIORITY_BACKGROUND, threadCount, scheduler);
 
         this.cache = cache;
-        hasher = new Hasher();
+        this.index = index;
+        this.partials = partials;
+
+        // Slightly less favorable so reads get the CPU and disk first
+        writeExecutor = scheduler.createExecutor("Disk write",
+                Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE, writeThreadCount);
+    }
+
+    /**
+     * Write downloaded images to the cache while they are being decoded,
+     * instead of saving them first and decoding them from the cache
+     * afterwards. This avoids reading each downloaded image back from disk
+     * and a hop through the disk threads before decoding can start.
+     * <p>
+     * Decoding then happens on the network threads, which might need more of
+     * them.
+     *
+     * @param enabled true to enable
+     */
+    public void setTeeEnabled(boolean enabled) {
+        teeEnabled = enabled;
+    }
+
+    /**
+     * Store transformed images up to this size as uncompressed pixels,
+     * which can be read back without decoding them. Larger images are
+     * compressed as usual.
+     *
+     * @param maxSize max size in bytes of images stored this way, 0 to disable
+     */
+    public void setRawMaxSize(int maxSize) {
+        rawMaxSize = maxSize;
     }
 
     @Override
     public void close() {
         super.close();
+        writeExecutor.shutdownNow();
 
+        index.close();
         IOUtil.closeQuietly(cache);
     }
 
@@ -67,37 +157,155 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
             return;
         }
 
+        String key = hashKeyForDisk(request);
+        if (index.isMissing(key) && !partials.contains(key)) {
+            // No need to wait for a disk thread to find out
+            if (Logger.VERBOSE) Log.v(TAG, request + " is not on disk");
+            manager.next(request, new NextListener(request, manager));
+            return;
+        }
+
         super.load(manager, request);
     }
 
+    @Override
+    protected TimingListener.Source getSource() {
+        return TimingListener.Source.DISK;
+    }
+
     @Override
     protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws IOException {
-        Snapshot snapshot = getSnapshot(request);
+        long start = System.nanoTime();
+
+        String key = hashKeyForDisk(request);
+        Snapshot snapshot = cache.get(key);
         if (snapshot != null) {
             try {
+                if (request.hasFlag(DISK_ONLY)) {
+                    // The index can't be trusted on its own, the store might
+                    // have evicted the entry without telling it
+                    DiskIndex.Entry entry = index.get(key);
+                    if (entry != null && !entry.isExpired(System.currentTimeMillis())) {
+                        // Already there and nothing will be decoded, the
+                        // metadata isn't needed either
+                        if (Logger.VERBOSE) Log.v(TAG, request + " is already on disk");
+                        manager.setSource(TimingListener.Source.DISK);
+                        manager.deliverStream(new DiskInputSupplier(request), null);
+                        return;
+                    }
+                }
+
                 if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from disk");
 
-                Metadata metadata = readMetadata(snapshot);
-                DiskInputSupplier input = new DiskInputSupplier(request, snapshot);
+                // The metadata is in front of the image, so one stream
+                // serves both
+                InputStream is = new BufferedInputStream(snapshot.getInputStream(INPUT_IMAGE), BUFFER_SIZE);
+                Metadata metadata = Metadata.readHeader(is);
 
-                manager.deliverStream(input, metadata);
+                boolean legacy = metadata == null;
+                if (legacy) {
+                    metadata = readLegacyMetadata(snapshot);
+                }
+
+                manager.setSource(TimingListener.Source.DISK);
+                manager.recordTiming(request, TimingListener.Stage.DISK_READ, start);
 
-                long expires = metadata.getExpires();
-                if (expires != Metadata.NEVER_EXPIRES && System.currentTimeMillis() > expires) {
+                DiskIndex.Entry entry;
+                if (legacy) {
+                    // The index is only updated once migrated, which
+                    // happens in the background
+                    migrate(manager, request, metadata);
+                    entry = new DiskIndex.Entry(metadata, DiskIndex.UNKNOWN_SIZE);
+                } else {
+                    // The index knows about revalidations which didn't
+                    // rewrite the entry
+                    long length = snapshot.getLength(INPUT_IMAGE);
+                    entry = index.get(key);
+                    if (entry == null || !entry.matches(metadata, length)) {
+                        entry = new DiskIndex.Entry(metadata, length);
+                        index.put(key, entry);
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                boolean expired = entry != null && entry.isExpired(now);
+                if (expired && !metadata.canUseWhileRevalidating(entry.getExpires(), now)) {
+                    // Too stale to show, ask the server first
+                    if (Logger.VERBOSE) Log.v(TAG, request + " has expired, revalidating before use");
+                    LoaderRequest revalidate = request.withMetadata(metadata);
+                    manager.next(revalidate, new RevalidateListener(revalidate, manager, entry.getExpires()));
+                    return;
+                }
+
+                deliver(manager, request, snapshot, is, legacy ? 0 : metadata.getHeaderSize(), metadata);
+
+                if (expired) {
                     // Cache has expired
                     if (Logger.VERBOSE) Log.v(TAG, request + " has expired, updating");
-                    manager.next(request.withMetadata(metadata), new NextListener(request, manager));
+                    LoaderRequest revalidate = request.withMetadata(metadata);
+                    manager.next(revalidate, new NextListener(revalidate, manager));
                 }
             } finally {
                 snapshot.close();
             }
         } else {
-            // We need to add the next loader
-            manager.next(request, new NextListener(request, manager));
+            // Evicted by the store
+            index.remove(key);
+
+            // We need to add the next loader, continuing where an earlier
+            // download stopped if possible
+            PartialStore.Entry partial = partials.get(key);
+            manager.next(partial != null ? request.withPartial(partial) : request, new NextListener(request, manager));
+        }
+    }
+
+    /**
+     * Deliver the image of an open entry
+     *
+     * @param is stream of the image positioned after the header
+     * @param headerSize size of the header, 0 if the entry has none
+     */
+    private void deliver(LoaderWork.Manager manager, LoaderRequest request, Snapshot snapshot, InputStream is, int headerSize, Metadata metadata) throws IOException {
+        Bitmap raw = readRaw(request, snapshot, is, headerSize);
+        if (raw != null) {
+            is.close();
+            manager.deliverBitmap(raw, metadata);
+        } else {
+            manager.deliverStream(new DiskInputSupplier(request, snapshot, is, headerSize), metadata);
         }
     }
 
-    private Metadata readMetadata(Snapshot snapshot) throws IOException {
+    /**
+     * Deliver the cached image from a disk thread, used after the network
+     * was asked about it first
+     */
+    private void deliverFromDisk(final LoaderWork.Manager manager, final LoaderRequest request, final Metadata metadata) {
+        run(manager, new ListenerFuture.Task() {
+            @Override
+            public void run() throws Exception {
+                Snapshot snapshot = getSnapshot(request);
+                if (snapshot == null) {
+                    throw new IOException("Snapshot not available");
+                }
+
+                try {
+                    InputStream is = new BufferedInputStream(snapshot.getInputStream(INPUT_IMAGE), BUFFER_SIZE);
+                    Metadata header = Metadata.readHeader(is);
+
+                    manager.setSource(TimingListener.Source.DISK);
+                    deliver(manager, request, snapshot, is, header != null ? header.getHeaderSize() : 0, metadata);
+                } finally {
+                    snapshot.close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Read metadata of entries written before it was stored in front of
+     * the image
+     */
+    private Metadata readLegacyMetadata(Snapshot snapshot) throws IOException {
         // Use a small buffer as the metadata itself is small
         InputStream is = new BufferedInputStream(snapshot.getInputStream(INPUT_METADATA), 1024);
         try {
@@ -107,6 +315,114 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
         }
     }
 
+    /**
+     * Move the metadata of an entry in the old format in front of its
+     * image, done the first time it's loaded
+     */
+    private void migrate(LoaderWork.Manager manager, final LoaderRequest request, final Metadata metadata) {
+        run(writeExecutor, manager, new ListenerFuture.Task() {
+            @Override
+            public void run() {
+                migrate(request, metadata);
+            }
+        });
+    }
+
+    private void migrate(LoaderRequest request, Metadata metadata) {
+        if (Logger.VERBOSE) Log.v(TAG, "Migrating " + request + " to the new format");
+
+        try {
+            Editor editor = getEditor(request);
+
+            try {
+                Snapshot snapshot = getSnapshot(request);
+                if (snapshot == null) {
+                    return;
+                }
+
+                try {
+                    writeEntry(editor, metadata, snapshot.getInputStream(INPUT_IMAGE));
+                    putIndex(request, metadata);
+                } finally {
+                    snapshot.close();
+                }
+            } finally {
+                editor.abortUnlessCommitted();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to migrate " + request, e);
+        }
+    }
+
+    private void putIndex(LoaderRequest request, Metadata metadata) {
+        index.put(hashKeyForDisk(request), new DiskIndex.Entry(metadata, DiskIndex.UNKNOWN_SIZE));
+    }
+
+    /**
+     * Write an entry from an image which has no header
+     */
+    private void writeEntry(Editor editor, Metadata metadata, InputStream image) throws IOException {
+        OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
+        try {
+            metadata.writeHeader(os);
+
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int i;
+            while ((i = image.read(buffer)) != -1) {
+                os.write(buffer, 0, i);
+            }
+        } finally {
+            IOUtil.closeQuietly(image);
+            os.close();
+        }
+
+        clearLegacyMetadata(editor);
+        editor.commit();
+    }
+
+    /**
+     * The separate metadata value is no longer used, but is kept so that
+     * old entries remain readable
+     */
+    private void clearLegacyMetadata(Editor editor) throws IOException {
+        editor.newOutputStream(INPUT_METADATA).close();
+    }
+
+    /**
+     * Read the image if it was stored as raw pixels
+     *
+     * @param is stream of the image positioned after the header, which
+     *            must support mark
+     * @param offset where the image starts
+     * @return the bitmap or null if it is a regular image
+     */
+    private Bitmap readRaw(LoaderRequest request, Snapshot snapshot, InputStream is, int offset) throws IOException {
+        // Only transformed images are stored raw, and only if enabled
+        if (request.getTransformation() == null || rawMaxSize == 0) {
+            return null;
+        }
+
+        // The magic number is already buffered, only map raw images
+        if (!RawBitmap.isRawBitmap(is)) {
+            return null;
+        }
+
+        // Mapping leaves the stream untouched
+        ByteBuffer buffer = snapshot.map(INPUT_IMAGE);
+        if (buffer == null || buffer.limit() < offset) {
+            return null;
+        }
+
+        buffer.position(offset);
+        if (!RawBitmap.isRawBitmap(buffer)) {
+            return null;
+        }
+
+        if (Logger.VERBOSE) Log.v(TAG, "Reading raw pixels of " + request);
+
+        return RawBitmap.read(buffer);
+    }
+
     private Snapshot getSnapshot(LoaderRequest request) throws IOException {
         String key = hashKeyForDisk(request);
         return cache.get(key);
@@ -128,18 +444,13 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
      * for using as a disk filename.
      */
     private String hashKeyForDisk(LoaderRequest request) {
-        String key = request.getCacheKey();
-
-        // We don't except to have a lot of threads
-        // so it's okay to synchronize access
-        synchronized (hasher) {
-            return hasher.hash(key);
-        }
+        // Computed once per key
+        return request.getKey().getDiskName();
     }
 
     private class NextListener implements Listener {
-        private LoaderRequest request;
-        private LoaderWork.Manager manager;
+        protected LoaderRequest request;
+        protected LoaderWork.Manager manager;
 
         public NextListener(LoaderRequest request, LoaderWork.Manager manager) {
             this.request = request;
@@ -153,26 +464,58 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
                 return;
             }
 
+            if (metadata != null && metadata.isNoStore()) {
+                if (Logger.VERBOSE) Log.v(TAG, request + " may not be stored, skipping disk");
+                removeStored();
+                manager.deliverStream(input, metadata);
+                return;
+            }
+
+            // Nothing will be decoded from a disk only request
+            if (teeEnabled && !request.hasFlag(DISK_ONLY)) {
+                deliverTee(input, metadata);
+                return;
+            }
+
             try {
                 Editor editor = getEditor(request);
 
                 OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
+                PartialStore.Writer partial = beginPartial(input, metadata);
                 try {
+                    long start = System.nanoTime();
                     try {
-                        copy(input, os);
+                        metadata.writeHeader(os);
+                        copy(input, partial != null ? partial.mirror(os) : os);
                     } finally {
                         os.close();
                     }
+                    manager.recordTiming(request, TimingListener.Stage.DOWNLOAD, start);
 
-                    writeMetadata(editor, metadata);
+                    clearLegacyMetadata(editor);
 
                     editor.commit();
+                    putIndex(request, metadata);
+
+                    if (partial != null) {
+                        partial.discard();
+                    } else {
+                        partials.remove(hashKeyForDisk(request));
+                    }
+
+                    if (request.hasFlag(DISK_ONLY)) {
+                        // Nobody reads it, no need to go through a thread
+                        manager.deliverStream(new DiskInputSupplier(request), metadata);
+                        return;
+                    }
 
-                    // Read back the file we just saved
-                    run(manager, new ListenerFuture.Task() {
+                    // Read back the file we just saved, cache hits
+                    // shouldn't have to wait for it
+                    run(writeExecutor, manager, new ListenerFuture.Task() {
                         @Override
                         public void run() throws Exception {
                             DiskInputSupplier input = new DiskInputSupplier(request);
+                            manager.setSource(TimingListener.Source.DISK);
                             manager.deliverStream(input, metadata);
                         }
                     });
@@ -180,6 +523,13 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
                     // We failed writing to the cache, we can't really do
                     // anything to clean this up
                     editor.abort();
+
+                    // Probably the download which failed, keep what we got
+                    // so that the next attempt can resume it
+                    if (partial != null) {
+                        partial.keep();
+                    }
+
                     manager.deliverError(e);
                 }
             } catch (IOException e) {
@@ -191,6 +541,55 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
             }
         }
 
+        /**
+         * Start saving a large download on the side, so it can be resumed
+         * if it doesn't finish
+         *
+         * @return the writer or null if the download won't be saved
+         */
+        private PartialStore.Writer beginPartial(InputSupplier input, Metadata metadata) {
+            if (!PartialStore.canResume(metadata)) {
+                return null;
+            }
+
+            try {
+                // Unknown lengths are -1
+                if (input.getLength() < PARTIAL_MIN_SIZE) {
+                    return null;
+                }
+
+                return partials.begin(hashKeyForDisk(request), metadata);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed saving partial download of " + request, e);
+                return null;
+            }
+        }
+
+        private void deliverTee(InputSupplier input, Metadata metadata) {
+            Editor editor;
+            try {
+                editor = getEditor(request);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed opening cache", e);
+                manager.deliverStream(input, metadata);
+                return;
+            }
+
+            TeeInputSupplier tee = new TeeInputSupplier(input, editor, metadata);
+            try {
+                manager.deliverStream(tee, metadata);
+            } finally {
+                try {
+                    tee.finish();
+                    if (tee.committed) {
+                        partials.remove(hashKeyForDisk(request));
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed saving " + request + " to cache", e);
+                }
+            }
+        }
+
         public void copy(InputSupplier input, OutputStream output) throws IOException {
             long length = input.getLength();
             InputStream is = new BufferedInputStream(input.getInput(), BUFFER_SIZE);
@@ -211,6 +610,8 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
                 long progress = 0;
                 int i;
                 while ((i = input.read(buffer)) != -1) {
+                    checkCancelled();
+
                     output.write(buffer, 0, i);
                     progress += i;
                     manager.publishProgress(Math.min(1f, (float) progress / length));
@@ -218,22 +619,46 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
             } else {
                 int i;
                 while ((i = input.read(buffer)) != -1) {
+                    checkCancelled();
+
                     output.write(buffer, 0, i);
                 }
             }
         }
 
+        private void checkCancelled() throws IOException {
+            // Stop copying, the partial file will be discarded
+            if (manager.isCancelled()) {
+                throw new InterruptedIOException("Request was cancelled");
+            }
+        }
+
         @Override
         public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            if (metadata != null && metadata.isNoStore()) {
+                removeStored();
+                manager.deliverBitmap(b, metadata);
+                return;
+            }
+
             try {
                 Editor editor = getEditor(request);
 
                 try {
-                    Bitmap.CompressFormat format = BitmapUtils.getCompressFormat(metadata.getContentType());
-                    writeBitmap(editor, b, format);
-                    writeMetadata(editor, metadata);
+                    long start = System.nanoTime();
+
+                    if (shouldWriteRaw(b)) {
+                        writeRaw(editor, b, metadata);
+                    } else {
+                        Bitmap.CompressFormat format = BitmapUtils.getCompressFormat(metadata.getContentType());
+                        writeBitmap(editor, b, format, metadata);
+                    }
+                    clearLegacyMetadata(editor);
 
                     editor.commit();
+                    putIndex(request, metadata);
+
+                    manager.recordTiming(request, TimingListener.Stage.DISK_WRITE, start);
                 } finally {
                     editor.abortUnlessCommitted();
                 }
@@ -248,21 +673,89 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
 
         @Override
         public void onNotModified(Metadata metadata) {
+            update(metadata);
+            manager.deliverNotMotified(metadata);
+        }
+
+        /**
+         * Store the metadata of a revalidated entry
+         */
+        protected void update(final Metadata metadata) {
+            String key = hashKeyForDisk(request);
+            DiskIndex.Entry entry = index.get(key);
+            if (entry != null && hasSameStaleness(request.getMetadata(), metadata)) {
+                // Only the expiry changed, keep it in the index instead of
+                // rewriting the whole entry
+                index.put(key, entry.withExpires(metadata.getExpires()));
+            } else {
+                run(writeExecutor, manager, new ListenerFuture.Task() {
+                    @Override
+                    public void run() {
+                        rewrite(metadata);
+                    }
+                });
+            }
+        }
+
+        /**
+         * The index only keeps the expiry, anything else which changed
+         * needs the entry to be rewritten
+         */
+        private boolean hasSameStaleness(Metadata stored, Metadata metadata) {
+            return stored == null
+                    || (stored.getStaleWhileRevalidate() == metadata.getStaleWhileRevalidate()
+                    && stored.getStaleIfError() == metadata.getStaleIfError());
+        }
+
+        /**
+         * Forget any copy stored before the server asked us not to
+         */
+        private void removeStored() {
+            final String key = hashKeyForDisk(request);
+            if (index.isMissing(key)) {
+                return;
+            }
+
+            run(writeExecutor, manager, new ListenerFuture.Task() {
+                @Override
+                public void run() throws IOException {
+                    cache.remove(key);
+                    index.remove(key);
+                }
+            });
+        }
+
+        /**
+         * Replace the metadata of the entry, as it lives in front of the
+         * image the whole entry is rewritten
+         */
+        private void rewrite(Metadata metadata) {
             try {
                 Editor editor = getEditor(request);
 
                 try {
-                    writeMetadata(editor, metadata);
+                    long start = System.nanoTime();
 
-                    editor.commit();
+                    Snapshot snapshot = getSnapshot(request);
+                    if (snapshot != null) {
+                        try {
+                            InputStream is = new BufferedInputStream(snapshot.getInputStream(INPUT_IMAGE), BUFFER_SIZE);
+                            Metadata.readHeader(is);
+
+                            writeEntry(editor, metadata, is);
+                            putIndex(request, metadata);
+                        } finally {
+                            snapshot.close();
+                        }
+
+                        manager.recordTiming(request, TimingListener.Stage.DISK_WRITE, start);
+                    }
                 } finally {
                     editor.abortUnlessCommitted();
                 }
             } catch (IOException e) {
                 Log.e(TAG, "Failed to update metadata", e);
             }
-
-            manager.deliverNotMotified(metadata);
         }
 
         @Override
@@ -270,18 +763,247 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
             manager.deliverError(t);
         }
 
-        private void writeMetadata(Editor editor, Metadata metadata) throws IOException {
-            OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_METADATA), BUFFER_SIZE);
+        /**
+         * Supplies the downloaded image while writing it to the cache. The
+         * first stream reads from the network, anything not read by the
+         * time it is closed is copied to the cache before committing. Any
+         * later streams are read back from the cache.
+         */
+        private class TeeInputSupplier implements InputSupplier {
+            private InputSupplier input;
+            private Editor editor;
+            private Metadata metadata;
+
+            private TeeInputStream stream;
+            private boolean committed = false;
+
+            public TeeInputSupplier(InputSupplier input, Editor editor, Metadata metadata) {
+                this.input = input;
+                this.editor = editor;
+                this.metadata = metadata;
+            }
+
+            @Override
+            public long getLength() throws IOException {
+                return input.getLength();
+            }
+
+            @Override
+            public synchronized InputStream getInput() throws IOException {
+                if (stream == null) {
+                    OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
+                    metadata.writeHeader(os);
+                    stream = new TeeInputStream(input.getInput(), os, input.getLength());
+
+                    return stream;
+                }
+
+                // Opened again, save everything so we can read it from disk
+                stream.close();
+
+                if (committed) {
+                    return new DiskInputSupplier(request).getInput();
+                } else {
+                    // Caching failed, fall back to the original input
+                    return input.getInput();
+                }
+            }
+
+            /**
+             * Make sure the cache entry is either committed or aborted, even
+             * if the stream was never opened or closed
+             */
+            public synchronized void finish() throws IOException {
+                if (stream != null) {
+                    stream.close();
+                } else if (manager.isCancelled()) {
+                    editor.abort();
+                } else {
+                    // Nobody read it, save it anyway
+                    try {
+                        OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
+                        try {
+                            metadata.writeHeader(os);
+                            copy(input, os);
+                        } finally {
+                            os.close();
+                        }
+
+                        commit();
+                    } finally {
+                        editor.abortUnlessCommitted();
+                    }
+                }
+            }
+
+            private void commit() throws IOException {
+                clearLegacyMetadata(editor);
+                editor.commit();
+                putIndex(request, metadata);
+
+                committed = true;
+            }
+
+            private class TeeInputStream extends FilterInputStream {
+                private OutputStream output;
+                private long length;
+                private long progress = 0;
+
+                private long start;
+                private boolean failed = false;
+                private boolean closed = false;
+
+                public TeeInputStream(InputStream in, OutputStream output, long length) {
+                    super(in);
+
+                    this.output = output;
+                    this.length = length;
+
+                    start = System.nanoTime();
+                    if (length != -1) {
+                        manager.publishProgress(0f);
+                    }
+                }
+
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    int i = read(b, 0, 1);
+
+                    return i == -1 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    if (closed) {
+                        throw new IOException("Stream closed");
+                    }
+
+                    int i;
+                    try {
+                        checkCancelled();
+                        i = in.read(buffer, offset, count);
+                    } catch (IOException e) {
+                        failed = true;
+                        throw e;
+                    }
+
+                    if (i > 0) {
+                        write(buffer, offset, i);
+                    }
+
+                    return i;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    // Skipped bytes still have to be written
+                    byte[] buffer = new byte[(int) Math.min(count, BUFFER_SIZE)];
+
+                    long skipped = 0;
+                    while (skipped < count) {
+                        int i = read(buffer, 0, (int) Math.min(count - skipped, buffer.length));
+                        if (i == -1) {
+                            break;
+                        }
+
+                        skipped += i;
+                    }
+
+                    return skipped;
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                @Override
+                public void mark(int readlimit) {}
+
+                @Override
+                public void reset() throws IOException {
+                    throw new IOException("Mark not supported");
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+
+                    closed = true;
+
+                    try {
+                        if (!failed && output != null && !manager.isCancelled()) {
+                            // Save whatever the decoder didn't need
+                            byte[] buffer = new byte[BUFFER_SIZE];
+                            int i;
+                            while ((i = in.read(buffer)) != -1) {
+                                checkCancelled();
+                                write(buffer, 0, i);
+                            }
+
+                            if (output != null) {
+                                output.close();
+                                output = null;
+
+                                commit();
+                                manager.recordTiming(request, TimingListener.Stage.DOWNLOAD, start);
+                            }
+                        }
+                    } finally {
+                        IOUtil.closeQuietly(output);
+                        editor.abortUnlessCommitted();
+
+                        super.close();
+                    }
+                }
+
+                private void write(byte[] buffer, int offset, int count) {
+                    if (output != null) {
+                        try {
+                            output.write(buffer, offset, count);
+                        } catch (IOException e) {
+                            // Keep feeding the decoder, just don't cache it
+                            Log.e(TAG, "Failed writing " + request + " to cache", e);
+
+                            IOUtil.closeQuietly(output);
+                            output = null;
+                        }
+                    }
+
+                    if (length != -1) {
+                        progress += count;
+                        manager.publishProgress(Math.min(1f, (float) progress / length));
+                    }
+                }
+            }
+        }
+
+        private boolean shouldWriteRaw(Bitmap b) {
+            if (rawMaxSize <= 0 || request.getTransformation() == null) {
+                return false;
+            }
+
+            int size = RawBitmap.getSize(b);
+            return size != -1 && size <= rawMaxSize;
+        }
+
+        private void writeRaw(Editor editor, Bitmap b, Metadata metadata) throws IOException {
+            OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
             try {
-                metadata.writeTo(os);
+                metadata.writeHeader(os);
+                RawBitmap.write(b, os);
             } finally {
                 IOUtil.closeQuietly(os);
             }
         }
 
-        private void writeBitmap(Editor editor, Bitmap b, Bitmap.CompressFormat format) throws IOException {
+        private void writeBitmap(Editor editor, Bitmap b, Bitmap.CompressFormat format, Metadata metadata) throws IOException {
             OutputStream os = new BufferedOutputStream(editor.newOutputStream(INPUT_IMAGE), BUFFER_SIZE);
             try {
+                metadata.writeHeader(os);
                 b.compress(format, Constants.DEFAULT_COMPRESS_QUALITY, os);
             } finally {
                 IOUtil.closeQuietly(os);
@@ -289,36 +1011,113 @@ public class DiskLoader extends SimpleBackgroundLoader implements Closeable {
         }
     }
 
+    /**
+     * Listens to the revalidation of an entry too stale to be shown before
+     * asking the server. The cached image is delivered if it was not
+     * modified, or if the server can't be reached and the entry allows
+     * being used on errors.
+     */
+    private class RevalidateListener extends NextListener {
+        private long expires;
+
+        /**
+         * @param request the request with the metadata of the entry
+         * @param expires when the entry expired
+         */
+        public RevalidateListener(LoaderRequest request, LoaderWork.Manager manager, long expires) {
+            super(request, manager);
+
+            this.expires = expires;
+        }
+
+        @Override
+        public void onNotModified(Metadata metadata) {
+            update(metadata);
+            deliverFromDisk(manager, request, metadata);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            Metadata metadata = request.getMetadata();
+            if (metadata.canUseOnError(expires, System.currentTimeMillis())) {
+                Log.w(TAG, "Failed revalidating " + request + ", using stale copy", t);
+                deliverFromDisk(manager, request, metadata);
+            } else {
+                manager.deliverError(t);
+            }
+        }
+    }
+
+    /**
+     * Supplies the image of an entry, skipping the metadata in front of it
+     */
     private class DiskInputSupplier implements InputSupplier {
         private String key;
         private Snapshot snapshot;
 
+        private InputStream opened;
+        private int headerSize = -1;
+
         public DiskInputSupplier(LoaderRequest request) {
-            this(request, null);
+            this(request, null, null, -1);
         }
 
-        public DiskInputSupplier(LoaderRequest request, Snapshot snapshot) {
+        /**
+         * @param snapshot an open snapshot of the entry
+         * @param opened a stream of the image already positioned after
+         *            the header, returned by the first {@link #getInput()}
+         * @param headerSize size of the header, 0 if the entry has none
+         */
+        public DiskInputSupplier(LoaderRequest request, Snapshot snapshot, InputStream opened, int headerSize) {
             this.key = hashKeyForDisk(request);
             this.snapshot = snapshot;
+            this.opened = opened;
+            this.headerSize = headerSize;
         }
 
         @Override
         public long getLength() throws IOException {
-            return cache.get(key).getLength(INPUT_IMAGE);
+            if (snapshot != null && headerSize != -1) {
+                return snapshot.getLength(INPUT_IMAGE) - headerSize;
+            }
+
+            Snapshot s = cache.get(key);
+            if (s == null) {
+                throw new IOException("Snapshot not available");
+            }
+
+            try {
+                InputStream is = new BufferedInputStream(s.getInputStream(INPUT_IMAGE), 1024);
+                Metadata metadata = Metadata.readHeader(is);
+
+                return s.getLength(INPUT_IMAGE) - (metadata != null ? metadata.getHeaderSize() : 0);
+            } finally {
+                s.close();
+            }
         }
 
         @Override
         public InputStream getInput() throws IOException {
-            if (snapshot == null) {
-                snapshot = cache.get(key);
-
+            InputStream is;
+            if (opened != null) {
+                is = opened;
+                opened = null;
+            } else {
                 if (snapshot == null) {
-                    throw new IOException("Snapshot not available");
+                    snapshot = cache.get(key);
+
+                    if (snapshot == null) {
+                        throw new IOException("Snapshot not available");
+                    }
                 }
+
+                is = new BufferedInputStream(snapshot.getInputStream(INPUT_IMAGE), BUFFER_SIZE);
+                Metadata metadata = Metadata.readHeader(is);
+                headerSize = metadata != null ? metadata.getHeaderSize() : 0;
             }
 
             // Wrap input stream so we can close the snapshot
-            return new FilterInputStream(snapshot.getInputStream(INPUT_IMAGE)) {
+            return new FilterInputStream(is) {
                 @Override
                 public void close() throws IOException {
                     super.close();
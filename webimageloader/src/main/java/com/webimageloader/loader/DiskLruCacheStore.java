@@ -0,0 +1,117 @@
+package com.webimageloader.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.jakewharton.disklrucache.DiskLruCache;
+
+/**
+ * {@link DiskStore} keeping every value in a file of its own using
+ * {@link DiskLruCache}. This is the default.
+ */
+public class DiskLruCacheStore implements DiskStore {
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public DiskStore open(File directory, int appVersion, int valueCount, long maxSize) throws IOException {
+            return new DiskLruCacheStore(DiskLruCache.open(directory, appVersion, valueCount, maxSize));
+        }
+    };
+
+    private DiskLruCache cache;
+
+    public DiskLruCacheStore(DiskLruCache cache) {
+        this.cache = cache;
+    }
+
+    @Override
+    public Snapshot get(String key) throws IOException {
+        DiskLruCache.Snapshot snapshot = cache.get(key);
+
+        return snapshot != null ? new FileSnapshot(snapshot) : null;
+    }
+
+    @Override
+    public Editor edit(String key) throws IOException {
+        final DiskLruCache.Editor editor = cache.edit(key);
+        if (editor == null) {
+            return null;
+        }
+
+        return new Editor() {
+            @Override
+            public OutputStream newOutputStream(int index) throws IOException {
+                return editor.newOutputStream(index);
+            }
+
+            @Override
+            public void commit() throws IOException {
+                editor.commit();
+            }
+
+            @Override
+            public void abort() throws IOException {
+                editor.abort();
+            }
+
+            @Override
+            public void abortUnlessCommitted() {
+                editor.abortUnlessCommitted();
+            }
+        };
+    }
+
+    @Override
+    public boolean remove(String key) throws IOException {
+        return cache.remove(key);
+    }
+
+    @Override
+    public long size() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        cache.close();
+    }
+
+    private static class FileSnapshot implements Snapshot {
+        private DiskLruCache.Snapshot snapshot;
+
+        public FileSnapshot(DiskLruCache.Snapshot snapshot) {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public InputStream getInputStream(int index) {
+            return snapshot.getInputStream(index);
+        }
+
+        @Override
+        public long getLength(int index) {
+            return snapshot.getLength(index);
+        }
+
+        @Override
+        public ByteBuffer map(int index) throws IOException {
+            InputStream is = snapshot.getInputStream(index);
+            if (!(is instanceof FileInputStream)) {
+                return null;
+            }
+
+            // Mapping doesn't move the position of the stream
+            FileChannel channel = ((FileInputStream) is).getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        @Override
+        public void close() {
+            snapshot.close();
+        }
+    }
+}
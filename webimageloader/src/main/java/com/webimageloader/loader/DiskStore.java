@@ -0,0 +1,129 @@
+package com.webimageloader.loader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Storage used by {@link DiskLoader}. Each entry has a string key and a fixed
+ * number of values, which are replaced together when editing an entry. The
+ * store evicts entries by itself to stay below its max size.
+ * <p>
+ * Implementations have to be thread safe.
+ *
+ * @see DiskLruCacheStore
+ * @see PackedDiskStore
+ */
+public interface DiskStore extends Closeable {
+    /**
+     * Opens a store, used so that the caller decides about the version and
+     * number of values
+     */
+    interface Factory {
+        /**
+         * Open a store, creating it if needed
+         *
+         * @param directory directory to keep the store in
+         * @param appVersion version of the stored data, existing data is
+         *                   discarded if it was written by another version
+         * @param valueCount number of values per entry
+         * @param maxSize max size in bytes
+         * @return the store
+         * @throws IOException if the store could not be opened
+         */
+        DiskStore open(File directory, int appVersion, int valueCount, long maxSize) throws IOException;
+    }
+
+    /**
+     * The values of an entry at the time it was read, unaffected by later
+     * edits
+     */
+    interface Snapshot extends Closeable {
+        /**
+         * @param index the value
+         * @return a stream of the value
+         * @throws IOException if the value could not be opened
+         */
+        InputStream getInputStream(int index) throws IOException;
+
+        /**
+         * @param index the value
+         * @return the length of the value in bytes
+         */
+        long getLength(int index);
+
+        /**
+         * Get the value as a read only buffer, memory mapped if possible
+         *
+         * @param index the value
+         * @return the buffer or null if not supported
+         * @throws IOException if mapping failed
+         */
+        ByteBuffer map(int index) throws IOException;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Edit of an entry. Values not written keep their previous contents, for
+     * new entries every value has to be written.
+     */
+    interface Editor {
+        /**
+         * @param index the value
+         * @return a stream replacing the value, must be closed before committing
+         * @throws IOException if the stream could not be opened
+         */
+        OutputStream newOutputStream(int index) throws IOException;
+
+        /**
+         * Publish the edit, making it visible to readers
+         *
+         * @throws IOException if it could not be published
+         */
+        void commit() throws IOException;
+
+        /**
+         * Discard the edit
+         *
+         * @throws IOException if cleaning up failed
+         */
+        void abort() throws IOException;
+
+        /**
+         * Discard the edit unless it has already been committed, to be
+         * called in a finally block
+         */
+        void abortUnlessCommitted();
+    }
+
+    /**
+     * @param key the key
+     * @return a snapshot or null if there is no such entry
+     * @throws IOException if reading failed
+     */
+    Snapshot get(String key) throws IOException;
+
+    /**
+     * @param key the key
+     * @return an editor or null if the entry is already being edited
+     * @throws IOException if editing failed
+     */
+    Editor edit(String key) throws IOException;
+
+    /**
+     * @param key the key
+     * @return true if an entry was removed
+     * @throws IOException if removing failed
+     */
+    boolean remove(String key) throws IOException;
+
+    /**
+     * @return the size of all entries in bytes
+     */
+    long size();
+}
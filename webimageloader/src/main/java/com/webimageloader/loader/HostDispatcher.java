@@ -0,0 +1,224 @@
+package com.webimageloader.loader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares the network threads between hosts. Work is still queued by the
+ * {@link Scheduler}, but once it gets a thread it is checked here first. A
+ * host which already has its share of the threads while other hosts have work
+ * waiting, or which is at the per-host limit, has the work parked instead of
+ * taking the thread. Whenever a download finishes parked work is handed back
+ * to the thread pool, going round-robin over the hosts.
+ * <p>
+ * The share of a host is the thread count divided by the number of hosts with
+ * work, a single host can still use every thread.
+ */
+class HostDispatcher {
+    private final int maxPerHost;
+
+    // Insertion ordered for the round-robin
+    private final LinkedHashMap<String, Host> hosts = new LinkedHashMap<String, Host>();
+    private String lastPromoted;
+
+    /**
+     * @param maxPerHost max number of downloads per host, 0 for no limit
+     */
+    public HostDispatcher(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+    }
+
+    /**
+     * Called when work for a host is queued in the thread pool
+     */
+    public synchronized void onQueued(String host, LoaderWork.Manager manager) {
+        getHost(host).queued.add(manager);
+    }
+
+    /**
+     * Called from the thread about to download
+     *
+     * @param resume queues the work again if it has to wait
+     * @param threadCount the current number of threads
+     * @return true if the download can start, false if it was parked
+     */
+    public synchronized boolean tryStart(String host, LoaderWork.Manager manager, Runnable resume, int threadCount) {
+        Host h = getHost(host);
+        removeIdentity(h.queued, manager);
+
+        if (!canStart(host, h, threadCount)) {
+            h.parked.add(new Parked(manager, resume));
+            return false;
+        }
+
+        h.running++;
+        return true;
+    }
+
+    /**
+     * Called when a download has finished, returns parked work to queue again
+     * as threads are now free
+     *
+     * @param threadCount the current number of threads
+     * @return work to resume, should be run without holding any locks
+     */
+    public synchronized List<Runnable> onFinished(String host, int threadCount) {
+        hosts.get(host).running--;
+        removeIdle();
+
+        int running = 0;
+        for (Host other : hosts.values()) {
+            running += other.running;
+        }
+
+        // Hand out the free threads, at least one so parked work is never
+        // forgotten
+        int free = Math.max(1, threadCount - running);
+        List<Runnable> resumed = new ArrayList<Runnable>(free);
+        while (resumed.size() < free) {
+            Parked parked = nextParked(threadCount);
+            if (parked == null) {
+                break;
+            }
+
+            resumed.add(parked.resume);
+        }
+
+        return resumed;
+    }
+
+    /**
+     * Get the number of waiting and running downloads for each host with work
+     */
+    public synchronized Map<String, int[]> getCounts() {
+        removeIdle();
+
+        Map<String, int[]> counts = new HashMap<String, int[]>();
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Host h = entry.getValue();
+            counts.put(entry.getKey(), new int[] { h.queued.size() + h.parked.size(), h.running });
+        }
+
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private boolean canStart(String host, Host h, int threadCount) {
+        if (maxPerHost > 0 && h.running >= maxPerHost) {
+            return false;
+        }
+
+        // Find out if anybody else wants a thread
+        int active = 0;
+        boolean othersWaiting = false;
+        for (Map.Entry<String, Host> entry : hosts.entrySet()) {
+            Host other = entry.getValue();
+            purgeCancelled(other);
+
+            boolean waiting = !other.queued.isEmpty() || !other.parked.isEmpty();
+            if (waiting || other.running > 0 || other == h) {
+                active++;
+            }
+
+            if (waiting && !entry.getKey().equals(host)) {
+                othersWaiting = true;
+            }
+        }
+
+        int share = Math.max(1, threadCount / active);
+        return h.running < share || !othersWaiting;
+    }
+
+    /**
+     * Take the parked work from the next host in turn which may start
+     */
+    private Parked nextParked(int threadCount) {
+        List<String> order = new ArrayList<String>(hosts.keySet());
+        int start = lastPromoted != null ? order.indexOf(lastPromoted) + 1 : 0;
+
+        for (int i = 0; i < order.size(); i++) {
+            String host = order.get((start + i) % order.size());
+            Host h = hosts.get(host);
+            purgeCancelled(h);
+
+            if (!h.parked.isEmpty() && canStart(host, h, threadCount)) {
+                Parked parked = h.parked.removeFirst();
+                h.queued.add(parked.manager);
+                lastPromoted = host;
+
+                return parked;
+            }
+        }
+
+        return null;
+    }
+
+    private Host getHost(String host) {
+        Host h = hosts.get(host);
+        if (h == null) {
+            h = new Host();
+            hosts.put(host, h);
+        }
+
+        return h;
+    }
+
+    private void removeIdle() {
+        for (Iterator<Host> it = hosts.values().iterator(); it.hasNext();) {
+            Host h = it.next();
+            purgeCancelled(h);
+
+            if (h.running == 0 && h.queued.isEmpty() && h.parked.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Cancelled work is removed from the thread pool without telling us,
+     * forget about it here too
+     */
+    private static void purgeCancelled(Host h) {
+        for (Iterator<LoaderWork.Manager> it = h.queued.iterator(); it.hasNext();) {
+            if (it.next().isCancelled()) {
+                it.remove();
+            }
+        }
+
+        for (Iterator<Parked> it = h.parked.iterator(); it.hasNext();) {
+            if (it.next().manager.isCancelled()) {
+                it.remove();
+            }
+        }
+    }
+
+    private static void removeIdentity(List<LoaderWork.Manager> list, LoaderWork.Manager manager) {
+        for (Iterator<LoaderWork.Manager> it = list.iterator(); it.hasNext();) {
+            if (it.next() == manager) {
+                it.remove();
+                return;
+            }
+        }
+    }
+
+    private static class Host {
+        int running;
+        final List<LoaderWork.Manager> queued = new LinkedList<LoaderWork.Manager>();
+        final LinkedList<Parked> parked = new LinkedList<Parked>();
+    }
+
+    private static class Parked {
+        final LoaderWork.Manager manager;
+        final Runnable resume;
+
+        Parked(LoaderWork.Manager manager, Runnable resume) {
+            this.manager = manager;
+            this.resume = resume;
+        }
+    }
+}
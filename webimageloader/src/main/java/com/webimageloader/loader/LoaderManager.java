@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import com.webimageloader.Request;
 import com.webimageloader.transformation.Transformation;
 
 import android.graphics.Bitmap;
@@ -21,8 +22,11 @@ public class LoaderManager {
     };
     
     private MemoryCache memoryCache;
+    private TimingListener timingListener;
+    private NegativeCache negativeCache;
 
     private DiskLoader diskLoader;
+    private NetworkLoader networkLoader;
     private TransformingLoader transformingLoader;
     private MemoryLoader memoryLoader;
 
@@ -38,10 +42,24 @@ public class LoaderManager {
     }
 
     public LoaderManager(MemoryCache memoryCache, DiskLoader diskLoader, NetworkLoader networkLoader) {
+        this(memoryCache, diskLoader, networkLoader, null);
+    }
+
+    public LoaderManager(MemoryCache memoryCache, DiskLoader diskLoader, NetworkLoader networkLoader, TimingListener timingListener) {
+        this(memoryCache, diskLoader, networkLoader, timingListener, null);
+    }
+
+    /**
+     * @param negativeCache remembers failed requests so they fail right
+     *            away when loaded again, can be null
+     */
+    public LoaderManager(MemoryCache memoryCache, DiskLoader diskLoader, NetworkLoader networkLoader, TimingListener timingListener, NegativeCache negativeCache) {
         this.memoryCache = memoryCache;
+        this.timingListener = timingListener;
+        this.negativeCache = negativeCache;
         this.diskLoader = diskLoader;
+        this.networkLoader = networkLoader;
 
-        transformingLoader = new TransformingLoader();
         if (memoryCache != null) {
             memoryLoader = new MemoryLoader(memoryCache);
         }
@@ -51,37 +69,87 @@ public class LoaderManager {
         add(standardChain, diskLoader);
         add(standardChain, networkLoader);
 
+        // Create chain for loading the original of transformed images,
+        // shared between requests for the same URL
+        List<Loader> sourceChain = new ArrayList<Loader>();
+        add(sourceChain, memoryLoader);
+        add(sourceChain, diskLoader);
+        add(sourceChain, networkLoader);
+        sourceChain = Collections.unmodifiableList(sourceChain);
+
+        transformingLoader = new TransformingLoader(memoryCache != null ? memoryCache.getBitmapPool() : null, sourceChain, timingListener);
+
         // Create transformation chain
         transformationChain = new ArrayList<Loader>();
         add(transformationChain, diskLoader);
         add(transformationChain, transformingLoader);
-        add(transformationChain, memoryLoader);
-        add(transformationChain, diskLoader);
-        add(transformationChain, networkLoader);
 
         // Ensure the chains are not modified and is safe to iterate
         // over in multiple threads
         standardChain = Collections.unmodifiableList(standardChain);
         transformationChain = Collections.unmodifiableList(transformationChain);
 
-        pendingRequests = new PendingRequests(memoryCache);
+        pendingRequests = new PendingRequests(memoryCache, timingListener, negativeCache);
     }
 
     public MemoryCache getMemoryCache() {
         return memoryCache;
     }
 
-    public Bitmap load(Object tag, LoaderRequest request, Listener listener) {
-        Bitmap b = pendingRequests.getBitmap(tag, request);
-        if (b != null) {
-            return b;
-        }
+    public NetworkLoader getNetworkLoader() {
+        return networkLoader;
+    }
 
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public TimingListener getTimingListener() {
+        return timingListener;
+    }
+
+    public Bitmap load(Object tag, LoaderRequest request, Listener listener) {
         // Send an empty listener instead of null
         if (listener == null) {
             listener = EMPTY_LISTENER;
         }
 
+        if (request.hasFlag(Request.Flag.DISK_ONLY)) {
+            if (diskLoader == null) {
+                // Nowhere to put it
+                listener.onLoaded(null);
+                return null;
+            }
+
+            // Transformations are applied when the image is needed, the
+            // memory cache doesn't tell if it's on disk
+            request = request.withoutTransformation();
+
+            // Prefetching waits for everything else
+            if (request.getPriority() > Request.PRIORITY_LOW) {
+                request = request.withPriority(Request.PRIORITY_LOW);
+            }
+        } else {
+            Bitmap b = pendingRequests.getBitmap(tag, request);
+            if (b != null) {
+                return b;
+            }
+        }
+
+        // Ignoring the cache is how a failed request is retried
+        if (negativeCache != null && !request.hasFlag(Request.Flag.IGNORE_CACHE)) {
+            Throwable t = negativeCache.get(request);
+            if (t != null) {
+                // Whatever the tag was loading before isn't wanted anymore
+                if (tag != null) {
+                    pendingRequests.cancel(tag);
+                }
+
+                listener.onError(t);
+                return null;
+            }
+        }
+
         LoaderWork work = pendingRequests.addRequest(tag, request, listener);
 
         // A request is already pending, don't load anything
@@ -9,11 +9,21 @@ public class LoaderRequest {
     private String url;
     private Transformation transformation;
     private Metadata metadata;
+    private PartialStore.Entry partial;
     private EnumSet<Request.Flag> flags;
+    private int priority;
 
-    private String cacheKey;
+    private CacheKey key;
 
     public LoaderRequest(String url, Transformation transformation, EnumSet<Request.Flag> flags) {
+        this(url, transformation, flags, Request.PRIORITY_NORMAL);
+    }
+
+    public LoaderRequest(String url, Transformation transformation, EnumSet<Request.Flag> flags, int priority) {
+        this(url, transformation, flags, priority, null);
+    }
+
+    private LoaderRequest(String url, Transformation transformation, EnumSet<Request.Flag> flags, int priority, CacheKey key) {
         if (url == null) {
             throw new IllegalArgumentException("url may not be null");
         }
@@ -21,25 +31,43 @@ public class LoaderRequest {
         this.url = url;
         this.transformation = transformation;
         this.flags = flags;
-
-        if (transformation != null) {
-            cacheKey = url + transformation.getIdentifier();
-        } else {
-            cacheKey = url;
-        }
+        this.priority = priority;
+        this.key = key != null ? key : CacheKey.create(url, transformation);
     }
 
     public LoaderRequest withoutTransformation() {
-        return new LoaderRequest(url, null, flags);
+        return new LoaderRequest(url, null, flags, priority, key.withoutTransformation());
+    }
+
+    public LoaderRequest withPriority(int priority) {
+        LoaderRequest r = new LoaderRequest(url, transformation, flags, priority, key);
+        r.metadata = metadata;
+        r.partial = partial;
+
+        return r;
     }
 
     public LoaderRequest withMetadata(Metadata metadata) {
-        LoaderRequest r = new LoaderRequest(url, transformation, flags);
+        // Same image, keep the key and anything it has computed
+        LoaderRequest r = new LoaderRequest(url, transformation, flags, priority, key);
         r.metadata = metadata;
 
         return r;
     }
 
+    /**
+     * Resume a download which didn't finish
+     *
+     * @param partial the start of the download, null to start over
+     */
+    LoaderRequest withPartial(PartialStore.Entry partial) {
+        LoaderRequest r = new LoaderRequest(url, transformation, flags, priority, key);
+        r.metadata = metadata;
+        r.partial = partial;
+
+        return r;
+    }
+
     public String getUrl() {
         return url;
     }
@@ -52,17 +80,33 @@ public class LoaderRequest {
         return metadata;
     }
 
+    PartialStore.Entry getPartial() {
+        return partial;
+    }
+
     public String getCacheKey() {
-        return cacheKey;
+        return key.toString();
+    }
+
+    public CacheKey getKey() {
+        return key;
+    }
+
+    public int getPriority() {
+        return priority;
     }
 
     public boolean hasFlag(Request.Flag flag) {
         return flags.contains(flag);
     }
 
+    EnumSet<Request.Flag> getFlags() {
+        return flags;
+    }
+
     @Override
     public int hashCode() {
-        return cacheKey.hashCode();
+        return key.hashCode();
     }
 
     @Override
@@ -73,7 +117,9 @@ public class LoaderRequest {
 
         if (obj instanceof LoaderRequest) {
             LoaderRequest request = (LoaderRequest) obj;
-            return cacheKey.equals(request.getCacheKey());
+            // Disk only requests finish without a bitmap, they can't
+            // be shared with regular ones
+            return key.equals(request.key) && hasFlag(Request.Flag.DISK_ONLY) == request.hasFlag(Request.Flag.DISK_ONLY);
         } else {
             return false;
         }
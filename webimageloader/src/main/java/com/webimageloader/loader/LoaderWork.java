@@ -8,18 +8,61 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class LoaderWork {
+    private static final AtomicLong sequence = new AtomicLong();
+
     private final Loader.Listener listener;
     private final ImageLoader.ProgressListener progressListener;
     private final List<Future<?>> futures;
 
     private volatile boolean cancelled = false;
 
+    private volatile int priority;
+    private final long created;
+    private volatile long requested;
+
+    private final TimingListener timingListener;
+    private volatile TimingListener.Source source;
+
     public LoaderWork(Loader.Listener listener, ImageLoader.ProgressListener progressListener) {
+        this(listener, progressListener, 0);
+    }
+
+    public LoaderWork(Loader.Listener listener, ImageLoader.ProgressListener progressListener, int priority) {
+        this(listener, progressListener, priority, null);
+    }
+
+    public LoaderWork(Loader.Listener listener, ImageLoader.ProgressListener progressListener, int priority, TimingListener timingListener) {
         this.listener = listener;
         this.progressListener = progressListener;
         this.futures = new ArrayList<Future<?>>();
+        this.priority = priority;
+        this.timingListener = timingListener;
+
+        created = sequence.incrementAndGet();
+        requested = created;
+    }
+
+    /**
+     * Called when this work is requested again, raising its priority if
+     * needed and making it the most recently requested. Queued work is
+     * moved accordingly.
+     *
+     * @param priority the priority it was requested with
+     */
+    public void prioritize(int priority) {
+        synchronized (futures) {
+            this.priority = Math.max(this.priority, priority);
+            requested = sequence.incrementAndGet();
+
+            for (Future<?> future : futures) {
+                if (future instanceof Scheduler.Task) {
+                    ((Scheduler.Task) future).reschedule();
+                }
+            }
+        }
     }
 
     public void cancel() {
@@ -32,6 +75,32 @@ public class LoaderWork {
         }
     }
 
+    /**
+     * Report that a stage has finished, using the source which delivered
+     * the image
+     *
+     * @param request the request being worked on
+     * @param stage the stage
+     * @param start when the stage started, from {@link System#nanoTime()}
+     */
+    public void recordTiming(LoaderRequest request, TimingListener.Stage stage, long start) {
+        recordTiming(request, stage, source, start);
+    }
+
+    /**
+     * Report that a stage has finished
+     *
+     * @param request the request being worked on
+     * @param stage the stage
+     * @param source where the image came from
+     * @param start when the stage started, from {@link System#nanoTime()}
+     */
+    public void recordTiming(LoaderRequest request, TimingListener.Stage stage, TimingListener.Source source, long start) {
+        if (timingListener != null) {
+            timingListener.onTiming(request, stage, source, System.nanoTime() - start);
+        }
+    }
+
     public void start(List<Loader> loaderChain, LoaderRequest request) {
         Iterator<Loader> it = loaderChain.iterator();
         Loader loader = it.next();
@@ -58,6 +127,33 @@ public class LoaderWork {
             return cancelled;
         }
 
+        public int getPriority() {
+            return priority;
+        }
+
+        public long getCreated() {
+            return created;
+        }
+
+        public long getRequested() {
+            return requested;
+        }
+
+        /**
+         * Set where the image is being delivered from, used for timings
+         */
+        public void setSource(TimingListener.Source source) {
+            LoaderWork.this.source = source;
+        }
+
+        public void recordTiming(LoaderRequest request, TimingListener.Stage stage, long start) {
+            LoaderWork.this.recordTiming(request, stage, start);
+        }
+
+        public void recordTiming(LoaderRequest request, TimingListener.Stage stage, TimingListener.Source source, long start) {
+            LoaderWork.this.recordTiming(request, stage, source, start);
+        }
+
         public void addFuture(Future<?> future) {
             synchronized (futures) {
                 futures.add(future);
@@ -3,7 +3,8 @@ package com.webimageloader.loader;
 import com.webimageloader.ImageLoader.Logger;
 import com.webimageloader.Request;
 import com.webimageloader.util.Android;
-import com.webimageloader.util.LruCache;
+import com.webimageloader.util.BitmapPool;
+import com.webimageloader.util.ConcurrentLruCache;
 
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
@@ -12,12 +13,30 @@ import android.util.Log;
 import java.lang.ref.WeakReference;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.WeakHashMap;
 
 public class MemoryCache {
     private static final String TAG = "MemoryLoader";
 
+    /**
+     * Policy deciding which bitmaps to keep when the cache is full
+     */
+    public enum Policy {
+        /**
+         * Evict the least recently used bitmap
+         */
+        LRU,
+        /**
+         * Only let new bitmaps replace older ones if they are used more often,
+         * this protects frequently used bitmaps from being flushed by one
+         * scroll through a long list of images that are never seen again
+         */
+        TINY_LFU
+    }
+
     public static class Entry {
         public final Bitmap bitmap;
         public final Metadata metadata;
@@ -48,27 +67,75 @@ public class MemoryCache {
     }
 
     public static class DebugInfo {
+        public final Policy policy;
         public final int hitCount;
         public final int missCount;
         public final int putCount;
         public final int evictionCount;
+        public final int rejectedCount;
         public final int numImages;
+        public final float hitRate;
 
-        private DebugInfo(int hitCount, int missCount, int putCount, int evictionCount, int numImages) {
+        private DebugInfo(Policy policy, int hitCount, int missCount, int putCount, int evictionCount, int rejectedCount, int numImages) {
+            this.policy = policy;
             this.hitCount = hitCount;
             this.missCount = missCount;
             this.putCount = putCount;
             this.evictionCount = evictionCount;
+            this.rejectedCount = rejectedCount;
             this.numImages = numImages;
+
+            int requests = hitCount + missCount;
+            this.hitRate = requests == 0 ? 0f : (float) hitCount / requests;
         }
     }
 
-    private LruCache<String, Entry> cache;
-    private Map<String, WeakEntry> expired;
+    private Policy policy;
+    private ConcurrentLruCache<CacheKey, Entry> cache;
+    private Map<CacheKey, WeakEntry> expired;
+
+    private BitmapPool bitmapPool;
+    /** Number of cache entries using each bitmap, only tracked when pooling */
+    private Map<Bitmap, Integer> references;
+    /** Bitmaps released by the caller, guarded by references */
+    private Map<Bitmap, Boolean> released;
 
     public MemoryCache(int maxSize) {
-        cache = new BitmapCache(maxSize);
-        expired = Collections.synchronizedMap(new HashMap<String, WeakEntry>());
+        this(maxSize, Policy.LRU);
+    }
+
+    public MemoryCache(int maxSize, Policy policy) {
+        this(maxSize, policy, null);
+    }
+
+    /**
+     * Create a memory cache which hands bitmaps to a pool for reuse once they
+     * have been both evicted and released, see {@link #release(Bitmap)}.
+     *
+     * @param maxSize max size of the cache
+     * @param policy policy used to decide which bitmaps to keep
+     * @param bitmapPool pool to put released bitmaps in, can be null
+     */
+    public MemoryCache(int maxSize, Policy policy, BitmapPool bitmapPool) {
+        this.policy = policy;
+        this.bitmapPool = bitmapPool;
+
+        cache = new BitmapCache(maxSize, policy == Policy.TINY_LFU);
+        expired = Collections.synchronizedMap(new HashMap<CacheKey, WeakEntry>());
+
+        if (bitmapPool != null) {
+            references = new IdentityHashMap<Bitmap, Integer>();
+            released = new IdentityHashMap<Bitmap, Boolean>();
+        }
+    }
+
+    /**
+     * Get the pool released bitmaps are put in
+     *
+     * @return the pool or null if not pooling
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
     }
 
     public int size() {
@@ -86,6 +153,56 @@ public class MemoryCache {
     public void evictAll() {
         cache.evictAll();
         expired.clear();
+
+        if (bitmapPool != null) {
+            synchronized (references) {
+                released.clear();
+            }
+
+            bitmapPool.evictAll();
+        }
+    }
+
+    /**
+     * Tell the cache a bitmap is no longer drawn anywhere, so its memory can
+     * be reused for new bitmaps. Bitmaps which are still cached are reused
+     * once they are evicted, unless they are handed out again before that.
+     * Does nothing if the cache isn't pooling bitmaps.
+     * <p>
+     * The bitmap will be overwritten, so it must not be used after it has
+     * been released, not even by other views showing the same image.
+     *
+     * @param b the bitmap to release
+     */
+    public void release(Bitmap b) {
+        if (bitmapPool == null) {
+            return;
+        }
+
+        synchronized (references) {
+            if (references.containsKey(b)) {
+                released.put(b, Boolean.TRUE);
+                return;
+            }
+        }
+
+        pool(b);
+    }
+
+    private void pool(Bitmap b) {
+        // Make sure it can't be revived from the expired entries
+        synchronized (expired) {
+            Iterator<WeakEntry> it = expired.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().reference.get() == b) {
+                    it.remove();
+                }
+            }
+        }
+
+        if (bitmapPool.put(b)) {
+            if (Logger.VERBOSE) Log.v(TAG, "Moved bitmap to pool");
+        }
     }
 
     public Entry get(LoaderRequest request) {
@@ -93,14 +210,20 @@ public class MemoryCache {
             return null;
         }
 
-        String cacheKey = request.getCacheKey();
+        CacheKey cacheKey = request.getKey();
         Entry entry = cache.get(cacheKey);
         if (entry != null) {
+            if (released != null) {
+                synchronized (references) {
+                    released.remove(entry.bitmap);
+                }
+            }
+
             if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from memory");
         } else {
             WeakEntry weakEntry = expired.remove(cacheKey);
             if (weakEntry != null && (entry = weakEntry.toEntry()) != null) {
-                cache.put(cacheKey, entry);
+                putEntry(cacheKey, entry);
                 if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from expired memory");
             }
         }
@@ -116,20 +239,55 @@ public class MemoryCache {
         // Add the bitmap to the cache if we can fit at least six images of this size,
         // this way we avoid caching large images that will evict all other entries
         if (sizeOf(b) < cache.maxSize() / 6) {
-            cache.put(request.getCacheKey(), new Entry(b, metadata));
+            putEntry(request.getKey(), new Entry(b, metadata));
         }
     }
 
     public void updateMetadata(LoaderRequest request, Metadata metadata) {
-        String cacheKey = request.getCacheKey();
+        CacheKey cacheKey = request.getKey();
         Entry entry = cache.get(cacheKey);
         if (entry != null) {
-            cache.put(cacheKey, new Entry(entry.bitmap, metadata));
+            putEntry(cacheKey, new Entry(entry.bitmap, metadata));
+        }
+    }
+
+    private void putEntry(CacheKey cacheKey, Entry entry) {
+        if (references != null) {
+            addReference(entry.bitmap);
+        }
+
+        cache.put(cacheKey, entry);
+    }
+
+    private void addReference(Bitmap b) {
+        synchronized (references) {
+            // Handed out again, a previous release no longer holds
+            released.remove(b);
+
+            Integer count = references.get(b);
+            references.put(b, count == null ? 1 : count + 1);
+        }
+    }
+
+    /**
+     * @return true if no entries use this bitmap anymore
+     */
+    private boolean removeReference(Bitmap b) {
+        synchronized (references) {
+            Integer count = references.get(b);
+            if (count == null || count <= 1) {
+                references.remove(b);
+                return true;
+            } else {
+                references.put(b, count - 1);
+                return false;
+            }
         }
     }
 
     public DebugInfo getDebugInfo() {
-        return new DebugInfo(cache.hitCount(), cache.missCount(), cache.putCount(), cache.evictionCount(), cache.snapshot().size());
+        return new DebugInfo(policy, cache.hitCount(), cache.missCount(), cache.putCount(), cache.evictionCount(),
+                cache.rejectedCount(), cache.snapshot().size());
     }
 
     @TargetApi(12)
@@ -141,20 +299,40 @@ public class MemoryCache {
         }
     }
 
-    private class BitmapCache extends LruCache<String, Entry> {
-        public BitmapCache(int maxSize) {
-            super(maxSize);
+    private class BitmapCache extends ConcurrentLruCache<CacheKey, Entry> {
+        public BitmapCache(int maxSize, boolean frequencyAdmission) {
+            super(maxSize, frequencyAdmission);
         }
 
         @Override
-        protected int sizeOf(String key, Entry value) {
+        protected int sizeOf(CacheKey key, Entry value) {
             Bitmap b = value.bitmap;
 
             return MemoryCache.sizeOf(b);
         }
 
         @Override
-        protected void entryRemoved(boolean evicted, String key, Entry oldValue, Entry newValue) {
+        protected void entryRemoved(boolean evicted, CacheKey key, Entry oldValue, Entry newValue) {
+            if (references != null) {
+                boolean free;
+                synchronized (references) {
+                    if (!removeReference(oldValue.bitmap)) {
+                        // Still cached using another key, the bitmap is not free to
+                        // be pooled and should not be revived from this one either
+                        return;
+                    }
+
+                    free = released.remove(oldValue.bitmap) != null;
+                }
+
+                // Only bitmaps nobody draws anymore can be pooled, others
+                // might still be on screen
+                if (free) {
+                    pool(oldValue.bitmap);
+                    return;
+                }
+            }
+
             if (evicted) {
                 expired.put(key, new WeakEntry(oldValue));
             }
@@ -11,6 +11,7 @@ public class MemoryLoader implements Loader {
     public void load(LoaderWork.Manager manager, LoaderRequest request) {
         MemoryCache.Entry entry = cache.get(request);
         if (entry != null) {
+            manager.setSource(TimingListener.Source.MEMORY);
             manager.deliverBitmap(entry.bitmap, entry.metadata);
         } else {
             // We don't want to cache the image we get back
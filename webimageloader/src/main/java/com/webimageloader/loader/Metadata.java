@@ -1,19 +1,63 @@
 package com.webimageloader.loader;
 
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 
 public class Metadata {
     public static final long NEVER_EXPIRES = -1;
-    
+
+    /**
+     * A stale image can be used for any amount of time
+     */
+    public static final long STALE_ALWAYS = -1;
+
+    /*
+     * Compact header stored in front of the image:
+     *
+     *   magic          4 bytes, "WILM"
+     *   version        1 byte
+     *   length         2 bytes, length of the following fields
+     *   content type   1 byte code, 0 followed by a string for other types
+     *   last modified  zigzag varint
+     *   expires        zigzag varint
+     *   etag           string
+     *   stale windows  two zigzag varints, stale-while-revalidate and
+     *                  stale-if-error, left out if both are STALE_ALWAYS
+     *
+     * Strings are a varint length followed by UTF-8. Readers ignore fields
+     * they don't know about at the end, so fields can be added without
+     * changing the version.
+     */
+    private static final byte[] HEADER_MAGIC = { 'W', 'I', 'L', 'M' };
+    private static final int HEADER_VERSION = 1;
+    private static final int HEADER_PREFIX_SIZE = 7;
+
+    private static final String[] CONTENT_TYPES = {
+        null,
+        "image/jpeg",
+        "image/png",
+        "image/gif",
+        "image/webp"
+    };
+
     private String contentType;
     private long lastModified;
     private long expires;
     private String etag;
 
+    private long staleWhileRevalidate = STALE_ALWAYS;
+    private long staleIfError = STALE_ALWAYS;
+    private boolean noStore = false;
+
+    /** Size of the header this was read from, -1 if it wasn't read */
+    private int headerSize = -1;
+
     public static Metadata from(InputStream is) throws IOException {
         DataInputStream stream = new DataInputStream(is);
 
@@ -25,6 +69,129 @@ public class Metadata {
         return new Metadata(contentType, lastModified, expires, etag);
     }
 
+    /**
+     * Read the compact header from the start of an image. The stream must
+     * support mark and is left at the start of the image.
+     *
+     * @param is the stream
+     * @return the metadata or null if the stream doesn't start with a
+     *         header, in which case it is reset
+     * @throws IOException if reading failed or the header is invalid
+     */
+    public static Metadata readHeader(InputStream is) throws IOException {
+        is.mark(HEADER_PREFIX_SIZE);
+
+        byte[] prefix = new byte[HEADER_PREFIX_SIZE];
+        if (!readFully(is, prefix)) {
+            is.reset();
+            return null;
+        }
+
+        for (int i = 0; i < HEADER_MAGIC.length; i++) {
+            if (prefix[i] != HEADER_MAGIC[i]) {
+                is.reset();
+                return null;
+            }
+        }
+
+        if (prefix[4] != HEADER_VERSION) {
+            throw new IOException("Unsupported header version " + prefix[4]);
+        }
+
+        int length = ((prefix[5] & 0xff) << 8) | (prefix[6] & 0xff);
+        byte[] fields = new byte[length];
+        if (length == 0 || !readFully(is, fields)) {
+            throw new EOFException("Truncated header");
+        }
+
+        int[] position = { 0 };
+
+        int code = fields[position[0]++];
+        String contentType;
+        if (code > 0 && code < CONTENT_TYPES.length) {
+            contentType = CONTENT_TYPES[code];
+        } else if (code == 0) {
+            contentType = readString(fields, position);
+        } else {
+            throw new IOException("Unknown content type " + code);
+        }
+
+        long lastModified = decodeZigZag(readVarint(fields, position));
+        long expires = decodeZigZag(readVarint(fields, position));
+        String etag = readString(fields, position);
+
+        Metadata metadata = new Metadata(contentType, lastModified, expires, etag);
+        if (position[0] < fields.length) {
+            metadata.staleWhileRevalidate = decodeZigZag(readVarint(fields, position));
+            metadata.staleIfError = decodeZigZag(readVarint(fields, position));
+        }
+
+        // Fields from newer versions are skipped, writing this again would
+        // leave them out
+        metadata.headerSize = HEADER_PREFIX_SIZE + length;
+
+        return metadata;
+    }
+
+    /**
+     * Write the compact header, to be followed by the image
+     *
+     * @param os stream to write to
+     * @throws IOException if writing failed
+     */
+    public void writeHeader(OutputStream os) throws IOException {
+        os.write(toHeader());
+    }
+
+    /**
+     * @return the size in bytes of the compact header this was read from,
+     *         or of the one it would write if it wasn't read
+     */
+    public int getHeaderSize() {
+        if (headerSize != -1) {
+            return headerSize;
+        }
+
+        return toHeader().length;
+    }
+
+    private byte[] toHeader() {
+        ByteArrayOutputStream fields = new ByteArrayOutputStream(32);
+
+        int code = getContentTypeCode(contentType);
+        fields.write(code);
+        if (code == 0) {
+            writeString(fields, contentType);
+        }
+
+        writeVarint(fields, encodeZigZag(lastModified));
+        writeVarint(fields, encodeZigZag(expires));
+        writeString(fields, etag);
+
+        if (staleWhileRevalidate != STALE_ALWAYS || staleIfError != STALE_ALWAYS) {
+            writeVarint(fields, encodeZigZag(staleWhileRevalidate));
+            writeVarint(fields, encodeZigZag(staleIfError));
+        }
+
+        int length = fields.size();
+        if (length > 0xffff) {
+            throw new IllegalStateException("Metadata too large");
+        }
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(HEADER_PREFIX_SIZE + length);
+        header.write(HEADER_MAGIC, 0, HEADER_MAGIC.length);
+        header.write(HEADER_VERSION);
+        header.write(length >>> 8);
+        header.write(length);
+        header.write(fields.toByteArray(), 0, length);
+
+        return header.toByteArray();
+    }
+
+    /**
+     * Write in the format used before the compact header, read with
+     * {@link #from(InputStream)}
+     */
     public void writeTo(OutputStream os) throws IOException {
         DataOutputStream stream = new DataOutputStream(os);
 
@@ -51,6 +218,31 @@ public class Metadata {
         this.etag = etag;
     }
 
+    /**
+     * @param staleWhileRevalidate how long after expiring the image can still
+     *        be used while checking for a new one, in milliseconds or
+     *        {@link #STALE_ALWAYS}
+     * @param staleIfError how long after expiring the image can still be
+     *        used if checking for a new one fails, in milliseconds or
+     *        {@link #STALE_ALWAYS}
+     * @param noStore true if the image must not be saved to disk, this is
+     *        never written with the metadata
+     */
+    public Metadata(String contentType, long lastModified, long expires, String etag, long staleWhileRevalidate, long staleIfError, boolean noStore) {
+        this(contentType, lastModified, expires, etag);
+
+        this.staleWhileRevalidate = staleWhileRevalidate;
+        this.staleIfError = staleIfError;
+        this.noStore = noStore;
+    }
+
+    /**
+     * @return a copy of this metadata for another content type
+     */
+    public Metadata withContentType(String contentType) {
+        return new Metadata(contentType, lastModified, expires, etag, staleWhileRevalidate, staleIfError, noStore);
+    }
+
     public String getContentType() {
         return contentType;
     }
@@ -66,4 +258,135 @@ public class Metadata {
     public String getEtag() {
         return etag;
     }
+
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    /**
+     * Check if a stale image can be used while a new one is fetched
+     *
+     * @param expires when the image expired, the index can know of a later
+     *        time than the metadata
+     * @param now the current time
+     */
+    public boolean canUseWhileRevalidating(long expires, long now) {
+        return isWithin(staleWhileRevalidate, expires, now);
+    }
+
+    /**
+     * Check if a stale image can be used when fetching a new one failed
+     *
+     * @param expires when the image expired, the index can know of a later
+     *        time than the metadata
+     * @param now the current time
+     */
+    public boolean canUseOnError(long expires, long now) {
+        return isWithin(staleIfError, expires, now);
+    }
+
+    private static boolean isWithin(long window, long expires, long now) {
+        if (expires == NEVER_EXPIRES || window == STALE_ALWAYS) {
+            return true;
+        }
+
+        return now <= expires + window;
+    }
+
+    private static int getContentTypeCode(String contentType) {
+        for (int i = 1; i < CONTENT_TYPES.length; i++) {
+            if (CONTENT_TYPES[i].equals(contentType)) {
+                return i;
+            }
+        }
+
+        return 0;
+    }
+
+    private static boolean readFully(InputStream is, byte[] b) throws IOException {
+        int read = 0;
+        while (read < b.length) {
+            int i = is.read(b, read, b.length - read);
+            if (i == -1) {
+                return false;
+            }
+
+            read += i;
+        }
+
+        return true;
+    }
+
+    private static long encodeZigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long decodeZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream os, long value) {
+        while ((value & ~0x7fL) != 0) {
+            os.write((int) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        os.write((int) value);
+    }
+
+    private static long readVarint(byte[] b, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position[0] >= b.length) {
+                throw new EOFException("Truncated header");
+            }
+
+            int i = b[position[0]++];
+            value |= (long) (i & 0x7f) << shift;
+            if ((i & 0x80) == 0) {
+                return value;
+            }
+        }
+
+        throw new IOException("Invalid varint");
+    }
+
+    private static void writeString(ByteArrayOutputStream os, String s) {
+        byte[] b = getBytes(s);
+
+        writeVarint(os, b.length);
+        os.write(b, 0, b.length);
+    }
+
+    private static String readString(byte[] b, int[] position) throws IOException {
+        long length = readVarint(b, position);
+        if (length == 0) {
+            return "";
+        }
+
+        if (length > b.length - position[0]) {
+            throw new EOFException("Truncated header");
+        }
+
+        String s = new String(b, position[0], (int) length, "UTF-8");
+        position[0] += length;
+
+        return s;
+    }
+
+    private static byte[] getBytes(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
 }
@@ -0,0 +1,149 @@
+package com.webimageloader.loader;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.webimageloader.HttpException;
+
+/**
+ * Remembers URLs which recently failed to load, so that loading them again
+ * fails right away instead of going through the disk cache and waiting on
+ * the network. How long a failure is remembered depends on what went wrong,
+ * and doubles each time the same URL fails again in a row.
+ */
+public class NegativeCache {
+    /** Missing images, 404 and 410 */
+    static final long NOT_FOUND_TTL = 5 * 60 * 1000;
+    /** Other 4xx responses */
+    static final long CLIENT_ERROR_TTL = 60 * 1000;
+    /** 5xx and 429 responses, the server is likely to recover */
+    static final long SERVER_ERROR_TTL = 10 * 1000;
+    /** Timeouts and connection problems */
+    static final long NETWORK_ERROR_TTL = 5 * 1000;
+
+    static final long MAX_TTL = 60 * 60 * 1000;
+
+    private static final int MAX_BACKOFF_SHIFT = 10;
+
+    public static class DebugInfo {
+        public final int hitCount;
+        public final int missCount;
+        public final int putCount;
+        public final int size;
+
+        private DebugInfo(int hitCount, int missCount, int putCount, int size) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.putCount = putCount;
+            this.size = size;
+        }
+    }
+
+    private final Map<String, Entry> entries;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+
+    /**
+     * @param maxSize max number of URLs to remember
+     */
+    public NegativeCache(final int maxSize) {
+        // Entries are kept after they expire to remember how many times
+        // the URL failed, the least recently used are dropped first
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, NegativeCache.Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Get the error of a recent failure
+     *
+     * @return the error or null if the request should be loaded
+     */
+    public synchronized Throwable get(LoaderRequest request) {
+        Entry entry = entries.get(request.getUrl());
+        if (entry != null && now() < entry.until) {
+            hitCount++;
+            return entry.error;
+        }
+
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Remember a failed request, errors which aren't caused by the image
+     * itself or the connection, such as running out of memory, are ignored
+     */
+    public synchronized void put(LoaderRequest request, Throwable t) {
+        long ttl = getTtl(t);
+        if (ttl == 0) {
+            return;
+        }
+
+        String url = request.getUrl();
+        Entry entry = entries.get(url);
+        int failures = entry != null ? entry.failures + 1 : 1;
+
+        ttl = Math.min(MAX_TTL, ttl << Math.min(failures - 1, MAX_BACKOFF_SHIFT));
+        entries.put(url, new Entry(t, failures, now() + ttl));
+        putCount++;
+    }
+
+    /**
+     * Forget about previous failures of a request which succeeded
+     */
+    public synchronized void remove(LoaderRequest request) {
+        entries.remove(request.getUrl());
+    }
+
+    public synchronized DebugInfo getDebugInfo() {
+        return new DebugInfo(hitCount, missCount, putCount, entries.size());
+    }
+
+    protected long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    static long getTtl(Throwable t) {
+        if (t instanceof FileNotFoundException) {
+            return NOT_FOUND_TTL;
+        } else if (t instanceof HttpException) {
+            int status = ((HttpException) t).getStatusCode();
+            if (status >= 500 || status == 429) {
+                return SERVER_ERROR_TTL;
+            } else {
+                return CLIENT_ERROR_TTL;
+            }
+        } else if (t instanceof InterruptedIOException && !(t instanceof SocketTimeoutException)) {
+            // Cancelled rather than failed
+            return 0;
+        } else if (t instanceof IOException) {
+            return NETWORK_ERROR_TTL;
+        } else {
+            return 0;
+        }
+    }
+
+    private static class Entry {
+        final Throwable error;
+        final int failures;
+        final long until;
+
+        Entry(Throwable error, int failures, long until) {
+            this.error = error;
+            this.failures = failures;
+            this.until = until;
+        }
+    }
+}
@@ -1,15 +1,23 @@
 package com.webimageloader.loader;
 
 import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.net.URLConnection;
 import java.net.URLStreamHandler;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.annotation.TargetApi;
 import android.net.TrafficStats;
@@ -20,11 +28,16 @@ import android.util.Log;
 import com.webimageloader.ConnectionFactory;
 import com.webimageloader.ConnectionHandler;
 import com.webimageloader.Constants;
+import com.webimageloader.HttpException;
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.Request;
+import com.webimageloader.Transport;
 import com.webimageloader.util.Android;
+import com.webimageloader.util.CacheControl;
 import com.webimageloader.util.FlushedInputStream;
 import com.webimageloader.util.HeaderParser;
 import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.ListenerFuture;
 
 public class NetworkLoader implements Loader, Closeable {
     private static final String TAG = "NetworkLoader";
@@ -32,33 +45,130 @@ public class NetworkLoader implements Loader, Closeable {
     private static final int TAG_REGULAR = 0x7eb00000;
     private static final int TAG_CONDITIONAL = 0x7eb0000c;
 
+    private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    public static class HostInfo {
+        /**
+         * Number of downloads from this host waiting for a thread
+         */
+        public final int queueDepth;
+        /**
+         * Number of downloads from this host currently running
+         */
+        public final int inFlightCount;
+
+        private HostInfo(int queueDepth, int inFlightCount) {
+            this.queueDepth = queueDepth;
+            this.inFlightCount = inFlightCount;
+        }
+    }
+
+    public static class DebugInfo {
+        /**
+         * Number of downloads stopped because their request was cancelled
+         */
+        public final int abortedCount;
+        /**
+         * Bytes not downloaded thanks to stopping cancelled downloads, only
+         * counted for responses with a known length
+         */
+        public final long bytesSaved;
+        /**
+         * Number of responses currently open, from sending the request
+         * until the body is closed
+         */
+        public final int inFlightCount;
+        /**
+         * Number of connections in the pool of the transport, -1 if unknown
+         */
+        public final int connectionCount;
+        /**
+         * Number of idle connections in the pool of the transport, -1 if
+         * unknown
+         */
+        public final int idleConnectionCount;
+        /**
+         * Number of downloads which can run at once, changes over time if
+         * the thread count is adaptive
+         */
+        public final int threadLimit;
+        /**
+         * Downloads waiting and running for each host with work
+         */
+        public final Map<String, HostInfo> hosts;
+        /**
+         * Bytes not downloaded again thanks to resuming downloads which
+         * didn't finish
+         */
+        public final long bytesResumed;
+
+        private DebugInfo(int abortedCount, long bytesSaved, int inFlightCount, int connectionCount, int idleConnectionCount, int threadLimit, Map<String, HostInfo> hosts, long bytesResumed) {
+            this.abortedCount = abortedCount;
+            this.bytesSaved = bytesSaved;
+            this.bytesResumed = bytesResumed;
+            this.inFlightCount = inFlightCount;
+            this.connectionCount = connectionCount;
+            this.idleConnectionCount = idleConnectionCount;
+            this.threadLimit = threadLimit;
+            this.hosts = hosts;
+        }
+    }
+
     private Map<String, URLStreamHandler> streamHandlers;
-    private ConnectionFactory connectionFactory;
-    private ConnectionHandler connectionHandler;
-    private int connectionTimeout;
-    private int readTimeout;
+    private Transport transport;
+    private Transport defaultTransport;
     private long defaultMaxAge;
     private long forcedMaxAge;
 
+    private ThreadPoolExecutor regularExecutor;
+    private ConcurrencyLimiter limiter;
+    private HostDispatcher dispatcher;
+
     private BackgroundLoader regularLoader;
     private BackgroundLoader conditionalLoader;
+    private BackgroundLoader prefetchLoader;
+
+    private final AtomicInteger abortedCount = new AtomicInteger();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesResumed = new AtomicLong();
+    private final AtomicInteger inFlightCount = new AtomicInteger();
 
     public NetworkLoader(Builder builder) {
         this.streamHandlers = Collections.unmodifiableMap(builder.streamHandlers);
-        this.connectionFactory = builder.connectionFactory;
-        this.connectionHandler = builder.connectionHandler;
-        this.connectionTimeout = builder.connectionTimeout;
-        this.readTimeout = builder.readTimeout;
         this.defaultMaxAge = builder.defaultMaxAge;
         this.forcedMaxAge = builder.forcedMaxAge;
 
-        regularLoader = new NetworkLoaderImpl("Network", Process.THREAD_PRIORITY_BACKGROUND, builder.threadCount);
-        conditionalLoader = new NetworkLoaderImpl("Network, cache check", Process.THREAD_PRIORITY_LOWEST, 1);
+        defaultTransport = new URLConnectionTransport(builder.connectionFactory, builder.connectionHandler, builder.connectionTimeout, builder.readTimeout);
+        transport = builder.transport != null ? builder.transport : defaultTransport;
+
+        regularExecutor = builder.scheduler.createExecutor("Network", Process.THREAD_PRIORITY_BACKGROUND, builder.threadCount);
+        if (builder.maxThreadCount > 0) {
+            limiter = new ConcurrencyLimiter(builder.threadCount, builder.minThreadCount, builder.maxThreadCount, new ConcurrencyLimiter.Listener() {
+                @Override
+                public void onLimitChanged(int limit) {
+                    if (Logger.DEBUG) Log.d(TAG, "Network thread limit is now " + limit);
+                    setThreadCount(regularExecutor, limit);
+                }
+            });
+
+            setThreadCount(regularExecutor, limiter.getLimit());
+        }
+
+        dispatcher = new HostDispatcher(builder.maxThreadsPerHost);
+        regularLoader = new NetworkLoaderImpl(regularExecutor, limiter, dispatcher);
+        conditionalLoader = new NetworkLoaderImpl("Network, cache check", Process.THREAD_PRIORITY_LOWEST, 1, builder.scheduler);
+        prefetchLoader = new NetworkLoaderImpl("Network, prefetch", Process.THREAD_PRIORITY_LOWEST, 1, builder.scheduler);
     }
 
     @Override
     public void load(LoaderWork.Manager manager, LoaderRequest request) {
-        if (request.getMetadata() != null) {
+        if (request.hasFlag(Request.Flag.DISK_ONLY)) {
+            // Prefetching never takes a thread from images on screen
+            prefetchLoader.load(manager, request);
+        } else if (request.getMetadata() != null) {
             conditionalLoader.load(manager, request);
         } else {
             regularLoader.load(manager, request);
@@ -69,120 +179,379 @@ public class NetworkLoader implements Loader, Closeable {
     public void close() throws IOException {
         regularLoader.close();
         conditionalLoader.close();
+        prefetchLoader.close();
     }
 
-    private class NetworkLoaderImpl extends SimpleBackgroundLoader {
-        public NetworkLoaderImpl(String name, int priority, int threadCount) {
-            super(name, priority, threadCount);
+    public DebugInfo getDebugInfo() {
+        Map<String, HostInfo> hosts = new HashMap<String, HostInfo>();
+        for (Map.Entry<String, int[]> entry : dispatcher.getCounts().entrySet()) {
+            int[] counts = entry.getValue();
+            hosts.put(entry.getKey(), new HostInfo(counts[0], counts[1]));
+        }
+
+        return new DebugInfo(abortedCount.get(), bytesSaved.get(), inFlightCount.get(),
+                transport.getConnectionCount(), transport.getIdleConnectionCount(), regularExecutor.getMaximumPoolSize(),
+                Collections.unmodifiableMap(hosts), bytesResumed.get());
+    }
+
+    private class NetworkLoaderImpl extends BackgroundLoader {
+        private ThreadPoolExecutor executor;
+        private ConcurrencyLimiter limiter;
+        private HostDispatcher dispatcher;
+
+        public NetworkLoaderImpl(String name, int priority, int threadCount, Scheduler scheduler) {
+            super(scheduler.createExecutor(name, priority, threadCount));
+        }
+
+        public NetworkLoaderImpl(ThreadPoolExecutor executor, ConcurrencyLimiter limiter, HostDispatcher dispatcher) {
+            super(executor);
+
+            this.executor = executor;
+            this.limiter = limiter;
+            this.dispatcher = dispatcher;
+        }
+
+        @Override
+        protected TimingListener.Source getSource() {
+            return TimingListener.Source.NETWORK;
         }
 
         @Override
-        protected void loadInBackground(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+        public void load(LoaderWork.Manager manager, LoaderRequest request) {
+            String host = getDispatchHost(request);
+            if (host != null) {
+                dispatcher.onQueued(host, manager);
+            }
+
+            super.load(manager, request);
+        }
+
+        @Override
+        protected void loadInBackground(final LoaderWork.Manager manager, final LoaderRequest request) throws Exception {
+            String host = getDispatchHost(request);
+            if (host == null) {
+                download(manager, request);
+                return;
+            }
+
+            Runnable resume = new Runnable() {
+                @Override
+                public void run() {
+                    NetworkLoaderImpl.this.run(manager, new ListenerFuture.Task() {
+                        @Override
+                        public void run() throws Exception {
+                            loadInBackground(manager, request);
+                        }
+                    });
+                }
+            };
+
+            if (!dispatcher.tryStart(host, manager, resume, executor.getMaximumPoolSize())) {
+                // Let another host have this thread
+                if (Logger.VERBOSE) Log.v(TAG, request + " is waiting for " + host);
+                return;
+            }
+
+            try {
+                download(manager, request);
+            } finally {
+                List<Runnable> resumed = dispatcher.onFinished(host, executor.getMaximumPoolSize());
+                for (Runnable r : resumed) {
+                    r.run();
+                }
+            }
+        }
+
+        private String getDispatchHost(LoaderRequest request) {
+            if (dispatcher == null) {
+                return null;
+            }
+
+            return getHost(request.getUrl());
+        }
+
+        private void download(LoaderWork.Manager manager, LoaderRequest request) throws Exception {
+            long start = System.nanoTime();
             String url = request.getUrl();
 
             String protocol = getProtocol(url);
             URLStreamHandler streamHandler = getURLStreamHandler(protocol);
 
-            URLConnection urlConnection = openConnection(new URL(null, url, streamHandler));
+            Map<String, String> headers = NO_HEADERS;
 
             Metadata metadata = request.getMetadata();
             if (metadata != null) {
                 tag(TAG_CONDITIONAL);
 
                 // We have some information available
+                headers = new HashMap<String, String>(2);
+
                 long modifiedSince = metadata.getLastModified();
                 if (modifiedSince != 0) {
-                    urlConnection.setIfModifiedSince(modifiedSince);
+                    headers.put("If-Modified-Since", HeaderParser.formatDate(modifiedSince));
                 }
 
                 String etag = metadata.getEtag();
                 if (!TextUtils.isEmpty(etag)) {
-                    urlConnection.addRequestProperty("If-None-Match", etag);
+                    headers.put("If-None-Match", etag);
                 }
             } else {
                 tag(TAG_REGULAR);
             }
 
-            String contentType = urlConnection.getContentType();
-            long lastModified = urlConnection.getLastModified();
-            long expires = getExpires(urlConnection);
-            String etag = urlConnection.getHeaderField("ETag");
+            // Continue a download which didn't finish
+            PartialStore.Entry partial = metadata == null ? request.getPartial() : null;
+            if (partial != null) {
+                headers = new HashMap<String, String>(3);
+                headers.put("Range", "bytes=" + partial.getLength() + "-");
+                headers.put("If-Range", getIfRange(partial.getMetadata()));
 
-            // Update metadata
-            metadata = new Metadata(contentType, lastModified, expires, etag);
+                // The offset is in the unencoded body
+                headers.put("Accept-Encoding", "identity");
+            }
 
-            if (getResponseCode(urlConnection) == HttpURLConnection.HTTP_NOT_MODIFIED) {
-                if (Logger.VERBOSE) Log.v(TAG, request + " was not modified since last fetch");
+            long requestTime = System.currentTimeMillis();
+            Exchange exchange = execute(new URL(null, url, streamHandler), headers, limiter);
+            long responseTime = System.currentTimeMillis();
+
+            try {
+                Transport.Response response = exchange.response;
+
+                int status = response.getStatusCode();
+                if (partial != null) {
+                    if (status == HttpURLConnection.HTTP_PARTIAL && getRangeStart(response) == partial.getLength()) {
+                        if (Logger.VERBOSE) Log.v(TAG, "Resuming " + request + " after " + partial.getLength() + " bytes");
+
+                        bytesResumed.addAndGet(partial.getLength());
+                    } else if (status == HttpURLConnection.HTTP_PARTIAL || status == HTTP_RANGE_NOT_SATISFIABLE) {
+                        // Not where we left off, start over
+                        exchange.ignore();
+                        download(manager, request.withPartial(null));
+                        return;
+                    } else {
+                        // The image changed and we got all of it
+                        partial = null;
+                    }
+                }
 
-                manager.deliverNotMotified(metadata);
-            } else {
-                if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from network");
+                if (status >= 400) {
+                    // A quick error isn't a sign of a fast link, but an
+                    // overloaded server should get fewer downloads
+                    if (status >= 500 || status == HTTP_TOO_MANY_REQUESTS) {
+                        exchange.fail();
+                    } else {
+                        exchange.ignore();
+                    }
+
+                    // Fail so a cached copy can be used if the server allows it
+
+                    if (status == HttpURLConnection.HTTP_NOT_FOUND || status == HttpURLConnection.HTTP_GONE) {
+                        throw new FileNotFoundException(url);
+                    } else {
+                        throw new HttpException(status, url);
+                    }
+                }
+
+                String contentType = response.getHeader("Content-Type");
+                manager.setSource(TimingListener.Source.NETWORK);
+                manager.recordTiming(request, TimingListener.Stage.NETWORK_TTFB, start);
+
+                if (manager.isCancelled()) {
+                    // We have the headers but nobody wants the body anymore
+                    exchange.abort(0);
+                    return;
+                }
+
+                // Update metadata
+                metadata = getMetadata(response, contentType, requestTime, responseTime);
+
+                if (status == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (Logger.VERBOSE) Log.v(TAG, request + " was not modified since last fetch");
+
+                    exchange.close();
+                    manager.deliverNotMotified(metadata);
+                } else {
+                    if (Logger.VERBOSE) Log.v(TAG, "Loaded " + request + " from network");
 
-                manager.deliverStream(new NetworkInputSupplier(urlConnection), metadata);
+                    NetworkInputSupplier input = new NetworkInputSupplier(manager, exchange, partial);
+                    manager.deliverStream(input, metadata);
+
+                    // Don't hold on to the response if the body wasn't wanted,
+                    // it's requested again if it's needed later
+                    input.release();
+                }
+            } catch (Exception e) {
+                exchange.abort(0);
+                throw e;
             }
         }
     }
 
-
-    private int getResponseCode(URLConnection urlConnection) throws IOException {
-        // We can't assume we have a HttpUrlConnection as resources uses a custom subclass
-        if (urlConnection instanceof HttpURLConnection) {
-            return ((HttpURLConnection) urlConnection).getResponseCode();
+    private static String getIfRange(Metadata metadata) {
+        String etag = metadata.getEtag();
+        if (PartialStore.isStrongEtag(etag)) {
+            return etag;
         } else {
+            return HeaderParser.formatDate(metadata.getLastModified());
+        }
+    }
+
+    /**
+     * Get where the body of a partial response starts
+     *
+     * @return the first byte position or -1 if Content-Range is invalid
+     */
+    static long getRangeStart(Transport.Response response) {
+        String range = response.getHeader("Content-Range");
+        if (range == null || !range.startsWith("bytes ")) {
+            return -1;
+        }
+
+        int end = range.indexOf('-');
+        if (end == -1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(range.substring("bytes ".length(), end).trim());
+        } catch (NumberFormatException e) {
             return -1;
         }
     }
 
-    private long getExpires(URLConnection urlConnection) {
-        if (forcedMaxAge > 0) {
-            return System.currentTimeMillis() + forcedMaxAge;
-        } else if (forcedMaxAge == Constants.MAX_AGE_INFINITY) {
-            return Metadata.NEVER_EXPIRES;
+    private Exchange execute(URL url, Map<String, String> headers, ConcurrencyLimiter limiter) throws IOException {
+        // Other URLs, like resources, are always handled by the platform
+        // and don't tell anything about the network
+        boolean http = isHttp(url.getProtocol());
+        Transport t = http ? transport : defaultTransport;
+        if (!http) {
+            limiter = null;
         }
 
-        // Prefer "max-age" before "expires"
-        long maxAge = HeaderParser.getMaxAge(urlConnection);
-        if (maxAge > 0) {
-            return System.currentTimeMillis() + maxAge * 1000;
+        long start = System.nanoTime();
+        inFlightCount.incrementAndGet();
+        if (limiter != null) {
+            limiter.onStart(start);
+        }
+
+        try {
+            Transport.Response response = t.execute(url, headers);
+            return new Exchange(url, response, limiter, System.nanoTime() - start);
+        } catch (IOException e) {
+            inFlightCount.decrementAndGet();
+            if (limiter != null) {
+                limiter.onDropped(System.nanoTime());
+            }
+
+            throw e;
+        } catch (RuntimeException e) {
+            inFlightCount.decrementAndGet();
+            if (limiter != null) {
+                limiter.onIgnored();
+            }
+
+            throw e;
         }
+    }
 
-        long expires = urlConnection.getExpiration();
-        if (expires > 0) {
-            return expires;
+    private Metadata getMetadata(Transport.Response response, String contentType, long requestTime, long responseTime) {
+        CacheControl cacheControl = CacheControl.parse(response.getHeader("Cache-Control"));
+
+        long lastModified = response.getDateHeader("Last-Modified");
+        long expires = getExpires(response, cacheControl, requestTime, responseTime);
+        String etag = response.getHeader("ETag");
+
+        long staleWhileRevalidate = Metadata.STALE_ALWAYS;
+        long staleIfError = Metadata.STALE_ALWAYS;
+        if (forcedMaxAge == Constants.MAX_AGE_NOT_FORCED) {
+            if (cacheControl.isNoCache() || cacheControl.isMustRevalidate()) {
+                // Never use a stale copy without asking the server first
+                staleWhileRevalidate = 0;
+                staleIfError = 0;
+            } else {
+                if (cacheControl.getStaleWhileRevalidate() != -1) {
+                    staleWhileRevalidate = cacheControl.getStaleWhileRevalidate() * 1000;
+                }
+                if (cacheControl.getStaleIfError() != -1) {
+                    staleIfError = cacheControl.getStaleIfError() * 1000;
+                }
+            }
         }
 
-        // Use default
-        return System.currentTimeMillis() + defaultMaxAge;
+        return new Metadata(contentType, lastModified, expires, etag, staleWhileRevalidate, staleIfError, cacheControl.isNoStore());
     }
 
-    private URLConnection openConnection(URL url) throws IOException {
-        disableConnectionReuseIfNecessary();
+    /**
+     * Calculate when the response stops being fresh, see RFC 7234 section
+     * 4.2. The age only counts the Age header and the time the request took,
+     * a difference between the Date header and our clock is taken as clock
+     * skew. The shared cache s-maxage is ignored.
+     */
+    private long getExpires(Transport.Response response, CacheControl cacheControl, long requestTime, long responseTime) {
+        if (forcedMaxAge > 0) {
+            return responseTime + forcedMaxAge;
+        } else if (forcedMaxAge == Constants.MAX_AGE_INFINITY) {
+            return Metadata.NEVER_EXPIRES;
+        }
+
+        if (cacheControl.isNoCache()) {
+            return responseTime;
+        } else if (cacheControl.isImmutable()) {
+            return Metadata.NEVER_EXPIRES;
+        }
+
+        long date = response.getDateHeader("Date");
+        long age = getAge(response) + (responseTime - requestTime);
 
-        final URLConnection urlConnection;
-        if (connectionFactory != null && isHttp(url.getProtocol())) {
-            // For http(s) URLs, give the user a chance to set their own connection implementation
-            urlConnection = connectionFactory.openConnection(url);
+        // Prefer "max-age" before "expires"
+        long lifetime;
+        if (cacheControl.getMaxAge() != -1) {
+            lifetime = cacheControl.getMaxAge() * 1000;
+        } else if (response.getHeader("Expires") != null) {
+            long expires = response.getDateHeader("Expires");
+
+            // An invalid date means already expired, without a Date header
+            // our own clock is all we have
+            if (expires <= 0) {
+                lifetime = 0;
+            } else if (date > 0) {
+                lifetime = Math.max(0, expires - date);
+            } else {
+                lifetime = Math.max(0, expires - responseTime);
+            }
         } else {
-            urlConnection = url.openConnection();
+            // Use default
+            lifetime = defaultMaxAge;
         }
 
-        if (connectionTimeout > 0) {
-            urlConnection.setConnectTimeout(connectionTimeout);
-        }
+        return responseTime - age + lifetime;
+    }
 
-        if (readTimeout > 0) {
-            urlConnection.setReadTimeout(readTimeout);
+    private static long getAge(Transport.Response response) {
+        String age = response.getHeader("Age");
+        if (age == null) {
+            return 0;
         }
 
-        if (connectionHandler != null && urlConnection instanceof HttpURLConnection) {
-            // Only let the connection handler handle http requests
-            connectionHandler.handleConnection((HttpURLConnection) urlConnection);
+        try {
+            return Math.max(0, Long.parseLong(age.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return 0;
         }
+    }
 
-        return urlConnection;
+    private static void setThreadCount(ThreadPoolExecutor executor, int count) {
+        // The core size can't be larger than the max size
+        if (count > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(count);
+            executor.setCorePoolSize(count);
+        } else {
+            executor.setCorePoolSize(count);
+            executor.setMaximumPoolSize(count);
+        }
     }
 
-    private boolean isHttp(String protocol) {
+    static boolean isHttp(String protocol) {
         return protocol.equals("http") || protocol.equals("https");
     }
 
@@ -194,14 +563,23 @@ public class NetworkLoader implements Loader, Closeable {
     }
 
     /**
-     * Workaround for bug pre-Froyo, see here for more info:
-     * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
+     * Get the host and port of a http(s) URL
+     *
+     * @return the host or null if not a http(s) URL
      */
-    private static void disableConnectionReuseIfNecessary() {
-        // HTTP connection reuse which was buggy pre-froyo
-        if (!Android.isAPI(8)) {
-            System.setProperty("http.keepAlive", "false");
+    static String getHost(String url) {
+        String protocol = getProtocol(url);
+        if (protocol == null || !isHttp(protocol) || !url.startsWith("://", protocol.length())) {
+            return null;
+        }
+
+        int start = protocol.length() + 3;
+        int end = start;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) == -1) {
+            end++;
         }
+
+        return url.substring(start, end).toLowerCase(Locale.US);
     }
 
     private static String getProtocol(String url) {
@@ -213,17 +591,120 @@ public class NetworkLoader implements Loader, Closeable {
         return streamHandlers.get(protocol);
     }
 
+    /**
+     * A response which is counted as in flight until it is closed or aborted
+     */
+    private class Exchange {
+        private final URL url;
+        private final Transport.Response response;
+        private final long length;
+
+        private final ConcurrencyLimiter limiter;
+        private final long latency;
+        private volatile long bytesRead;
+
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        public Exchange(URL url, Transport.Response response, ConcurrencyLimiter limiter, long latency) {
+            this.url = url;
+            this.response = response;
+            this.limiter = limiter;
+            this.latency = latency;
+
+            length = response.getContentLength();
+        }
+
+        public void close() throws IOException {
+            if (finished.compareAndSet(false, true)) {
+                inFlightCount.decrementAndGet();
+                if (limiter != null) {
+                    limiter.onSuccess(System.nanoTime(), latency, bytesRead);
+                }
+
+                response.close();
+            }
+        }
+
+        /**
+         * Finish without telling the limiter about it, for responses which
+         * say nothing about the link
+         */
+        public void ignore() throws IOException {
+            if (finished.compareAndSet(false, true)) {
+                inFlightCount.decrementAndGet();
+                if (limiter != null) {
+                    limiter.onIgnored();
+                }
+
+                response.close();
+            }
+        }
+
+        /**
+         * Give up after the body couldn't be read, closing the connection
+         */
+        public void fail() {
+            if (finished.compareAndSet(false, true)) {
+                inFlightCount.decrementAndGet();
+                if (limiter != null) {
+                    limiter.onDropped(System.nanoTime());
+                }
+
+                response.abort();
+            }
+        }
+
+        /**
+         * Stop the download, closing the connection
+         *
+         * @param bytesRead the number of bytes already read
+         */
+        public void abort(long bytesRead) {
+            if (!finished.compareAndSet(false, true)) {
+                return;
+            }
+
+            inFlightCount.decrementAndGet();
+            if (limiter != null) {
+                limiter.onIgnored();
+            }
+
+            abortedCount.incrementAndGet();
+            if (length > bytesRead) {
+                bytesSaved.addAndGet(length - bytesRead);
+            }
+
+            if (Logger.VERBOSE) Log.v(TAG, "Aborted download of " + url + " after " + bytesRead + " bytes");
+
+            response.abort();
+        }
+    }
+
     private class NetworkInputSupplier implements InputSupplier {
-        private URLConnection connection;
+        private LoaderWork.Manager manager;
+        private Exchange exchange;
         private URL url;
         private long length;
-
-        public NetworkInputSupplier(URLConnection connection) {
-            this.connection = connection;
-
-            url = connection.getURL();
-            // XXX: This returns a int which could be too small
-            length = connection.getContentLength();
+        private ConcurrencyLimiter limiter;
+        private PartialStore.Entry partial;
+
+        /**
+         * @param partial the start of the body if the exchange resumes a
+         *            download, null otherwise
+         */
+        public NetworkInputSupplier(LoaderWork.Manager manager, Exchange exchange, PartialStore.Entry partial) {
+            this.manager = manager;
+            this.exchange = exchange;
+            this.partial = partial;
+
+            url = exchange.url;
+            limiter = exchange.limiter;
+
+            if (partial == null || exchange.length == -1) {
+                length = partial == null ? exchange.length : -1;
+            } else {
+                length = partial.getLength() + exchange.length;
+            }
         }
 
         @Override
@@ -231,24 +712,94 @@ public class NetworkLoader implements Loader, Closeable {
             return length;
         }
 
+        public void release() {
+            if (exchange != null) {
+                exchange.abort(0);
+                exchange = null;
+            }
+        }
+
         @Override
         public InputStream getInput() throws IOException {
-            if (connection != null) {
-                InputStream is = connection.getInputStream();
-                connection = null;
-
-                // Handle a bug in older versions of Android, see
-                // http://android-developers.blogspot.se/2010/07/multithreading-for-performance.html
-                if (!Android.isAPI(9)) {
-                    is = new FlushedInputStream(is);
+            final Exchange e;
+            PartialStore.Entry prefix = null;
+            if (exchange != null) {
+                e = exchange;
+                exchange = null;
+                prefix = partial;
+            } else {
+                // Starts over with the whole body
+                e = execute(url, NO_HEADERS, limiter);
+            }
+
+            InputStream is;
+            try {
+                is = e.response.getBody();
+            } catch (IOException ex) {
+                e.fail();
+                throw ex;
+            }
+
+            // Closing the body finishes the exchange
+            is = new FilterInputStream(is) {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        int b = super.read();
+                        if (b != -1) {
+                            e.bytesRead++;
+                        }
+
+                        return b;
+                    } catch (IOException ex) {
+                        e.fail();
+                        throw ex;
+                    }
                 }
 
-                return is;
-            } else {
-                return openConnection(url).getInputStream();
+                @Override
+                public int read(byte[] buffer, int offset, int count) throws IOException {
+                    try {
+                        int read = super.read(buffer, offset, count);
+                        if (read > 0) {
+                            e.bytesRead += read;
+                        }
+
+                        return read;
+                    } catch (IOException ex) {
+                        e.fail();
+                        throw ex;
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    e.close();
+                }
+            };
+
+            if (prefix != null) {
+                try {
+                    is = new SequenceInputStream(prefix.getInput(), is);
+                } catch (IOException ex) {
+                    is.close();
+                    throw ex;
+                }
+            }
+
+            // Handle a bug in older versions of Android, see
+            // http://android-developers.blogspot.se/2010/07/multithreading-for-performance.html
+            if (!Android.isAPI(9)) {
+                is = new FlushedInputStream(is);
             }
-        }
 
+            return new CancellableInputStream(is, manager, new CancellableInputStream.AbortListener() {
+                @Override
+                public void onAbort(long bytesRead) {
+                    e.abort(bytesRead);
+                }
+            });
+        }
     }
 
     public static class Builder {
@@ -256,8 +807,13 @@ public class NetworkLoader implements Loader, Closeable {
 
         private ConnectionFactory connectionFactory;
         private ConnectionHandler connectionHandler;
+        private Transport transport;
 
         private int threadCount = Constants.DEFAULT_NETWORK_THREADS;
+        private int minThreadCount;
+        private int maxThreadCount;
+        private int maxThreadsPerHost;
+        private Scheduler scheduler = Scheduler.PRIORITY;
 
         private int connectionTimeout = Constants.DEFAULT_CONNECTION_TIMEOUT;
         private int readTimeout = Constants.DEFAULT_READ_TIMEOUT;
@@ -287,12 +843,37 @@ public class NetworkLoader implements Loader, Closeable {
             return this;
         }
 
+        public Builder setTransport(Transport transport) {
+            this.transport = transport;
+
+            return this;
+        }
+
         public Builder setThreadCount(int count) {
             this.threadCount = count;
 
             return this;
         }
 
+        public Builder setAdaptiveThreadCount(int minCount, int maxCount) {
+            this.minThreadCount = minCount;
+            this.maxThreadCount = maxCount;
+
+            return this;
+        }
+
+        public Builder setMaxThreadsPerHost(int count) {
+            this.maxThreadsPerHost = count;
+
+            return this;
+        }
+
+        public Builder setScheduler(Scheduler scheduler) {
+            this.scheduler = scheduler;
+
+            return this;
+        }
+
         public Builder setConnectionTimeout(int connectionTimeout) {
             this.connectionTimeout = connectionTimeout;
 
@@ -0,0 +1,996 @@
+package com.webimageloader.loader;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import android.util.Log;
+
+import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.util.IOUtil;
+
+/**
+ * {@link DiskStore} packing entries into a few large segment files instead of
+ * one file per value, with a memory mapped hash index pointing into them.
+ * <p>
+ * Opening the store only maps the index, there is no journal to replay, and
+ * a hit is a lookup in the index followed by slicing an already mapped
+ * segment. Entries are only ever appended to the newest segment. Replaced
+ * and evicted entries leave garbage behind, segments which are mostly
+ * garbage are compacted by moving their live entries to the newest segment.
+ * <p>
+ * Writes are not synced to disk. If the device crashes entries written
+ * shortly before might be lost, but the index is validated when it is opened
+ * and entries are checked when they are read.
+ */
+public class PackedDiskStore implements DiskStore {
+    private static final String TAG = "PackedDiskStore";
+
+    public static final Factory FACTORY = new Factory() {
+        @Override
+        public DiskStore open(File directory, int appVersion, int valueCount, long maxSize) throws IOException {
+            return PackedDiskStore.open(directory, appVersion, valueCount, maxSize);
+        }
+    };
+
+    private static final String INDEX_FILE = "index";
+    private static final String INDEX_TEMP_FILE = "index.tmp";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private static final int INDEX_MAGIC = 0x57494c49; // "WILI"
+    private static final int RECORD_MAGIC = 0x57494c53; // "WILS"
+    private static final int VERSION = 1;
+
+    // Index header
+    private static final int HEADER_SIZE = 32;
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_APP_VERSION = 8;
+    private static final int HEADER_VALUE_COUNT = 12;
+    private static final int HEADER_CAPACITY = 16;
+    private static final int HEADER_CLOCK = 20;
+    private static final int HEADER_NEXT_SEGMENT = 24;
+
+    // Index slots, an empty slot has a zero hash and a removed one a negative segment
+    private static final int SLOT_SIZE = 32;
+    private static final int SLOT_HASH = 0;
+    private static final int SLOT_SEGMENT = 8;
+    private static final int SLOT_OFFSET = 12;
+    private static final int SLOT_LENGTH = 16;
+    private static final int SLOT_ACCESS = 20;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float MAX_LOAD = 0.6f;
+
+    private static final long SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final float COMPACT_RATIO = 0.5f;
+
+    private final File directory;
+    private final int appVersion;
+    private final int valueCount;
+    private final long maxSize;
+
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private int removed;
+    private int clock;
+
+    private Map<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+    private Segment active;
+    private int nextSegment;
+
+    private long size;
+    private Set<String> editing = new HashSet<String>();
+    private int tempCounter;
+    private boolean closed = false;
+
+    /**
+     * Open a store, creating it if needed. If the existing store can't be
+     * read it is deleted and a new one is created.
+     *
+     * @param directory directory to keep the store in, nothing else should be kept there
+     * @param appVersion version of the stored data
+     * @param valueCount number of values per entry
+     * @param maxSize max size in bytes
+     * @return the store
+     * @throws IOException if the store could not be created
+     */
+    public static PackedDiskStore open(File directory, int appVersion, int valueCount, long maxSize) throws IOException {
+        if (valueCount <= 0 || valueCount > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("valueCount must be between 1 and " + Byte.MAX_VALUE);
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+
+        PackedDiskStore store = new PackedDiskStore(directory, appVersion, valueCount, maxSize);
+
+        try {
+            store.load();
+        } catch (IOException e) {
+            Log.w(TAG, "Store is corrupt, starting over: " + e.getMessage());
+
+            store.closeSegments();
+            deleteContents(directory);
+            store.create();
+        }
+
+        return store;
+    }
+
+    private PackedDiskStore(File directory, int appVersion, int valueCount, long maxSize) {
+        this.directory = directory;
+        this.appVersion = appVersion;
+        this.valueCount = valueCount;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public synchronized Snapshot get(String key) throws IOException {
+        checkNotClosed();
+
+        int slot = find(key);
+        if (slot == -1) {
+            return null;
+        }
+
+        ByteBuffer[] values = readValues(slot);
+        if (values == null) {
+            Log.w(TAG, "Removing corrupt entry " + key);
+            removeSlot(slot);
+
+            return null;
+        }
+
+        index.putInt(slotPosition(slot) + SLOT_ACCESS, nextClock());
+
+        return new PackedSnapshot(values);
+    }
+
+    @Override
+    public synchronized Editor edit(String key) throws IOException {
+        checkNotClosed();
+
+        if (!editing.add(key)) {
+            return null;
+        }
+
+        return new PackedEditor(key, tempCounter++);
+    }
+
+    @Override
+    public synchronized boolean remove(String key) throws IOException {
+        checkNotClosed();
+
+        int slot = find(key);
+        if (slot == -1) {
+            return false;
+        }
+
+        removeSlot(slot);
+        compact();
+
+        return true;
+    }
+
+    @Override
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * @return number of entries
+     */
+    public synchronized int count() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+
+        closed = true;
+
+        index.force();
+        closeSegments();
+    }
+
+    private void checkNotClosed() {
+        if (closed) {
+            throw new IllegalStateException("Store is closed");
+        }
+    }
+
+    private void create() throws IOException {
+        segments.clear();
+        size = 0;
+        count = 0;
+        removed = 0;
+        clock = 0;
+        nextSegment = 0;
+
+        index = createIndex(new File(directory, INDEX_FILE), INITIAL_CAPACITY);
+        capacity = INITIAL_CAPACITY;
+
+        active = openSegment(nextSegment++);
+        index.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+    }
+
+    private void load() throws IOException {
+        File indexFile = new File(directory, INDEX_FILE);
+        if (!indexFile.exists()) {
+            deleteContents(directory);
+            create();
+            return;
+        }
+
+        index = map(indexFile, indexFile.length());
+        if (index.capacity() < HEADER_SIZE
+                || index.getInt(HEADER_MAGIC) != INDEX_MAGIC
+                || index.getInt(HEADER_VERSION) != VERSION) {
+            throw new IOException("Invalid index header");
+        }
+
+        if (index.getInt(HEADER_APP_VERSION) != appVersion || index.getInt(HEADER_VALUE_COUNT) != valueCount) {
+            throw new IOException("Version changed");
+        }
+
+        capacity = index.getInt(HEADER_CAPACITY);
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || index.capacity() != HEADER_SIZE + (long) capacity * SLOT_SIZE) {
+            throw new IOException("Invalid index capacity");
+        }
+
+        clock = index.getInt(HEADER_CLOCK);
+        nextSegment = index.getInt(HEADER_NEXT_SEGMENT);
+
+        for (int i = 0; i < capacity; i++) {
+            int position = slotPosition(i);
+            if (index.getLong(position + SLOT_HASH) == 0) {
+                continue;
+            }
+
+            int segmentId = index.getInt(position + SLOT_SEGMENT);
+            if (segmentId < 0) {
+                removed++;
+                continue;
+            }
+
+            if (segmentId >= nextSegment) {
+                throw new IOException("Invalid segment " + segmentId);
+            }
+
+            Segment segment = segments.get(segmentId);
+            if (segment == null) {
+                File file = new File(directory, SEGMENT_PREFIX + segmentId);
+                if (!file.exists()) {
+                    throw new IOException("Missing segment " + segmentId);
+                }
+
+                segment = openSegment(segmentId);
+            }
+
+            long offset = index.getInt(position + SLOT_OFFSET) & 0xffffffffL;
+            int length = index.getInt(position + SLOT_LENGTH);
+            if (length <= 0 || offset + length > segment.length) {
+                throw new IOException("Entry outside of segment " + segmentId);
+            }
+
+            segment.liveBytes += length;
+            size += length;
+            count++;
+        }
+
+        // Clean up files no longer referenced
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(TEMP_PREFIX) || name.equals(INDEX_TEMP_FILE)) {
+                    file.delete();
+                } else if (name.startsWith(SEGMENT_PREFIX)) {
+                    try {
+                        int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+                        if (!segments.containsKey(id) && id != nextSegment - 1) {
+                            file.delete();
+                        }
+                    } catch (NumberFormatException e) {
+                        // Not ours, leave it
+                    }
+                }
+            }
+        }
+
+        active = segments.get(nextSegment - 1);
+        if (active == null) {
+            active = openSegment(nextSegment++);
+            index.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+        }
+
+        if (Logger.VERBOSE) Log.v(TAG, "Opened store with " + count + " entries in " + segments.size() + " segments");
+    }
+
+    /**
+     * Find the slot of a key by probing linearly from its hash
+     *
+     * @return the slot or -1 if not found
+     */
+    private int find(String key) throws IOException {
+        long hash = hash(key);
+        int mask = capacity - 1;
+
+        for (int i = (int) hash & mask, probes = 0; probes < capacity; i = (i + 1) & mask, probes++) {
+            int position = slotPosition(i);
+            long slotHash = index.getLong(position + SLOT_HASH);
+
+            if (slotHash == 0) {
+                return -1;
+            }
+
+            if (slotHash == hash && index.getInt(position + SLOT_SEGMENT) >= 0 && key.equals(readKey(i))) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Find a slot to insert a new key into
+     */
+    private int findFree(long hash) {
+        int mask = capacity - 1;
+
+        for (int i = (int) hash & mask; ; i = (i + 1) & mask) {
+            int position = slotPosition(i);
+            if (index.getLong(position + SLOT_HASH) == 0 || index.getInt(position + SLOT_SEGMENT) < 0) {
+                return i;
+            }
+        }
+    }
+
+    private void putSlot(int slot, long hash, Segment segment, long offset, int length) {
+        int position = slotPosition(slot);
+
+        long oldHash = index.getLong(position + SLOT_HASH);
+        if (oldHash != 0 && index.getInt(position + SLOT_SEGMENT) < 0) {
+            removed--;
+        }
+
+        index.putLong(position + SLOT_HASH, hash);
+        index.putInt(position + SLOT_SEGMENT, segment.id);
+        index.putInt(position + SLOT_OFFSET, (int) offset);
+        index.putInt(position + SLOT_LENGTH, length);
+        index.putInt(position + SLOT_ACCESS, nextClock());
+    }
+
+    private void removeSlot(int slot) {
+        int position = slotPosition(slot);
+
+        Segment segment = segments.get(index.getInt(position + SLOT_SEGMENT));
+        int length = index.getInt(position + SLOT_LENGTH);
+        if (segment != null) {
+            segment.liveBytes -= length;
+        }
+
+        // Keep the hash so probing continues past this slot
+        index.putInt(position + SLOT_SEGMENT, -1);
+
+        size -= length;
+        count--;
+        removed++;
+    }
+
+    /**
+     * Grow the index if it's getting full, or rebuild it if it has too many
+     * removed slots
+     */
+    private void ensureCapacity() throws IOException {
+        if (count + removed + 1 <= capacity * MAX_LOAD) {
+            return;
+        }
+
+        int newCapacity = capacity;
+        while (count + 1 > newCapacity * MAX_LOAD / 2) {
+            newCapacity *= 2;
+        }
+
+        File temp = new File(directory, INDEX_TEMP_FILE);
+        MappedByteBuffer newIndex = createIndex(temp, newCapacity);
+        newIndex.putInt(HEADER_CLOCK, clock);
+        newIndex.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+
+        int mask = newCapacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            int position = slotPosition(i);
+            long hash = index.getLong(position + SLOT_HASH);
+            if (hash == 0 || index.getInt(position + SLOT_SEGMENT) < 0) {
+                continue;
+            }
+
+            int slot = (int) hash & mask;
+            while (newIndex.getLong(slotPosition(slot) + SLOT_HASH) != 0) {
+                slot = (slot + 1) & mask;
+            }
+
+            for (int j = 0; j < SLOT_SIZE; j += 4) {
+                newIndex.putInt(slotPosition(slot) + j, index.getInt(position + j));
+            }
+        }
+
+        newIndex.force();
+        if (!temp.renameTo(new File(directory, INDEX_FILE))) {
+            throw new IOException("Could not replace index");
+        }
+
+        index = newIndex;
+        capacity = newCapacity;
+        removed = 0;
+    }
+
+    /**
+     * Read the values of an entry, validating its header
+     *
+     * @return the values or null if the entry is corrupt
+     */
+    private ByteBuffer[] readValues(int slot) throws IOException {
+        ByteBuffer record = readRecord(slot);
+        if (record == null) {
+            return null;
+        }
+
+        int keyLength = record.getShort(4) & 0xffff;
+        int position = 6 + keyLength;
+        if (record.limit() < position + 1 + valueCount * 4 || record.get(position) != valueCount) {
+            return null;
+        }
+
+        position++;
+        int dataPosition = position + valueCount * 4;
+
+        ByteBuffer[] values = new ByteBuffer[valueCount];
+        for (int i = 0; i < valueCount; i++) {
+            int length = record.getInt(position + i * 4);
+            if (length < 0 || dataPosition + length > record.limit()) {
+                return null;
+            }
+
+            ByteBuffer value = record.duplicate();
+            value.position(dataPosition);
+            value.limit(dataPosition + length);
+            values[i] = value.slice();
+
+            dataPosition += length;
+        }
+
+        return values;
+    }
+
+    private String readKey(int slot) throws IOException {
+        ByteBuffer record = readRecord(slot);
+        if (record == null) {
+            return null;
+        }
+
+        int keyLength = record.getShort(4) & 0xffff;
+        if (record.limit() < 6 + keyLength) {
+            return null;
+        }
+
+        byte[] key = new byte[keyLength];
+        ByteBuffer b = record.duplicate();
+        b.position(6);
+        b.get(key);
+
+        return new String(key, "UTF-8");
+    }
+
+    private ByteBuffer readRecord(int slot) throws IOException {
+        int position = slotPosition(slot);
+
+        Segment segment = segments.get(index.getInt(position + SLOT_SEGMENT));
+        if (segment == null) {
+            return null;
+        }
+
+        long offset = index.getInt(position + SLOT_OFFSET) & 0xffffffffL;
+        int length = index.getInt(position + SLOT_LENGTH);
+        if (length < 6 || offset + length > segment.length) {
+            return null;
+        }
+
+        ByteBuffer record = segment.slice(offset, length);
+        if (record.getInt(0) != RECORD_MAGIC) {
+            return null;
+        }
+
+        return record;
+    }
+
+    private void commit(String key, File[] temps) throws IOException {
+        int slot = find(key);
+
+        ByteBuffer[] oldValues = null;
+        if (slot != -1) {
+            oldValues = readValues(slot);
+        }
+
+        long[] lengths = new long[valueCount];
+        long dataLength = 0;
+        for (int i = 0; i < valueCount; i++) {
+            if (temps[i] != null) {
+                lengths[i] = temps[i].length();
+            } else if (oldValues != null) {
+                lengths[i] = oldValues[i].remaining();
+            } else {
+                throw new IllegalStateException("Newly created entry didn't create value for index " + i);
+            }
+
+            dataLength += lengths[i];
+        }
+
+        byte[] keyBytes = key.getBytes("UTF-8");
+        int headerLength = 6 + keyBytes.length + 1 + valueCount * 4;
+        long recordLength = headerLength + dataLength;
+        if (keyBytes.length > 0xffff || recordLength > Integer.MAX_VALUE) {
+            throw new IOException("Entry too large");
+        }
+
+        if (active.length > 0 && active.length + recordLength > SEGMENT_SIZE) {
+            active = openSegment(nextSegment++);
+            index.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+        }
+
+        if (active.length + recordLength > 0xffffffffL) {
+            throw new IOException("Segment too large");
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        header.putInt(RECORD_MAGIC);
+        header.putShort((short) keyBytes.length);
+        header.put(keyBytes);
+        header.put((byte) valueCount);
+        for (long length : lengths) {
+            header.putInt((int) length);
+        }
+        header.flip();
+
+        long offset = active.length;
+        long position = offset;
+        position += active.write(header, position);
+
+        for (int i = 0; i < valueCount; i++) {
+            if (temps[i] != null) {
+                position += active.transferFrom(temps[i], position);
+            } else {
+                position += active.write(oldValues[i].duplicate(), position);
+            }
+        }
+
+        if (position - offset != recordLength) {
+            throw new IOException("Value changed while committing");
+        }
+
+        active.length = position;
+
+        if (slot != -1) {
+            removeSlot(slot);
+        }
+
+        ensureCapacity();
+
+        long hash = hash(key);
+        putSlot(findFree(hash), hash, active, offset, (int) recordLength);
+
+        active.liveBytes += recordLength;
+        size += recordLength;
+        count++;
+
+        trimToSize();
+        compact();
+    }
+
+    /**
+     * Remove the least recently used entries until the store fits
+     */
+    private void trimToSize() {
+        if (size <= maxSize) {
+            return;
+        }
+
+        long[] entries = new long[count];
+        int n = 0;
+        for (int i = 0; i < capacity && n < entries.length; i++) {
+            int position = slotPosition(i);
+            if (index.getLong(position + SLOT_HASH) != 0 && index.getInt(position + SLOT_SEGMENT) >= 0) {
+                // Sort by access time, keeping track of the slot
+                entries[n++] = ((long) index.getInt(position + SLOT_ACCESS) << 32) | i;
+            }
+        }
+
+        Arrays.sort(entries, 0, n);
+
+        for (int i = 0; i < n && size > maxSize; i++) {
+            removeSlot((int) entries[i]);
+        }
+    }
+
+    /**
+     * Move live entries out of segments which are mostly garbage and delete
+     * those segments
+     */
+    private void compact() throws IOException {
+        List<Segment> sparse = new ArrayList<Segment>();
+        for (Segment segment : segments.values()) {
+            if (segment != active && (segment.liveBytes == 0 || segment.liveBytes < segment.length * COMPACT_RATIO)) {
+                sparse.add(segment);
+            }
+        }
+
+        if (sparse.isEmpty()) {
+            return;
+        }
+
+        for (Segment segment : sparse) {
+            if (segment.liveBytes > 0) {
+                moveEntries(segment);
+            }
+
+            if (Logger.VERBOSE) Log.v(TAG, "Deleting segment " + segment.id);
+
+            segments.remove(segment.id);
+            segment.close();
+            segment.file.delete();
+        }
+    }
+
+    private void moveEntries(Segment from) throws IOException {
+        for (int i = 0; i < capacity; i++) {
+            int position = slotPosition(i);
+            if (index.getLong(position + SLOT_HASH) == 0 || index.getInt(position + SLOT_SEGMENT) != from.id) {
+                continue;
+            }
+
+            ByteBuffer record = readRecord(i);
+            if (record == null) {
+                removeSlot(i);
+                continue;
+            }
+
+            int length = record.remaining();
+            if (active.length > 0 && active.length + length > SEGMENT_SIZE) {
+                active = openSegment(nextSegment++);
+                index.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+            }
+
+            long offset = active.length;
+            active.length += active.write(record, offset);
+
+            index.putInt(position + SLOT_SEGMENT, active.id);
+            index.putInt(position + SLOT_OFFSET, (int) offset);
+
+            from.liveBytes -= length;
+            active.liveBytes += length;
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id));
+        segments.put(id, segment);
+
+        return segment;
+    }
+
+    private void closeSegments() {
+        for (Segment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    private int nextClock() {
+        clock++;
+        index.putInt(HEADER_CLOCK, clock);
+
+        return clock;
+    }
+
+    private MappedByteBuffer createIndex(File file, int capacity) throws IOException {
+        file.delete();
+
+        MappedByteBuffer buffer = map(file, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+        buffer.putInt(HEADER_MAGIC, INDEX_MAGIC);
+        buffer.putInt(HEADER_VERSION, VERSION);
+        buffer.putInt(HEADER_APP_VERSION, appVersion);
+        buffer.putInt(HEADER_VALUE_COUNT, valueCount);
+        buffer.putInt(HEADER_CAPACITY, capacity);
+        buffer.putInt(HEADER_CLOCK, clock);
+        buffer.putInt(HEADER_NEXT_SEGMENT, nextSegment);
+
+        return buffer;
+    }
+
+    private static MappedByteBuffer map(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // The mapping stays valid after closing the file
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * 64 bit FNV-1a hash, never zero as that marks an empty slot
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+
+        return hash == 0 ? 1 : hash;
+    }
+
+    private static void deleteContents(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+
+        private long length;
+        private long liveBytes;
+
+        private MappedByteBuffer mapped;
+
+        public Segment(int id, File file) throws IOException {
+            this.id = id;
+            this.file = file;
+
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            length = channel.size();
+        }
+
+        public ByteBuffer slice(long offset, int length) throws IOException {
+            // Segments only grow, remap when reading past what is mapped
+            if (mapped == null || mapped.capacity() < offset + length) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, this.length);
+            }
+
+            ByteBuffer b = mapped.duplicate();
+            b.position((int) offset);
+            b.limit((int) offset + length);
+
+            return b.slice();
+        }
+
+        public int write(ByteBuffer buffer, long position) throws IOException {
+            int written = 0;
+            while (buffer.hasRemaining()) {
+                written += channel.write(buffer, position + written);
+            }
+
+            return written;
+        }
+
+        public long transferFrom(File file, long position) throws IOException {
+            FileInputStream is = new FileInputStream(file);
+            try {
+                FileChannel source = is.getChannel();
+                long size = source.size();
+
+                long transferred = 0;
+                while (transferred < size) {
+                    long n = channel.transferFrom(source, position + transferred, size - transferred);
+                    if (n <= 0) {
+                        throw new IOException("Could not copy " + file);
+                    }
+
+                    transferred += n;
+                }
+
+                return transferred;
+            } finally {
+                is.close();
+            }
+        }
+
+        public void close() {
+            IOUtil.closeQuietly(raf);
+        }
+    }
+
+    private static class PackedSnapshot implements Snapshot {
+        private ByteBuffer[] values;
+
+        public PackedSnapshot(ByteBuffer[] values) {
+            this.values = values;
+        }
+
+        @Override
+        public InputStream getInputStream(int index) {
+            return new ByteBufferInputStream(values[index].duplicate());
+        }
+
+        @Override
+        public long getLength(int index) {
+            return values[index].remaining();
+        }
+
+        @Override
+        public ByteBuffer map(int index) {
+            return values[index].asReadOnlyBuffer();
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release, the segment stays mapped
+        }
+    }
+
+    private class PackedEditor implements Editor {
+        private String key;
+        private int id;
+        private File[] temps;
+
+        private boolean done = false;
+
+        public PackedEditor(String key, int id) {
+            this.key = key;
+            this.id = id;
+
+            temps = new File[valueCount];
+        }
+
+        @Override
+        public OutputStream newOutputStream(int index) throws IOException {
+            synchronized (PackedDiskStore.this) {
+                if (done) {
+                    throw new IllegalStateException("Edit already finished");
+                }
+
+                if (temps[index] == null) {
+                    temps[index] = new File(directory, TEMP_PREFIX + id + "." + index);
+                }
+
+                return new FileOutputStream(temps[index]);
+            }
+        }
+
+        @Override
+        public void commit() throws IOException {
+            synchronized (PackedDiskStore.this) {
+                if (done) {
+                    throw new IllegalStateException("Edit already finished");
+                }
+
+                checkNotClosed();
+
+                try {
+                    PackedDiskStore.this.commit(key, temps);
+                } finally {
+                    finish();
+                }
+            }
+        }
+
+        @Override
+        public void abort() {
+            synchronized (PackedDiskStore.this) {
+                if (!done) {
+                    finish();
+                }
+            }
+        }
+
+        @Override
+        public void abortUnlessCommitted() {
+            abort();
+        }
+
+        private void finish() {
+            done = true;
+            editing.remove(key);
+
+            for (File temp : temps) {
+                if (temp != null) {
+                    temp.delete();
+                }
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer buffer;
+        private int mark = -1;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int offset, int count) {
+            if (count == 0) {
+                return 0;
+            }
+
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            count = Math.min(count, buffer.remaining());
+            buffer.get(b, offset, count);
+
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            int n = (int) Math.min(Math.max(count, 0), buffer.remaining());
+            buffer.position(buffer.position() + n);
+
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readlimit) {
+            mark = buffer.position();
+        }
+
+        @Override
+        public synchronized void reset() throws IOException {
+            if (mark == -1) {
+                throw new IOException("Stream not marked");
+            }
+
+            buffer.position(mark);
+        }
+    }
+}
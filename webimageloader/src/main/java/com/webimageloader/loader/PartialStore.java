@@ -0,0 +1,369 @@
+package com.webimageloader.loader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.util.IOUtil;
+import com.webimageloader.util.InputSupplier;
+
+/**
+ * Keeps the beginning of downloads which didn't finish, so that they can
+ * be resumed with a range request instead of starting over. Each file is
+ * the metadata header, with the validator used to resume, followed by the
+ * bytes received so far.
+ * <p>
+ * Only a few files are kept, the oldest are deleted first.
+ */
+class PartialStore {
+    private static final String TAG = "PartialStore";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final int maxFiles;
+
+    /** Keys with a partial file, so misses can be checked without disk access */
+    private final Set<String> keys = Collections.synchronizedSet(new HashSet<String>());
+
+    public static PartialStore open(File directory, int maxFiles) {
+        PartialStore store = new PartialStore(directory, maxFiles);
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Failed to create " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.endsWith(TEMP_SUFFIX)) {
+                    // Left behind by a crash
+                    file.delete();
+                } else {
+                    store.keys.add(name);
+                }
+            }
+        }
+
+        return store;
+    }
+
+    private PartialStore(File directory, int maxFiles) {
+        this.directory = directory;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Check if a download can be resumed using this metadata, If-Range
+     * needs a strong etag or a last modified date
+     */
+    public static boolean canResume(Metadata metadata) {
+        return metadata != null && (isStrongEtag(metadata.getEtag()) || metadata.getLastModified() != 0);
+    }
+
+    static boolean isStrongEtag(String etag) {
+        return !TextUtils.isEmpty(etag) && !etag.startsWith("W/");
+    }
+
+    /**
+     * @return true if there might be a partial download for this key
+     */
+    public boolean contains(String key) {
+        return keys.contains(key);
+    }
+
+    /**
+     * Get the partial download for a key
+     *
+     * @return the partial download or null if there is none
+     */
+    public Entry get(String key) {
+        if (!keys.contains(key)) {
+            return null;
+        }
+
+        File file = new File(directory, key);
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file), 1024);
+            Metadata metadata = Metadata.readHeader(is);
+
+            if (canResume(metadata)) {
+                long length = file.length() - metadata.getHeaderSize();
+                if (length > 0) {
+                    return new Entry(file, metadata, length);
+                }
+            }
+        } catch (IOException e) {
+            if (Logger.DEBUG) Log.d(TAG, "Failed to read " + file, e);
+        } finally {
+            IOUtil.closeQuietly(is);
+        }
+
+        // Not worth resuming
+        remove(key);
+        return null;
+    }
+
+    /**
+     * Start saving a download, nothing is kept unless
+     * {@link Writer#keep()} is called
+     *
+     * @param metadata metadata of the download, used to resume it
+     * @return the writer to copy the download to
+     * @throws IOException if the file couldn't be created
+     */
+    public Writer begin(String key, Metadata metadata) throws IOException {
+        // The store might have cleared the whole cache directory
+        if (!directory.isDirectory()) {
+            directory.mkdirs();
+        }
+
+        File temp = new File(directory, key + TEMP_SUFFIX);
+        OutputStream os = new BufferedOutputStream(new FileOutputStream(temp), 8192);
+
+        try {
+            metadata.writeHeader(os);
+        } catch (IOException e) {
+            IOUtil.closeQuietly(os);
+            temp.delete();
+            throw e;
+        }
+
+        return new Writer(key, temp, os);
+    }
+
+    public void remove(String key) {
+        if (keys.remove(key)) {
+            new File(directory, key).delete();
+        }
+    }
+
+    private void trim() {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= maxFiles) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length - maxFiles; i++) {
+            String name = files[i].getName();
+            if (!name.endsWith(TEMP_SUFFIX)) {
+                remove(name);
+            }
+        }
+    }
+
+    /**
+     * The start of a download
+     */
+    public static class Entry implements InputSupplier {
+        private File file;
+        private Metadata metadata;
+        private long length;
+
+        private Entry(File file, Metadata metadata, long length) {
+            this.file = file;
+            this.metadata = metadata;
+            this.length = length;
+        }
+
+        /**
+         * @return the metadata of the original download
+         */
+        public Metadata getMetadata() {
+            return metadata;
+        }
+
+        @Override
+        public long getLength() {
+            return length;
+        }
+
+        @Override
+        public InputStream getInput() throws IOException {
+            InputStream is = new BufferedInputStream(new FileInputStream(file), 8192);
+
+            try {
+                Metadata.readHeader(is);
+            } catch (IOException e) {
+                is.close();
+                throw e;
+            }
+
+            // The file might be replaced while resuming, only read what
+            // was there to begin with
+            return new LimitedInputStream(is, length);
+        }
+    }
+
+    /**
+     * Copies a download to a temporary file
+     */
+    public class Writer {
+        private String key;
+        private File temp;
+        private OutputStream os;
+
+        private long written;
+        private boolean failed;
+
+        private Writer(String key, File temp, OutputStream os) {
+            this.key = key;
+            this.temp = temp;
+            this.os = os;
+        }
+
+        /**
+         * Wrap the stream the download is written to, copying everything
+         * written to it. Failing to copy doesn't fail the download.
+         */
+        public OutputStream mirror(OutputStream target) {
+            return new FilterOutputStream(target) {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    copy(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] buffer, int offset, int count) throws IOException {
+                    out.write(buffer, offset, count);
+                    copy(buffer, offset, count);
+                }
+            };
+        }
+
+        private void copy(byte[] buffer, int offset, int count) {
+            if (failed) {
+                return;
+            }
+
+            try {
+                os.write(buffer, offset, count);
+                written += count;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed saving partial download of " + key, e);
+                failed = true;
+            }
+        }
+
+        /**
+         * The download didn't finish, keep what we got
+         */
+        public void keep() {
+            try {
+                os.close();
+            } catch (IOException e) {
+                failed = true;
+            }
+
+            if (written == 0 || failed) {
+                temp.delete();
+                return;
+            }
+
+            File file = new File(directory, key);
+            if (temp.renameTo(file)) {
+                if (Logger.VERBOSE) Log.v(TAG, "Kept " + written + " bytes of " + key);
+
+                keys.add(key);
+                trim();
+            } else {
+                temp.delete();
+            }
+        }
+
+        /**
+         * The download finished, it's no longer needed
+         */
+        public void discard() {
+            IOUtil.closeQuietly(os);
+            temp.delete();
+
+            remove(key);
+        }
+    }
+
+    private static class LimitedInputStream extends FilterInputStream {
+        private long remaining;
+
+        LimitedInputStream(InputStream in, long limit) {
+            super(in);
+
+            remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int b = super.read();
+            if (b != -1) {
+                remaining--;
+            }
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = super.read(buffer, offset, (int) Math.min(count, remaining));
+            if (read > 0) {
+                remaining -= read;
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining));
+            remaining -= skipped;
+
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
@@ -1,41 +1,68 @@
 package com.webimageloader.loader;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.webimageloader.ImageLoader;
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.Request;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.util.Log;
 
+/**
+ * Keeps track of requests currently being loaded so that they can be reused
+ * and cancelled by tag.
+ * <p>
+ * There is no global lock, pending requests are kept in a concurrent map and
+ * each {@link PendingListeners} guards its own listeners. This means progress
+ * updates and results for one request never block the UI thread starting or
+ * cancelling another one. Only the tag map, which is touched exclusively by
+ * calls coming from the client, has a lock of its own.
+ */
 public class PendingRequests {
     private static final String TAG = "PendingRequests";
 
     private MemoryCache memoryCache;
+    private TimingListener timingListener;
+    private NegativeCache negativeCache;
 
     // Don't remove tags at all, this means both of these should be weakhashmaps
     //
     private Map<Object, PendingListeners> pendingTags;
-    private Map<LoaderRequest, PendingListeners> pendingRequests;
+    private ConcurrentHashMap<LoaderRequest, PendingListeners> pendingRequests;
 
     public PendingRequests(MemoryCache memoryCache) {
+        this(memoryCache, null);
+    }
+
+    public PendingRequests(MemoryCache memoryCache, TimingListener timingListener) {
+        this(memoryCache, timingListener, null);
+    }
+
+    /**
+     * @param negativeCache remembers failed requests, can be null
+     */
+    public PendingRequests(MemoryCache memoryCache, TimingListener timingListener, NegativeCache negativeCache) {
         this.memoryCache = memoryCache;
+        this.timingListener = timingListener;
+        this.negativeCache = negativeCache;
 
-        // Use WeakHashMap to ensure tags can be GC'd
+        // Use WeakHashMap to ensure tags can be GC'd, access to it is
+        // guarded by synchronizing on the map itself
         pendingTags = new WeakHashMap<Object, PendingListeners>();
-        pendingRequests = new HashMap<LoaderRequest, PendingListeners>();
+        pendingRequests = new ConcurrentHashMap<LoaderRequest, PendingListeners>();
     }
 
-    public synchronized Bitmap getBitmap(Object tag, LoaderRequest request) {
+    public Bitmap getBitmap(Object tag, LoaderRequest request) {
         if (memoryCache != null) {
             MemoryCache.Entry entry = memoryCache.get(request);
             if (entry != null) {
@@ -48,7 +75,7 @@ public class PendingRequests {
         return null;
     }
 
-    public synchronized LoaderWork addRequest(Object tag, final LoaderRequest request, LoaderManager.Listener listener) {
+    public LoaderWork addRequest(Object tag, final LoaderRequest request, LoaderManager.Listener listener) {
         if (tag != null && stillPending(tag, request)) {
             return null;
         }
@@ -57,43 +84,58 @@ public class PendingRequests {
             cancelPotentialWork(tag);
         }
 
-        PendingListeners listeners = pendingRequests.get(request);
-        LoaderWork work = null;
-
-        if (listeners == null) {
-            work = new LoaderWork(new RequestListener(request), new ImageLoader.ProgressListener() {
-                @Override
-                public void onProgress(float value) {
-                    publishProgress(request, value);
+        while (true) {
+            PendingListeners listeners = pendingRequests.get(request);
+            LoaderWork work = null;
+
+            if (listeners == null) {
+                RequestListener requestListener = new RequestListener(request);
+                work = new LoaderWork(requestListener, new ImageLoader.ProgressListener() {
+                    @Override
+                    public void onProgress(float value) {
+                        publishProgress(request, value);
+                    }
+                }, request.getPriority(), timingListener);
+                requestListener.work = work;
+
+                listeners = new PendingListeners(request, tag, listener, work);
+                if (pendingRequests.putIfAbsent(request, listeners) != null) {
+                    // Somebody else started this request while we were
+                    // creating ours, try to join that one instead
+                    continue;
                 }
-            });
+            } else if (listeners.add(tag, listener)) {
+                if (Logger.VERBOSE) Log.v(TAG, "Reusing request: " + request);
 
-            listeners = new PendingListeners(request, tag, listener, work);
-            pendingRequests.put(request, listeners);
-        } else {
-            if (Logger.VERBOSE) Log.v(TAG, "Reusing request: " + request);
-            listeners.add(tag, listener);
-        }
+                // Somebody wants this again, move it ahead of older work
+                listeners.prioritize(request.getPriority());
+            } else {
+                // The request finished or was cancelled before we could
+                // join it, make sure it's gone and try again
+                pendingRequests.remove(request, listeners);
+                continue;
+            }
 
-        if (tag != null) {
-            pendingTags.put(tag, listeners);
-        }
+            if (tag != null) {
+                listeners.putTag(tag, pendingTags);
+            }
 
-        return work;
+            return work;
+        }
     }
 
-    public synchronized void cancel(Object tag) {
+    public void cancel(Object tag) {
         cancelPotentialWork(tag);
     }
 
-    protected synchronized void publishProgress(LoaderRequest request, float value) {
+    protected void publishProgress(LoaderRequest request, float value) {
         PendingListeners listeners = pendingRequests.get(request);
         if (listeners != null) {
             listeners.publishProgress(value);
         }
     }
 
-    protected synchronized void deliverResult(LoaderRequest request, Bitmap b, Metadata metadata) {
+    protected void deliverResult(LoaderRequest request, Bitmap b, Metadata metadata) {
         PendingListeners listeners = removeRequest(request);
         if (listeners != null) {
             saveToMemoryCache(request, b, metadata);
@@ -102,7 +144,7 @@ public class PendingRequests {
         }
     }
 
-    protected synchronized void deliverError(LoaderRequest request, Throwable t) {
+    protected void deliverError(LoaderRequest request, Throwable t) {
         PendingListeners listeners = removeRequest(request);
         if (listeners != null) {
             listeners.deliverError(t);
@@ -111,43 +153,64 @@ public class PendingRequests {
 
     private PendingListeners removeRequest(LoaderRequest request) {
         PendingListeners listeners = pendingRequests.remove(request);
-        if (listeners == null) {
+        if (listeners == null || !listeners.finish()) {
             if (Logger.VERBOSE) Log.v(TAG, "Request no longer pending: " + request);
-        } else {
-            pendingTags.keySet().removeAll(listeners.getTags());
+            return null;
+        }
+
+        List<Object> tags = listeners.getTags();
+        synchronized (pendingTags) {
+            for (Object tag : tags) {
+                // The tag might have been reused for another request already
+                if (pendingTags.get(tag) == listeners) {
+                    pendingTags.remove(tag);
+                }
+            }
         }
 
         return listeners;
     }
 
     private void cancelPotentialWork(Object tag) {
-        PendingListeners listeners = pendingTags.remove(tag);
+        PendingListeners listeners;
+        synchronized (pendingTags) {
+            listeners = pendingTags.remove(tag);
+        }
+
         if (listeners == null) {
             return;
         }
 
-        listeners.remove(tag);
-        if (listeners.isEmpty()) {
-            LoaderRequest request = listeners.getRequest();
-            pendingRequests.remove(request);
+        if (listeners.removeAndFinishIfEmpty(tag)) {
+            pendingRequests.remove(listeners.getRequest(), listeners);
             listeners.cancel();
         }
     }
 
     private void saveToMemoryCache(LoaderRequest request, Bitmap b, Metadata metadata) {
-        if (memoryCache != null) {
+        if (memoryCache != null && b != null) {
             memoryCache.put(request, b, metadata);
         }
     }
 
     private boolean stillPending(Object tag, LoaderRequest request) {
-        PendingListeners listeners = pendingTags.get(tag);
+        PendingListeners listeners;
+        synchronized (pendingTags) {
+            listeners = pendingTags.get(tag);
+        }
 
-        return listeners != null && request.equals(listeners.getRequest());
-     }
+        if (listeners != null && request.equals(listeners.getRequest())) {
+            // The same request was made again, it is likely visible again
+            listeners.prioritize(request.getPriority());
+            return true;
+        }
+
+        return false;
+    }
 
     private class RequestListener implements Loader.Listener {
         private LoaderRequest request;
+        private LoaderWork work;
 
         public RequestListener(LoaderRequest request) {
             this.request = request;
@@ -155,16 +218,21 @@ public class PendingRequests {
 
         @Override
         public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+            if (request.hasFlag(Request.Flag.DISK_ONLY)) {
+                // It's on disk, which is all we wanted
+                deliverResult(request, null, metadata);
+                return;
+            }
+
             try {
-                InputStream is = input.getInput();
-                
-                try {
-                    Bitmap b = BitmapUtils.decodeStream(is);
-                    
-                    onBitmapLoaded(b, metadata);
-                } finally {
-                    is.close();
-                }
+                long start = System.nanoTime();
+
+                BitmapPool bitmapPool = memoryCache != null ? memoryCache.getBitmapPool() : null;
+                Bitmap b = BitmapUtils.decodeStream(input, new BitmapFactory.Options(), bitmapPool);
+
+                work.recordTiming(request, TimingListener.Stage.DECODE, start);
+
+                onBitmapLoaded(b, metadata);
             } catch (IOException e) {
                 onError(e);
             }
@@ -172,27 +240,49 @@ public class PendingRequests {
 
         @Override
         public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            if (request.hasFlag(Request.Flag.DISK_ONLY)) {
+                b = null;
+            }
+
+            if (negativeCache != null) {
+                negativeCache.remove(request);
+            }
+
             deliverResult(request, b, metadata);
         }
 
         @Override
         public void onNotModified(Metadata metadata) {
             // Nothing changed, we don't need to notify any listeners
-            memoryCache.updateMetadata(request, metadata);
+            if (memoryCache != null) {
+                memoryCache.updateMetadata(request, metadata);
+            }
         }
 
         @Override
         public void onError(Throwable t) {
+            // Remembered even if nobody is waiting anymore, the next
+            // attempt is likely to fail too
+            if (negativeCache != null) {
+                negativeCache.put(request, t);
+            }
+
             deliverError(request, t);
         }
     }
 
+    /**
+     * Listeners waiting for a single request. All access is synchronized on
+     * the instance, once it is finished no more listeners can be added.
+     */
     private static class PendingListeners {
         private LoaderRequest request;
         private Map<Object, LoaderManager.Listener> listeners;
         private List<LoaderManager.Listener> extraListeners;
         private LoaderWork work;
 
+        private boolean finished = false;
+
         public PendingListeners(LoaderRequest request, Object tag, LoaderManager.Listener listener, LoaderWork work) {
             this.request = request;
             this.work = work;
@@ -205,64 +295,116 @@ public class PendingRequests {
             add(tag, listener);
         }
 
-        public void add(Object tag, LoaderManager.Listener listener) {
+        /**
+         * Add a listener to this request
+         *
+         * @return false if the request has already finished
+         */
+        public synchronized boolean add(Object tag, LoaderManager.Listener listener) {
+            if (finished) {
+                return false;
+            }
+
             if (tag == null) {
                 extraListeners.add(listener);
             } else {
                 listeners.put(tag, listener);
             }
+
+            return true;
         }
 
-        public void remove(Object tag) {
+        /**
+         * Remove the listener for this tag, finishing the request if there
+         * are no listeners left.
+         *
+         * @return true if this request should be cancelled
+         */
+        public synchronized boolean removeAndFinishIfEmpty(Object tag) {
             listeners.remove(tag);
+
+            if (!finished && listeners.isEmpty() && extraListeners.isEmpty()) {
+                finished = true;
+                return true;
+            }
+
+            return false;
         }
 
-        public boolean isEmpty() {
-            return listeners.isEmpty() && extraListeners.isEmpty();
+        /**
+         * Map the tag to this request unless it has already finished, as
+         * the mapping would never be removed then. Holding the lock keeps
+         * the request from finishing in between, the tags are removed after
+         * finishing.
+         */
+        public synchronized void putTag(Object tag, Map<Object, PendingListeners> pendingTags) {
+            if (finished) {
+                return;
+            }
+
+            synchronized (pendingTags) {
+                pendingTags.put(tag, this);
+            }
+        }
+
+        /**
+         * Mark this request as finished, no more listeners can be added
+         *
+         * @return false if it was already finished
+         */
+        public synchronized boolean finish() {
+            if (finished) {
+                return false;
+            }
+
+            finished = true;
+            return true;
         }
 
         public void cancel() {
             work.cancel();
         }
 
+        public void prioritize(int priority) {
+            work.prioritize(priority);
+        }
+
         public LoaderRequest getRequest() {
             return request;
         }
 
-        public Set<Object> getTags() {
-            return listeners.keySet();
+        public synchronized List<Object> getTags() {
+            return new ArrayList<Object>(listeners.keySet());
         }
 
         public void publishProgress(float value) {
-            for (LoaderManager.Listener listener : listeners.values()) {
-                listener.onProgress(value);
-            }
-
-            for (LoaderManager.Listener listener : extraListeners) {
+            for (LoaderManager.Listener listener : getListeners()) {
                 listener.onProgress(value);
             }
         }
 
         public void deliverResult(Bitmap b) {
-            for (LoaderManager.Listener listener : listeners.values()) {
-                listener.onLoaded(b);
-            }
-
-            for (LoaderManager.Listener listener : extraListeners) {
+            for (LoaderManager.Listener listener : getListeners()) {
                 listener.onLoaded(b);
             }
         }
 
         public void deliverError(Throwable t) {
-            for (LoaderManager.Listener listener : listeners.values()) {
-                listener.onError(t);
-            }
-
-            for (LoaderManager.Listener listener : extraListeners) {
+            for (LoaderManager.Listener listener : getListeners()) {
                 listener.onError(t);
             }
         }
 
+        /**
+         * Take a snapshot of the current listeners so that they can be
+         * called without holding the lock
+         */
+        private synchronized List<LoaderManager.Listener> getListeners() {
+            List<LoaderManager.Listener> all = new ArrayList<LoaderManager.Listener>(listeners.size() + extraListeners.size());
+            all.addAll(listeners.values());
+            all.addAll(extraListeners);
 
+            return all;
+        }
     }
 }
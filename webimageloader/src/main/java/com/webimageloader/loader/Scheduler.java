@@ -0,0 +1,162 @@
+package com.webimageloader.loader;
+
+import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.webimageloader.util.PriorityThreadFactory;
+
+/**
+ * Decides in which order queued work is run by the disk and network threads.
+ * Implementations supply the queue used by each thread pool, every item in
+ * it is a {@link Task}.
+ */
+public abstract class Scheduler {
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * Run work in the order it was requested, regardless of priority
+     */
+    public static final Scheduler FIFO = new Scheduler() {
+        @Override
+        public BlockingQueue<Runnable> createQueue() {
+            return new LinkedBlockingQueue<Runnable>();
+        }
+    };
+
+    /**
+     * Run work with higher priority first, work with the same priority is run
+     * in the order it was first requested
+     */
+    public static final Scheduler PRIORITY = new PriorityScheduler(false);
+
+    /**
+     * Run work with higher priority first, work with the same priority that
+     * was requested most recently is run first. This is usually what you want
+     * when loading images for a list, the rows currently on screen are the
+     * ones requested last.
+     */
+    public static final Scheduler PRIORITY_LIFO = new PriorityScheduler(true);
+
+    /**
+     * Create the queue for a new thread pool
+     *
+     * @return a queue of {@link Task}s
+     */
+    public abstract BlockingQueue<Runnable> createQueue();
+
+    ThreadPoolExecutor createExecutor(String name, int threadPriority, int threadCount) {
+        return new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+                createQueue(), new PriorityThreadFactory(name, threadPriority));
+    }
+
+    /**
+     * A piece of queued work. Its priority and ordering are fixed while it is
+     * queued, it is taken out and put back in the queue when they change.
+     */
+    public static class Task extends FutureTask<Void> {
+        private ThreadPoolExecutor executor;
+        private LoaderWork.Manager manager;
+
+        private int priority;
+        private long created;
+        private long requested;
+
+        Task(ThreadPoolExecutor executor, LoaderWork.Manager manager, Runnable runnable) {
+            super(runnable, null);
+
+            this.executor = executor;
+            this.manager = manager;
+
+            update();
+        }
+
+        /**
+         * Get the priority of this task, higher is more important
+         */
+        public int getPriority() {
+            return priority;
+        }
+
+        /**
+         * Get a sequence number telling when the work was first requested
+         */
+        public long getCreated() {
+            return created;
+        }
+
+        /**
+         * Get a sequence number telling when the work was last requested
+         */
+        public long getRequested() {
+            return requested;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            // Don't let it take up space in the queue
+            executor.remove(this);
+
+            return cancelled;
+        }
+
+        void schedule() {
+            executor.execute(this);
+        }
+
+        /**
+         * Move this task to its new place in the queue, if it is still queued
+         */
+        void reschedule() {
+            if (executor.remove(this)) {
+                update();
+                executor.execute(this);
+            }
+        }
+
+        private void update() {
+            priority = manager.getPriority();
+            created = manager.getCreated();
+            requested = manager.getRequested();
+        }
+    }
+
+    private static class PriorityScheduler extends Scheduler {
+        private final Comparator<Runnable> comparator;
+
+        public PriorityScheduler(final boolean lifo) {
+            comparator = new Comparator<Runnable>() {
+                @Override
+                public int compare(Runnable lhs, Runnable rhs) {
+                    Task t1 = (Task) lhs;
+                    Task t2 = (Task) rhs;
+
+                    if (t1.getPriority() != t2.getPriority()) {
+                        return t1.getPriority() > t2.getPriority() ? -1 : 1;
+                    }
+
+                    if (lifo) {
+                        return compare(t2.getRequested(), t1.getRequested());
+                    } else {
+                        return compare(t1.getCreated(), t2.getCreated());
+                    }
+                }
+
+                private int compare(long lhs, long rhs) {
+                    return lhs < rhs ? -1 : (lhs == rhs ? 0 : 1);
+                }
+            };
+        }
+
+        @Override
+        public BlockingQueue<Runnable> createQueue() {
+            return new PriorityBlockingQueue<Runnable>(INITIAL_CAPACITY, comparator);
+        }
+    }
+}
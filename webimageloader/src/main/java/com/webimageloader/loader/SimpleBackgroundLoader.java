@@ -1,16 +1,11 @@
 package com.webimageloader.loader;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-
-import com.webimageloader.util.PriorityThreadFactory;
-
 public abstract class SimpleBackgroundLoader extends BackgroundLoader {
     public SimpleBackgroundLoader(String name, int priority, int threadCount) {
-        super(createExecutor(name, priority, threadCount));
+        this(name, priority, threadCount, Scheduler.PRIORITY);
     }
 
-    private static ExecutorService createExecutor(String name, int priority, int threadCount) {
-        return Executors.newFixedThreadPool(threadCount, new PriorityThreadFactory(name, priority));
+    public SimpleBackgroundLoader(String name, int priority, int threadCount, Scheduler scheduler) {
+        super(scheduler.createExecutor(name, priority, threadCount));
     }
 }
@@ -0,0 +1,179 @@
+package com.webimageloader.loader;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link TimingListener} keeping a latency histogram for every stage and
+ * source. Recording is lock free, buckets are powers of two of nanoseconds
+ * so percentiles are accurate to within a factor of two.
+ */
+public class TimingHistograms implements TimingListener {
+    private static final int BUCKETS = 64;
+
+    /** One slot per source plus one for unknown sources */
+    private static final int SOURCES = Source.values().length + 1;
+
+    private final Recorder[] recorders;
+
+    public TimingHistograms() {
+        recorders = new Recorder[Stage.values().length * SOURCES];
+        for (int i = 0; i < recorders.length; i++) {
+            recorders[i] = new Recorder();
+        }
+    }
+
+    @Override
+    public void onTiming(LoaderRequest request, Stage stage, Source source, long nanos) {
+        recorders[index(stage, source)].record(nanos);
+    }
+
+    /**
+     * Get a snapshot of the timings recorded for a stage
+     *
+     * @param stage the stage
+     * @param source the source, null for timings without a known source
+     * @return the histogram
+     */
+    public Histogram getHistogram(Stage stage, Source source) {
+        return recorders[index(stage, source)].snapshot();
+    }
+
+    /**
+     * Get a snapshot of the timings recorded for a stage, from all sources
+     *
+     * @param stage the stage
+     * @return the histogram
+     */
+    public Histogram getHistogram(Stage stage) {
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        long total = 0;
+
+        for (int i = 0; i < SOURCES; i++) {
+            Histogram h = recorders[stage.ordinal() * SOURCES + i].snapshot();
+            for (int j = 0; j < BUCKETS; j++) {
+                buckets[j] += h.buckets[j];
+            }
+
+            count += h.count;
+            total += h.totalNanos;
+        }
+
+        return new Histogram(buckets, count, total);
+    }
+
+    /**
+     * Clear all recorded timings
+     */
+    public void reset() {
+        for (Recorder recorder : recorders) {
+            recorder.reset();
+        }
+    }
+
+    private static int index(Stage stage, Source source) {
+        int s = source == null ? SOURCES - 1 : source.ordinal();
+
+        return stage.ordinal() * SOURCES + s;
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos <= 0) {
+            return 0;
+        }
+
+        return BUCKETS - Long.numberOfLeadingZeros(nanos);
+    }
+
+    /**
+     * Immutable snapshot of a histogram
+     */
+    public static class Histogram {
+        private final long[] buckets;
+
+        public final long count;
+        public final long totalNanos;
+
+        private Histogram(long[] buckets, long count, long totalNanos) {
+            this.buckets = buckets;
+            this.count = count;
+            this.totalNanos = totalNanos;
+        }
+
+        /**
+         * @return the mean in nanoseconds, 0 if nothing was recorded
+         */
+        public long getMeanNanos() {
+            return count == 0 ? 0 : totalNanos / count;
+        }
+
+        /**
+         * Estimate a percentile, the result is the upper bound of the bucket
+         * the percentile falls in
+         *
+         * @param percentile between 0 and 100
+         * @return the percentile in nanoseconds, 0 if nothing was recorded
+         */
+        public long getPercentileNanos(double percentile) {
+            long total = 0;
+            for (long b : buckets) {
+                total += b;
+            }
+
+            if (total == 0) {
+                return 0;
+            }
+
+            long rank = (long) Math.ceil(total * Math.max(0, Math.min(100, percentile)) / 100);
+            rank = Math.max(1, rank);
+
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + getMeanNanos()
+                    + "ns, p50=" + getPercentileNanos(50)
+                    + "ns, p90=" + getPercentileNanos(90)
+                    + "ns, p99=" + getPercentileNanos(99) + "ns";
+        }
+    }
+
+    private static class Recorder {
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        // Index 0 is the count and 1 the total
+        private final AtomicLongArray sums = new AtomicLongArray(2);
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(bucket(nanos));
+            sums.incrementAndGet(0);
+            sums.addAndGet(1, Math.max(0, nanos));
+        }
+
+        public Histogram snapshot() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = buckets.get(i);
+            }
+
+            return new Histogram(copy, sums.get(0), sums.get(1));
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets.set(i, 0);
+            }
+
+            sums.set(0, 0);
+            sums.set(1, 0);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.webimageloader.loader;
+
+/**
+ * Receives how long each stage of loading an image took. Register one with
+ * {@link com.webimageloader.ImageLoader.Builder#setTimingListener(TimingListener)},
+ * {@link TimingHistograms} is an implementation which keeps latency histograms.
+ * <p>
+ * Events are sent from the thread that did the work, often several at once,
+ * so implementations have to be thread safe and fast.
+ */
+public interface TimingListener {
+    /**
+     * A stage of loading an image
+     */
+    enum Stage {
+        /**
+         * Time spent waiting in the queue of a disk or network thread
+         */
+        QUEUE_WAIT,
+        /**
+         * Looking up an image in the disk cache and reading its metadata
+         */
+        DISK_READ,
+        /**
+         * From opening a connection until the response headers are received
+         */
+        NETWORK_TTFB,
+        /**
+         * Downloading the response body into the disk cache. Without a disk
+         * cache the body is downloaded while decoding.
+         */
+        DOWNLOAD,
+        /**
+         * Decoding a stream into a bitmap
+         */
+        DECODE,
+        /**
+         * Applying a transformation, including decoding when the
+         * transformation is given a stream
+         */
+        TRANSFORM,
+        /**
+         * Writing a transformed bitmap or updated metadata to the disk cache
+         */
+        DISK_WRITE,
+        /**
+         * From posting the result to the main thread until the listener
+         * has been called
+         */
+        DELIVERY
+    }
+
+    /**
+     * Where the image being worked on came from
+     */
+    enum Source {
+        MEMORY,
+        DISK,
+        NETWORK
+    }
+
+    /**
+     * Called when a stage has finished
+     *
+     * @param request the request, for transformed images this might be the
+     *                request for the original image
+     * @param stage the stage
+     * @param source where the image came from, null if not known, which is
+     *               the case for {@link Stage#DELIVERY}
+     * @param nanos how long the stage took in nanoseconds
+     */
+    void onTiming(LoaderRequest request, Stage stage, Source source, long nanos);
+}
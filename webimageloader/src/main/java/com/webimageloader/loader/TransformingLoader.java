@@ -1,63 +1,89 @@
 package com.webimageloader.loader;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import com.webimageloader.ImageLoader;
 import com.webimageloader.ImageLoader.Logger;
+import com.webimageloader.Request;
 import com.webimageloader.transformation.Transformation;
+import com.webimageloader.util.BitmapPool;
 import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
+import com.webimageloader.util.PooledInputSupplier;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.FutureTask;
 
+/**
+ * Applies the transformation of a request to its original image.
+ * <p>
+ * The original image is loaded through a separate source chain. Concurrent
+ * requests for the same URL with different transformations share this load,
+ * so the image is only fetched and decoded once and only the transformation
+ * is done per request. Requests with different flags load the original
+ * through different caches, so they don't share it. The shared load is cancelled once every request
+ * waiting for it has been cancelled.
+ */
 public class TransformingLoader implements Loader {
     private static final String TAG = "TransformingLoader";
 
+    private BitmapPool bitmapPool;
+    private List<Loader> sourceChain;
+    private TimingListener timingListener;
+
+    private ConcurrentHashMap<SourceKey, SharedSource> pendingSources;
+
+    /**
+     * @param bitmapPool pool to reuse bitmaps from when decoding, can be null
+     * @param sourceChain loaders used to load the original image
+     * @param timingListener listener for timings of the original image, can be null
+     */
+    public TransformingLoader(BitmapPool bitmapPool, List<Loader> sourceChain, TimingListener timingListener) {
+        this.bitmapPool = bitmapPool;
+        this.sourceChain = sourceChain;
+        this.timingListener = timingListener;
+
+        pendingSources = new ConcurrentHashMap<SourceKey, SharedSource>();
+    }
+
     @Override
-    public void load(final LoaderWork.Manager manager, LoaderRequest request) {
+    public void load(LoaderWork.Manager manager, LoaderRequest request) {
         if (Logger.VERBOSE) Log.v(TAG, "Transforming " + request);
 
-        final Transformation transformation = request.getTransformation();
+        Waiter waiter = new Waiter(manager, request);
+        LoaderRequest source = request.withoutTransformation();
+        SourceKey key = new SourceKey(source);
 
-        // Modify request
-        LoaderRequest modified = request.withoutTransformation();
-        manager.next(modified, new Listener() {
-            @Override
-            public void onStreamLoaded(InputSupplier input, Metadata metadata) {
-                try {
-                    Bitmap transformedBitmap = transformation.transform(input);
-                    Metadata transformedMetadata = getTransformedMetadata(metadata, transformation);
+        while (true) {
+            SharedSource shared = pendingSources.get(key);
 
-                    deliverResult(transformedBitmap, transformedMetadata);
-                } catch (IOException e) {
-                    manager.deliverError(e);
+            if (shared == null) {
+                shared = new SharedSource(key, source, waiter);
+                if (pendingSources.putIfAbsent(key, shared) != null) {
+                    // Somebody else started loading the original, join them
+                    continue;
                 }
-            }
-
-            @Override
-            public void onBitmapLoaded(Bitmap b, Metadata metadata) {
-                b = transformation.transform(b);
-                deliverResult(b, metadata);
-            }
 
-            private void deliverResult(Bitmap b, Metadata metadata) {
-                if (b == null) {
-                    onError(new IllegalStateException("Transformer returned null"));
-                } else {
-                    manager.deliverBitmap(b, metadata);
-                }
-            }
+                waiter.attach(shared);
+                shared.start();
+            } else if (shared.add(waiter)) {
+                if (Logger.VERBOSE) Log.v(TAG, "Sharing original of " + request);
 
-            @Override
-            public void onNotModified(Metadata metadata) {
-                manager.deliverNotMotified(metadata);
+                waiter.attach(shared);
+            } else {
+                // Already delivered or cancelled, start a new one
+                pendingSources.remove(key, shared);
+                continue;
             }
 
-            @Override
-            public void onError(Throwable t) {
-                manager.deliverError(t);
-            }
-        });
+            return;
+        }
     }
 
     private Metadata getTransformedMetadata(Metadata metadata, Transformation transformation) {
@@ -68,6 +94,258 @@ public class TransformingLoader implements Loader {
         }
 
         String contentType = BitmapUtils.getContentType(format);
-        return new Metadata(contentType, metadata.getLastModified(), metadata.getExpires(), metadata.getEtag());
+        return metadata.withContentType(contentType);
+    }
+
+    /**
+     * Identifies a shared original, the URL together with the flags
+     */
+    private static final class SourceKey {
+        private final CacheKey key;
+        private final EnumSet<Request.Flag> flags;
+
+        public SourceKey(LoaderRequest request) {
+            key = request.getKey();
+            flags = request.getFlags();
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+
+            if (obj instanceof SourceKey) {
+                SourceKey other = (SourceKey) obj;
+                return key.equals(other.key) && flags.equals(other.flags);
+            } else {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Load of an original image, shared by all requests with the same URL
+     * and flags. All access to the waiters is synchronized on the instance.
+     */
+    private class SharedSource implements Loader.Listener, ImageLoader.ProgressListener {
+        private SourceKey key;
+        private LoaderRequest request;
+        private LoaderWork work;
+
+        private List<Waiter> waiters;
+        private boolean finished = false;
+
+        public SharedSource(SourceKey key, LoaderRequest request, Waiter waiter) {
+            this.key = key;
+            this.request = request;
+
+            waiters = new ArrayList<Waiter>(2);
+            waiters.add(waiter);
+
+            work = new LoaderWork(this, this, waiter.manager.getPriority(), timingListener);
+        }
+
+        public void start() {
+            work.start(sourceChain, request);
+        }
+
+        /**
+         * @return false if the original has already been delivered
+         */
+        public boolean add(Waiter waiter) {
+            synchronized (this) {
+                if (finished) {
+                    return false;
+                }
+
+                waiters.add(waiter);
+            }
+
+            work.prioritize(waiter.manager.getPriority());
+
+            return true;
+        }
+
+        public void remove(Waiter waiter) {
+            synchronized (this) {
+                if (!waiters.remove(waiter) || !waiters.isEmpty() || finished) {
+                    return;
+                }
+
+                finished = true;
+            }
+
+            if (Logger.VERBOSE) Log.v(TAG, "Nobody waiting for " + request + ", cancelling");
+
+            pendingSources.remove(key, this);
+            work.cancel();
+        }
+
+        /**
+         * Stop accepting waiters
+         *
+         * @return the waiters to deliver to
+         */
+        private List<Waiter> finish() {
+            pendingSources.remove(key, this);
+
+            synchronized (this) {
+                finished = true;
+
+                return new ArrayList<Waiter>(waiters);
+            }
+        }
+
+        @Override
+        public void onProgress(float value) {
+            List<Waiter> current;
+            synchronized (this) {
+                current = new ArrayList<Waiter>(waiters);
+            }
+
+            for (Waiter waiter : current) {
+                waiter.manager.publishProgress(value);
+            }
+        }
+
+        @Override
+        public void onStreamLoaded(InputSupplier input, Metadata metadata) {
+            List<Waiter> current = finish();
+
+            if (current.size() == 1) {
+                // Let the transformation decode it, it might only need part of the image
+                current.get(0).transform(input, metadata);
+                return;
+            }
+
+            if (current.isEmpty()) {
+                return;
+            }
+
+            Bitmap b;
+            try {
+                long start = System.nanoTime();
+                b = BitmapUtils.decodeStream(input, new BitmapFactory.Options(), bitmapPool);
+                work.recordTiming(request, TimingListener.Stage.DECODE, start);
+            } catch (IOException e) {
+                deliverError(current, e);
+                return;
+            }
+
+            for (Waiter waiter : current) {
+                waiter.transform(b, metadata);
+            }
+        }
+
+        @Override
+        public void onBitmapLoaded(Bitmap b, Metadata metadata) {
+            for (Waiter waiter : finish()) {
+                waiter.transform(b, metadata);
+            }
+        }
+
+        @Override
+        public void onNotModified(Metadata metadata) {
+            for (Waiter waiter : finish()) {
+                waiter.manager.deliverNotMotified(metadata);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            deliverError(finish(), t);
+        }
+
+        private void deliverError(List<Waiter> current, Throwable t) {
+            for (Waiter waiter : current) {
+                waiter.manager.deliverError(t);
+            }
+        }
+    }
+
+    /**
+     * A request waiting for its original image. Registered as a future of
+     * the request so that cancelling it also leaves the shared load.
+     */
+    private class Waiter extends FutureTask<Void> {
+        private LoaderWork.Manager manager;
+        private LoaderRequest request;
+
+        private volatile SharedSource source;
+
+        public Waiter(LoaderWork.Manager manager, LoaderRequest request) {
+            super(new Runnable() {
+                @Override
+                public void run() {}
+            }, null);
+
+            this.manager = manager;
+            this.request = request;
+        }
+
+        public void attach(SharedSource source) {
+            this.source = source;
+
+            manager.addFuture(this);
+
+            // Might have been cancelled before the future was added
+            if (manager.isCancelled()) {
+                cancel(false);
+            }
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+
+            SharedSource s = source;
+            if (s != null) {
+                s.remove(this);
+            }
+
+            return cancelled;
+        }
+
+        public void transform(InputSupplier input, Metadata metadata) {
+            Transformation transformation = request.getTransformation();
+
+            if (bitmapPool != null) {
+                input = new PooledInputSupplier(input, bitmapPool);
+            }
+
+            try {
+                long start = System.nanoTime();
+                Bitmap transformedBitmap = transformation.transform(input);
+                manager.recordTiming(request, TimingListener.Stage.TRANSFORM, start);
+
+                deliverResult(transformedBitmap, getTransformedMetadata(metadata, transformation));
+            } catch (IOException e) {
+                manager.deliverError(e);
+            }
+        }
+
+        public void transform(Bitmap b, Metadata metadata) {
+            Transformation transformation = request.getTransformation();
+
+            long start = System.nanoTime();
+            Bitmap transformedBitmap = transformation.transform(b);
+            manager.recordTiming(request, TimingListener.Stage.TRANSFORM, start);
+
+            deliverResult(transformedBitmap, getTransformedMetadata(metadata, transformation));
+        }
+
+        private void deliverResult(Bitmap b, Metadata metadata) {
+            if (b == null) {
+                manager.deliverError(new IllegalStateException("Transformer returned null"));
+            } else {
+                manager.deliverBitmap(b, metadata);
+            }
+        }
     }
-}
\ No newline at end of file
+}
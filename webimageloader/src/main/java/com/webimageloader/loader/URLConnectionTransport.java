@@ -0,0 +1,174 @@
+package com.webimageloader.loader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Map;
+
+import com.webimageloader.ConnectionFactory;
+import com.webimageloader.ConnectionHandler;
+import com.webimageloader.Transport;
+import com.webimageloader.util.Android;
+import com.webimageloader.util.IOUtil;
+
+/**
+ * Default transport using {@link URLConnection}, also used for URLs which
+ * aren't http(s) such as resources and content URIs. The connection pool of
+ * the platform can't be inspected, so there are no pool gauges.
+ */
+class URLConnectionTransport implements Transport {
+    private ConnectionFactory connectionFactory;
+    private ConnectionHandler connectionHandler;
+    private int connectionTimeout;
+    private int readTimeout;
+
+    public URLConnectionTransport(ConnectionFactory connectionFactory, ConnectionHandler connectionHandler, int connectionTimeout, int readTimeout) {
+        this.connectionFactory = connectionFactory;
+        this.connectionHandler = connectionHandler;
+        this.connectionTimeout = connectionTimeout;
+        this.readTimeout = readTimeout;
+    }
+
+    @Override
+    public Response execute(URL url, Map<String, String> headers) throws IOException {
+        URLConnection urlConnection = openConnection(url);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            urlConnection.addRequestProperty(header.getKey(), header.getValue());
+        }
+
+        // Wait for the headers like any other transport
+        urlConnection.connect();
+
+        return new URLConnectionResponse(urlConnection);
+    }
+
+    @Override
+    public int getConnectionCount() {
+        return -1;
+    }
+
+    @Override
+    public int getIdleConnectionCount() {
+        return -1;
+    }
+
+    private URLConnection openConnection(URL url) throws IOException {
+        disableConnectionReuseIfNecessary();
+
+        final URLConnection urlConnection;
+        if (connectionFactory != null && NetworkLoader.isHttp(url.getProtocol())) {
+            // For http(s) URLs, give the user a chance to set their own connection implementation
+            urlConnection = connectionFactory.openConnection(url);
+        } else {
+            urlConnection = url.openConnection();
+        }
+
+        if (connectionTimeout > 0) {
+            urlConnection.setConnectTimeout(connectionTimeout);
+        }
+
+        if (readTimeout > 0) {
+            urlConnection.setReadTimeout(readTimeout);
+        }
+
+        if (connectionHandler != null && urlConnection instanceof HttpURLConnection) {
+            // Only let the connection handler handle http requests
+            connectionHandler.handleConnection((HttpURLConnection) urlConnection);
+        }
+
+        return urlConnection;
+    }
+
+    /**
+     * Workaround for bug pre-Froyo, see here for more info:
+     * http://android-developers.blogspot.com/2011/09/androids-http-clients.html
+     */
+    private static void disableConnectionReuseIfNecessary() {
+        // HTTP connection reuse which was buggy pre-froyo
+        if (!Android.isAPI(8)) {
+            System.setProperty("http.keepAlive", "false");
+        }
+    }
+
+    private static class URLConnectionResponse implements Response {
+        private URLConnection urlConnection;
+        private InputStream body;
+
+        public URLConnectionResponse(URLConnection urlConnection) {
+            this.urlConnection = urlConnection;
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            // We can't assume we have a HttpUrlConnection as resources uses a custom subclass
+            if (urlConnection instanceof HttpURLConnection) {
+                return ((HttpURLConnection) urlConnection).getResponseCode();
+            } else {
+                return -1;
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return urlConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getDateHeader(String name) {
+            return urlConnection.getHeaderFieldDate(name, 0);
+        }
+
+        @Override
+        public long getContentLength() {
+            // XXX: This returns a int which could be too small
+            return urlConnection.getContentLength();
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            body = urlConnection.getInputStream();
+
+            return body;
+        }
+
+        @Override
+        public void abort() {
+            if (urlConnection instanceof HttpURLConnection) {
+                // Don't let the connection be reused with a half read body
+                ((HttpURLConnection) urlConnection).disconnect();
+                return;
+            }
+
+            // Content and file connections can't be disconnected, but the
+            // stream opened when connecting holds a file descriptor
+            if (body == null) {
+                try {
+                    body = urlConnection.getInputStream();
+                } catch (IOException e) {
+                    // Nothing was opened
+                    return;
+                }
+            }
+
+            IOUtil.closeQuietly(body);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body == null) {
+                if (getStatusCode() > 0 && getStatusCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    // The body was never read, don't let the connection be reused
+                    abort();
+                    return;
+                }
+
+                // Nothing to read, the connection can go back to the pool
+                body = urlConnection.getInputStream();
+            }
+
+            body.close();
+        }
+    }
+}
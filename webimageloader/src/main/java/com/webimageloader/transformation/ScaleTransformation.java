@@ -1,11 +1,10 @@
 package com.webimageloader.transformation;
 
 import java.io.IOException;
-import java.io.InputStream;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 
+import com.webimageloader.util.BitmapUtils;
 import com.webimageloader.util.InputSupplier;
 
 /**
@@ -48,44 +47,8 @@ public class ScaleTransformation extends SimpleTransformation {
     }
 
     private Bitmap decodeSampledBitmap(InputSupplier input) throws IOException {
-        // First decode with inJustDecodeBounds=true to check dimensions
-        final BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-
-        InputStream is = input.getInput();
-        try {
-            BitmapFactory.decodeStream(is, null, options);
-        } finally {
-            is.close();
-        }
-
-        // Calculate inSampleSize
-        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
-
-        // Decode bitmap with inSampleSize set
-        options.inJustDecodeBounds = false;
-
-        is = input.getInput();
-        try {
-            return BitmapFactory.decodeStream(is, null, options);
-        } finally {
-            is.close();
-        }
-    }
-
-    private static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
-        // Raw height and width of image
-        final int height = options.outHeight;
-        final int width = options.outWidth;
-        int inSampleSize = 1;
-
-        if (height > reqHeight || width > reqWidth) {
-            if (width > height) {
-                inSampleSize = Math.round((float) height / (float) reqHeight);
-            } else {
-                inSampleSize = Math.round((float) width / (float) reqWidth);
-            }
-        }
-        return inSampleSize;
+        // The dimensions are read from the start of the same stream, this way
+        // we avoid loading the image twice
+        return BitmapUtils.decodeSampledStream(input, reqWidth, reqHeight);
     }
 }
@@ -31,14 +31,8 @@ public abstract class SimpleTransformation implements Transformation {
      */
     @Override
     public Bitmap transform(InputSupplier input) throws IOException {
-        InputStream is = input.getInput();
+        Bitmap b = BitmapUtils.decodeStream(input);
 
-        try {
-            Bitmap b = BitmapUtils.decodeStream(is);
-
-            return transform(b);
-        } finally {
-            is.close();
-        }
+        return transform(b);
     }
 }
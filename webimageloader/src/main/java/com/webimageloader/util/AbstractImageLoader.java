@@ -1,11 +1,14 @@
 package com.webimageloader.util;
 
 import android.graphics.Bitmap;
+import com.webimageloader.Constants;
 import com.webimageloader.ImageLoader;
+import com.webimageloader.PreloadBatch;
 import com.webimageloader.Request;
 import com.webimageloader.transformation.Transformation;
 
 import java.io.IOException;
+import java.util.Collection;
 
 public abstract class AbstractImageLoader implements ImageLoader {
     @Override
@@ -28,6 +31,11 @@ public abstract class AbstractImageLoader implements ImageLoader {
         preload(new Request(url, transformation));
     }
 
+    @Override
+    public PreloadBatch preloadAll(Collection<Request> requests) {
+        return preloadAll(requests, Constants.DEFAULT_PRELOAD_IN_FLIGHT, null);
+    }
+
     @Override
     public <T> Bitmap load(T tag, String url, Listener<T> listener) {
         return load(tag, new Request(url), listener);
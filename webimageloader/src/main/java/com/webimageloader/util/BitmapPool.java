@@ -0,0 +1,279 @@
+package com.webimageloader.util;
+
+import java.lang.reflect.Method;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+/**
+ * A pool of bitmaps which are no longer in use, they can be reused when
+ * decoding new bitmaps through {@link BitmapFactory.Options#inBitmap} instead
+ * of allocating new memory.
+ * <p>
+ * Bitmaps are bucketed by their allocation size. Before KitKat a bitmap can
+ * only be reused for an image with the exact same dimensions which is decoded
+ * without sampling, after that any bitmap which is large enough will do.
+ * <p>
+ * Bitmaps put in this pool will be overwritten, so only bitmaps nobody holds
+ * on to any more should be put here.
+ */
+public class BitmapPool {
+    /** Don't reuse bitmaps much larger than what we need */
+    private static final int MAX_SIZE_MULTIPLE = 4;
+
+    public static class DebugInfo {
+        public final int hitCount;
+        public final int missCount;
+        public final int putCount;
+        public final int evictionCount;
+        public final int numBitmaps;
+        public final int size;
+        public final int maxSize;
+
+        private DebugInfo(int hitCount, int missCount, int putCount, int evictionCount, int numBitmaps, int size, int maxSize) {
+            this.hitCount = hitCount;
+            this.missCount = missCount;
+            this.putCount = putCount;
+            this.evictionCount = evictionCount;
+            this.numBitmaps = numBitmaps;
+            this.size = size;
+            this.maxSize = maxSize;
+        }
+    }
+
+    private final TreeMap<Integer, LinkedList<Bitmap>> buckets;
+    /** All pooled bitmaps, oldest first */
+    private final LinkedList<Bitmap> order;
+
+    private int size;
+    private int maxSize;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /**
+     * Check if bitmaps can be reused on this device
+     *
+     * @return true if {@link BitmapFactory.Options#inBitmap} is supported
+     */
+    public static boolean isSupported() {
+        return Android.isAPI(11);
+    }
+
+    /**
+     * @param maxSize the maximum number of bytes to keep in the pool
+     */
+    public BitmapPool(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        this.maxSize = maxSize;
+
+        buckets = new TreeMap<Integer, LinkedList<Bitmap>>();
+        order = new LinkedList<Bitmap>();
+    }
+
+    /**
+     * Offer a bitmap which is no longer used to the pool
+     *
+     * @param b the bitmap
+     * @return true if the bitmap was accepted
+     */
+    public synchronized boolean put(Bitmap b) {
+        if (!isSupported() || b.isRecycled() || !b.isMutable() || b.getConfig() != Bitmap.Config.ARGB_8888) {
+            return false;
+        }
+
+        int bytes = sizeOf(b);
+        if (bytes > maxSize / 2) {
+            // Would evict most of the pool
+            return false;
+        }
+
+        LinkedList<Bitmap> bucket = buckets.get(bytes);
+        if (bucket == null) {
+            bucket = new LinkedList<Bitmap>();
+            buckets.put(bytes, bucket);
+        }
+
+        bucket.addLast(b);
+        order.addLast(b);
+        size += bytes;
+        putCount++;
+
+        trimToSize(maxSize);
+
+        return true;
+    }
+
+    /**
+     * Get a bitmap which can be used as {@link BitmapFactory.Options#inBitmap}
+     * when decoding with these options. The options must contain the
+     * dimensions of the image, as set by decoding with
+     * {@link BitmapFactory.Options#inJustDecodeBounds}.
+     *
+     * @param options the options which will be used for decoding
+     * @return a bitmap or null if there was none suitable in the pool
+     */
+    public synchronized Bitmap get(BitmapFactory.Options options) {
+        Bitmap b = findBitmap(options);
+        if (b == null) {
+            missCount++;
+        } else {
+            hitCount++;
+        }
+
+        return b;
+    }
+
+    private Bitmap findBitmap(BitmapFactory.Options options) {
+        if (!isSupported() || options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        if (options.inPreferredConfig != null && options.inPreferredConfig != Bitmap.Config.ARGB_8888) {
+            return null;
+        }
+
+        int sampleSize = Math.max(1, options.inSampleSize);
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        int bytes = width * height * 4;
+
+        if (Android.isAPI(19)) {
+            Map.Entry<Integer, LinkedList<Bitmap>> entry = buckets.ceilingEntry(bytes);
+            while (entry != null && entry.getKey() <= bytes * MAX_SIZE_MULTIPLE) {
+                if (!entry.getValue().isEmpty()) {
+                    return remove(entry.getValue(), entry.getValue().getFirst());
+                }
+
+                entry = buckets.higherEntry(entry.getKey());
+            }
+        } else if (sampleSize == 1 && isReusableFormat(options.outMimeType)) {
+            // Older versions need the exact same dimensions
+            LinkedList<Bitmap> bucket = buckets.get(bytes);
+            if (bucket != null) {
+                for (Bitmap b : bucket) {
+                    if (b.getWidth() == width && b.getHeight() == height) {
+                        return remove(bucket, b);
+                    }
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Before KitKat only JPEG and PNG images can be decoded into an existing
+     * bitmap
+     *
+     * @param mimeType the type read from the header, null if unknown
+     */
+    private static boolean isReusableFormat(String mimeType) {
+        return mimeType == null || "image/jpeg".equals(mimeType) || "image/png".equals(mimeType);
+    }
+
+    private Bitmap remove(LinkedList<Bitmap> bucket, Bitmap b) {
+        bucket.remove(b);
+        order.remove(b);
+        size -= sizeOf(b);
+
+        if (bucket.isEmpty()) {
+            buckets.remove(sizeOf(b));
+        }
+
+        return b;
+    }
+
+    /**
+     * Drop the oldest bitmaps until the pool is at most this size
+     *
+     * @param maxSize the maximum size in bytes, -1 to empty the pool
+     */
+    public synchronized void trimToSize(int maxSize) {
+        Iterator<Bitmap> it = order.iterator();
+        while (size > maxSize && it.hasNext()) {
+            Bitmap b = it.next();
+            it.remove();
+
+            int bytes = sizeOf(b);
+            LinkedList<Bitmap> bucket = buckets.get(bytes);
+            bucket.remove(b);
+            if (bucket.isEmpty()) {
+                buckets.remove(bytes);
+            }
+
+            size -= bytes;
+            evictionCount++;
+        }
+    }
+
+    public void evictAll() {
+        trimToSize(-1);
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int maxSize() {
+        return maxSize;
+    }
+
+    public synchronized DebugInfo getDebugInfo() {
+        return new DebugInfo(hitCount, missCount, putCount, evictionCount, order.size(), size, maxSize);
+    }
+
+    private static int sizeOf(Bitmap b) {
+        if (Android.isAPI(19)) {
+            Integer size = getAllocationByteCount(b);
+            if (size != null) {
+                return size;
+            }
+        }
+
+        return b.getRowBytes() * b.getHeight();
+    }
+
+    /**
+     * Bitmap.getAllocationByteCount() is API 19, newer than the SDK we
+     * build against, so it's called through reflection
+     *
+     * @return the size or null if it couldn't be called
+     */
+    private static Integer getAllocationByteCount(Bitmap b) {
+        Method method = AllocationByteCount.METHOD;
+        if (method == null) {
+            return null;
+        }
+
+        try {
+            return (Integer) method.invoke(b);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Looked up the first time it is needed
+     */
+    private static class AllocationByteCount {
+        static final Method METHOD = find();
+
+        private static Method find() {
+            try {
+                return Bitmap.class.getMethod("getAllocationByteCount");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+}
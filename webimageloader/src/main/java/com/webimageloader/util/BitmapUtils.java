@@ -1,5 +1,7 @@
 package com.webimageloader.util;
 
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -10,6 +12,12 @@ import android.graphics.BitmapFactory;
 import com.webimageloader.Constants;
 
 public class BitmapUtils {
+    private static final int BUFFER_SIZE = 8192;
+    /** How much we allow reading bounds to consume before we have to reopen the stream */
+    private static final int MARK_LIMIT = 128 * 1024;
+    /** Headers can be preceded by large metadata, such as EXIF thumbnails */
+    private static final int HEADER_LIMIT = 64 * 1024;
+
     public static Bitmap.CompressFormat getCompressFormat(String contentType) {
         if ("image/png".equals(contentType)) {
             return Bitmap.CompressFormat.PNG;
@@ -45,5 +53,206 @@ public class BitmapUtils {
         return b;
     }
 
+    public static Bitmap decodeStream(InputStream is, BitmapFactory.Options options) throws IOException {
+        Bitmap b = BitmapFactory.decodeStream(is, null, options);
+        if (b == null) {
+            throw new IOException("Failed to create bitmap, decodeStream() returned null");
+        }
+
+        return b;
+    }
+
+    /**
+     * Decode a bitmap from this supplier. If it is a {@link PooledInputSupplier}
+     * a bitmap from its pool will be reused if possible.
+     *
+     * @param input the supplier to decode
+     * @return the bitmap
+     * @throws IOException if decoding failed
+     */
+    public static Bitmap decodeStream(InputSupplier input) throws IOException {
+        return decodeStream(input, new BitmapFactory.Options());
+    }
+
+    /**
+     * Decode a bitmap from this supplier using the given options. If it is a
+     * {@link PooledInputSupplier} a bitmap from its pool will be reused if possible.
+     *
+     * @param input the supplier to decode
+     * @param options the options, if the dimensions are already known they
+     *                should be set in {@link BitmapFactory.Options#outWidth}
+     *                and {@link BitmapFactory.Options#outHeight}
+     * @return the bitmap
+     * @throws IOException if decoding failed
+     */
+    public static Bitmap decodeStream(InputSupplier input, BitmapFactory.Options options) throws IOException {
+        BitmapPool pool = null;
+        if (input instanceof PooledInputSupplier) {
+            pool = ((PooledInputSupplier) input).getBitmapPool();
+        }
+
+        return decodeStream(input, options, pool);
+    }
+
+    /**
+     * Decode a bitmap from this supplier, reusing a bitmap from the pool if possible.
+     *
+     * @param input the supplier to decode
+     * @param options the options, if the dimensions are already known they
+     *                should be set in {@link BitmapFactory.Options#outWidth}
+     *                and {@link BitmapFactory.Options#outHeight}
+     * @param pool the pool to take bitmaps from, can be null
+     * @return the bitmap
+     * @throws IOException if decoding failed
+     */
+    public static Bitmap decodeStream(InputSupplier input, BitmapFactory.Options options, BitmapPool pool) throws IOException {
+        return decode(input, options, pool, 0, 0);
+    }
+
+    /**
+     * Decode a bitmap from this supplier using a sample size so that it is
+     * not much larger than the required size. The dimensions are read from
+     * the same stream that is decoded, so the supplier is normally only opened
+     * once. If it is a {@link PooledInputSupplier} a bitmap from its pool will
+     * be reused if possible.
+     *
+     * @param input the supplier to decode
+     * @param reqWidth required width, the image will not be smaller than this
+     * @param reqHeight required height, the image will not be smaller than this
+     * @return the bitmap
+     * @throws IOException if decoding failed
+     */
+    public static Bitmap decodeSampledStream(InputSupplier input, int reqWidth, int reqHeight) throws IOException {
+        BitmapPool pool = null;
+        if (input instanceof PooledInputSupplier) {
+            pool = ((PooledInputSupplier) input).getBitmapPool();
+        }
+
+        return decode(input, new BitmapFactory.Options(), pool, reqWidth, reqHeight);
+    }
+
+    @TargetApi(11)
+    private static Bitmap decode(InputSupplier input, BitmapFactory.Options options, BitmapPool pool, int reqWidth, int reqHeight) throws IOException {
+        boolean pooling = pool != null && BitmapPool.isSupported();
+        boolean sampling = reqWidth > 0 && reqHeight > 0;
+        boolean needsBounds = (pooling || sampling) && (options.outWidth <= 0 || options.outHeight <= 0);
+
+        InputStream is = input.getInput();
+        try {
+            if (needsBounds) {
+                is = new BufferedInputStream(is, BUFFER_SIZE);
+                if (!readBounds(is, options)) {
+                    // Reading the header went further than we buffered, we
+                    // have no choice but to open the stream again
+                    is.close();
+                    is = input.getInput();
+                }
+            }
+
+            if (sampling) {
+                options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+            }
+
+            if (pooling) {
+                // Bitmaps have to be mutable to be reused later on
+                options.inMutable = true;
+                options.inBitmap = pool.get(options);
+
+                if (options.inBitmap != null) {
+                    // Keep what the decoder reads, so that we can start over
+                    // without downloading the image again
+                    if (!is.markSupported()) {
+                        is = new BufferedInputStream(is, BUFFER_SIZE);
+                    }
+                    is.mark(MARK_LIMIT);
+
+                    try {
+                        return decodeStream(new UnmarkableInputStream(is), options);
+                    } catch (IllegalArgumentException e) {
+                        // The bitmap couldn't be reused after all, start over without it
+                        options.inBitmap = null;
+
+                        try {
+                            is.reset();
+                        } catch (IOException re) {
+                            // Read too far to rewind
+                            is.close();
+                            is = input.getInput();
+                        }
+                    }
+                }
+            }
+
+            return decodeStream(is, options);
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Read the dimensions of the image and rewind the stream
+     *
+     * @return false if the stream could not be rewound
+     */
+    private static boolean readBounds(InputStream is, BitmapFactory.Options options) throws IOException {
+        is.mark(MARK_LIMIT);
+
+        if (!ImageHeaderParser.readSize(is, options, HEADER_LIMIT)) {
+            // Unknown format, let BitmapFactory have a go at it. It might
+            // read further than we can rewind though.
+            is.reset();
+
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(is, null, options);
+            options.inJustDecodeBounds = false;
+        }
+
+        try {
+            is.reset();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        // Raw height and width of image
+        final int height = options.outHeight;
+        final int width = options.outWidth;
+        int inSampleSize = 1;
+
+        if (height > reqHeight || width > reqWidth) {
+            if (width > height) {
+                inSampleSize = Math.round((float) height / (float) reqHeight);
+            } else {
+                inSampleSize = Math.round((float) width / (float) reqWidth);
+            }
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * Hides mark support, so that the decoder can't move a mark we set.
+     * BitmapFactory buffers streams like this itself.
+     */
+    private static class UnmarkableInputStream extends FilterInputStream {
+        public UnmarkableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        @Override
+        public void mark(int readlimit) {}
+
+        @Override
+        public void reset() throws IOException {
+            throw new IOException("mark/reset not supported");
+        }
+    }
+
     private BitmapUtils() {}
 }
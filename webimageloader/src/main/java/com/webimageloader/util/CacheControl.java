@@ -0,0 +1,185 @@
+package com.webimageloader.util;
+
+import java.util.Locale;
+
+/**
+ * The directives of a Cache-Control header, see RFC 7234 and RFC 5861.
+ * Durations are in seconds, -1 if the directive is missing.
+ */
+public class CacheControl {
+    private static final CacheControl EMPTY = new CacheControl();
+
+    private long maxAge = -1;
+    private long sMaxAge = -1;
+    private long staleWhileRevalidate = -1;
+    private long staleIfError = -1;
+
+    private boolean noStore;
+    private boolean noCache;
+    private boolean mustRevalidate;
+    private boolean immutable;
+
+    /**
+     * Parse a Cache-Control header. Unknown directives and invalid values
+     * are ignored.
+     *
+     * @param header the header value, can be null
+     * @return the directives
+     */
+    public static CacheControl parse(String header) {
+        if (header == null) {
+            return EMPTY;
+        }
+
+        CacheControl cacheControl = new CacheControl();
+
+        int pos = 0;
+        int length = header.length();
+        while (pos < length) {
+            pos = skipWhitespace(header, pos);
+
+            int start = pos;
+            pos = skipUntil(header, pos, "=,");
+            String name = header.substring(start, pos).trim().toLowerCase(Locale.US);
+
+            String value = null;
+            if (pos < length && header.charAt(pos) == '=') {
+                pos = skipWhitespace(header, pos + 1);
+
+                if (pos < length && header.charAt(pos) == '"') {
+                    // Quoted value, such as a list of field names
+                    start = pos + 1;
+                    pos = skipUntil(header, start, "\"");
+                    value = header.substring(start, pos);
+                    pos = skipUntil(header, pos, ",");
+                } else {
+                    start = pos;
+                    pos = skipUntil(header, pos, ",");
+                    value = header.substring(start, pos).trim();
+                }
+            }
+
+            // Consume ','
+            pos++;
+
+            cacheControl.apply(name, value);
+        }
+
+        return cacheControl;
+    }
+
+    private CacheControl() {}
+
+    private void apply(String name, String value) {
+        if (name.equals("max-age")) {
+            maxAge = parseSeconds(value);
+        } else if (name.equals("s-maxage")) {
+            sMaxAge = parseSeconds(value);
+        } else if (name.equals("stale-while-revalidate")) {
+            staleWhileRevalidate = parseSeconds(value);
+        } else if (name.equals("stale-if-error")) {
+            staleIfError = parseSeconds(value);
+        } else if (name.equals("no-store")) {
+            noStore = true;
+        } else if (name.equals("no-cache")) {
+            // Only the listed headers need revalidation if there is a
+            // value, the image itself doesn't
+            if (value == null) {
+                noCache = true;
+            }
+        } else if (name.equals("must-revalidate") || name.equals("proxy-revalidate")) {
+            mustRevalidate = true;
+        } else if (name.equals("immutable")) {
+            immutable = true;
+        }
+    }
+
+    /**
+     * @return max-age or -1
+     */
+    public long getMaxAge() {
+        return maxAge;
+    }
+
+    /**
+     * Only meant for shared caches, a private cache like this one should
+     * ignore it
+     *
+     * @return s-maxage or -1
+     */
+    public long getSMaxAge() {
+        return sMaxAge;
+    }
+
+    /**
+     * @return stale-while-revalidate or -1
+     */
+    public long getStaleWhileRevalidate() {
+        return staleWhileRevalidate;
+    }
+
+    /**
+     * @return stale-if-error or -1
+     */
+    public long getStaleIfError() {
+        return staleIfError;
+    }
+
+    public boolean isNoStore() {
+        return noStore;
+    }
+
+    public boolean isNoCache() {
+        return noCache;
+    }
+
+    /**
+     * @return true for must-revalidate or proxy-revalidate
+     */
+    public boolean isMustRevalidate() {
+        return mustRevalidate;
+    }
+
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    private static long parseSeconds(String value) {
+        if (value == null || value.length() == 0) {
+            return -1;
+        }
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+        }
+
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            // Too large, the RFC says to treat it as the largest value
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static int skipUntil(String input, int pos, String characters) {
+        for (; pos < input.length(); pos++) {
+            if (characters.indexOf(input.charAt(pos)) != -1) {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    private static int skipWhitespace(String input, int pos) {
+        for (; pos < input.length(); pos++) {
+            char c = input.charAt(pos);
+            if (c != ' ' && c != '\t') {
+                break;
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,499 @@
+package com.webimageloader.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A size bounded cache with the same contract as {@link LruCache} which
+ * doesn't lock on reads.
+ * <p>
+ * Entries are kept in a {@link ConcurrentHashMap} and eviction uses the CLOCK
+ * approximation of LRU: a hit only sets a reference bit on the entry, the
+ * eviction hand then gives referenced entries a second chance before evicting
+ * them. Writes and evictions are still serialized, but they are rare compared
+ * to reads for an image cache.
+ * <p>
+ * Optionally the cache can use W-TinyLFU. New entries then start out in a
+ * small window and when they fall out of it they only replace an entry in the
+ * main part of the cache if they have been used more often recently, as
+ * estimated by a {@link FrequencySketch}. This makes the cache resistant to
+ * scans of entries which are only ever used once.
+ */
+public class ConcurrentLruCache<K, V> {
+    /** Percentage of the cache used for the admission window */
+    private static final int WINDOW_PERCENT = 1;
+    private static final int MIN_SKETCH_SIZE = 64;
+
+    private final ConcurrentHashMap<K, Node<K, V>> map;
+    private final Object lock = new Object();
+
+    // Both guarded by lock, the window is only used with admission
+    private final Clock<K, V> window = new Clock<K, V>();
+    private final Clock<K, V> main = new Clock<K, V>();
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    private volatile int size;
+    private final int maxSize;
+    private final int windowMaxSize;
+
+    /** Admission filter, null if the cache is plain LRU */
+    private volatile FrequencySketch sketch;
+
+    private final AtomicInteger putCount = new AtomicInteger();
+    private final AtomicInteger evictionCount = new AtomicInteger();
+    private final AtomicInteger rejectedCount = new AtomicInteger();
+    // Hits and misses are counted on every read, stripe them so that
+    // reading threads don't fight over the same counter
+    private final StripedCounter hitCount = new StripedCounter();
+    private final StripedCounter missCount = new StripedCounter();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     * @param frequencyAdmission true to use W-TinyLFU instead of plain LRU
+     */
+    public ConcurrentLruCache(int maxSize, boolean frequencyAdmission) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+        this.map = new ConcurrentHashMap<K, Node<K, V>>();
+
+        if (frequencyAdmission) {
+            windowMaxSize = Math.max(1, maxSize * WINDOW_PERCENT / 100);
+            sketch = new FrequencySketch(MIN_SKETCH_SIZE);
+        } else {
+            windowMaxSize = 0;
+        }
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache. If a value
+     * was returned it is marked as recently used. This never blocks.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        FrequencySketch sketch = this.sketch;
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+
+        Node<K, V> node = map.get(key);
+        if (node != null) {
+            // Avoid writing to shared memory when we don't have to
+            if (!node.referenced) {
+                node.referenced = true;
+            }
+            hitCount.increment();
+            return node.value;
+        }
+
+        missCount.increment();
+        return null;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        Node<K, V> node = new Node<K, V>(key, value, safeSizeOf(key, value));
+        Node<K, V> previous;
+        synchronized (lock) {
+            putCount.incrementAndGet();
+            previous = map.put(key, node);
+            if (previous != null) {
+                unlink(previous);
+            }
+
+            if (sketch != null) {
+                ensureSketchCapacity();
+                link(window, node);
+            } else {
+                link(main, node);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, value);
+        }
+
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *     to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        while (true) {
+            Node<K, V> victim;
+            synchronized (lock) {
+                if (size < 0 || (map.isEmpty() && size != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+
+                if (size <= maxSize || map.isEmpty()) {
+                    break;
+                }
+
+                victim = selectVictim();
+                map.remove(victim.key);
+                unlink(victim);
+                evictionCount.incrementAndGet();
+            }
+
+            entryRemoved(true, victim.key, victim.value, null);
+        }
+    }
+
+    /**
+     * Pick the next entry to evict, the cache must not be empty. Must hold lock.
+     */
+    private Node<K, V> selectVictim() {
+        // Entries falling out of the window are candidates for the main
+        // part of the cache, they have to compete with its victim
+        while (window.size > windowMaxSize) {
+            Node<K, V> candidate = window.selectVictim();
+            unlink(candidate);
+            link(main, candidate);
+
+            if (main.size <= maxSize - windowMaxSize) {
+                // There was room for it
+                continue;
+            }
+
+            Node<K, V> victim = main.selectVictim();
+            if (victim == candidate) {
+                return candidate;
+            }
+
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                return victim;
+            } else {
+                rejectedCount.incrementAndGet();
+                return candidate;
+            }
+        }
+
+        if (main.hand != null) {
+            return main.selectVictim();
+        } else {
+            return window.selectVictim();
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> previous;
+        synchronized (lock) {
+            previous = map.remove(key);
+            if (previous != null) {
+                unlink(previous);
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous.value, null);
+            return previous.value;
+        }
+
+        return null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Grow the sketch if we hold more entries than it was sized for, the
+     * collected frequencies are lost but this only happens while warming up.
+     * Must hold lock.
+     */
+    private void ensureSketchCapacity() {
+        int count = map.size();
+        if (count > sketch.capacity()) {
+            sketch = new FrequencySketch(2 * count);
+        }
+    }
+
+    /**
+     * Insert a node right behind the hand of a clock, making it the last one
+     * to be considered for eviction. Must hold lock.
+     */
+    private void link(Clock<K, V> clock, Node<K, V> node) {
+        clock.link(node);
+        size += node.size;
+    }
+
+    /**
+     * Remove a node from its clock. Must hold lock.
+     */
+    private void unlink(Node<K, V> node) {
+        node.clock.unlink(node);
+        size -= node.size;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        return size;
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns true if this cache uses W-TinyLFU admission.
+     */
+    public final boolean hasFrequencyAdmission() {
+        return windowMaxSize > 0;
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value.
+     */
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null.
+     */
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        return putCount.get();
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * Returns the number of new values that were evicted instead of an older
+     * value because they were used less often. Always 0 without admission.
+     */
+    public final int rejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from the
+     * next entry to be considered for eviction to the most recently added.
+     */
+    public final Map<K, V> snapshot() {
+        synchronized (lock) {
+            LinkedHashMap<K, V> copy = new LinkedHashMap<K, V>(map.size());
+            main.copyTo(copy);
+            window.copyTo(copy);
+
+            return copy;
+        }
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount.get();
+        int accesses = hits + missCount.get();
+        int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                maxSize, hits, accesses - hits, hitPercent);
+    }
+
+    /**
+     * A ring of entries with a hand pointing to the next one to be considered
+     * for eviction. Not thread safe.
+     */
+    private static final class Clock<K, V> {
+        Node<K, V> hand;
+        int size;
+
+        void link(Node<K, V> node) {
+            if (hand == null) {
+                node.prev = node;
+                node.next = node;
+                hand = node;
+            } else {
+                node.next = hand;
+                node.prev = hand.prev;
+                hand.prev.next = node;
+                hand.prev = node;
+            }
+
+            node.clock = this;
+            size += node.size;
+        }
+
+        void unlink(Node<K, V> node) {
+            if (node.next == node) {
+                hand = null;
+            } else {
+                if (hand == node) {
+                    hand = node.next;
+                }
+
+                node.prev.next = node.next;
+                node.next.prev = node.prev;
+            }
+
+            node.prev = null;
+            node.next = null;
+            node.clock = null;
+            size -= node.size;
+        }
+
+        /**
+         * Advance the hand past referenced entries, giving them a second
+         * chance, and return the entry it stops at. Must not be empty.
+         */
+        Node<K, V> selectVictim() {
+            while (hand.referenced) {
+                hand.referenced = false;
+                hand = hand.next;
+            }
+
+            return hand;
+        }
+
+        void copyTo(Map<K, V> map) {
+            if (hand != null) {
+                Node<K, V> node = hand;
+                do {
+                    map.put(node.key, node.value);
+                    node = node.next;
+                } while (node != hand);
+            }
+        }
+    }
+
+    /**
+     * Counter spread over a few padded slots picked by thread id
+     */
+    private static final class StripedCounter {
+        private static final int SLOTS = 8;
+        // Place slots on separate cache lines
+        private static final int STRIDE = 16;
+
+        private final AtomicIntegerArray counts = new AtomicIntegerArray(SLOTS * STRIDE);
+
+        void increment() {
+            int slot = (int) (Thread.currentThread().getId() % SLOTS);
+            counts.incrementAndGet(slot * STRIDE);
+        }
+
+        int get() {
+            int sum = 0;
+            for (int i = 0; i < SLOTS; i++) {
+                sum += counts.get(i * STRIDE);
+            }
+
+            return sum;
+        }
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        volatile boolean referenced;
+
+        // Guarded by the cache lock
+        Clock<K, V> clock;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.webimageloader.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A probabilistic estimate of how often keys have been seen recently, used
+ * as the admission filter of TinyLFU.
+ * <p>
+ * This is a count-min sketch of 4 bit counters packed sixteen to a long,
+ * preceded by a doorkeeper bloom filter so that keys only seen once never
+ * touch the counters. When enough keys have been recorded all counters are
+ * halved and the doorkeeper is cleared, this way old popularity fades out.
+ * <p>
+ * Updates use compare-and-set and never block, concurrent updates to the same
+ * counter are never lost but the estimate is only approximate by design.
+ */
+public class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int[] SEEDS = {
+            0x97cb3127, 0xc2b2ae35, 0x85ebca6b, 0x27d4eb2f
+    };
+
+    private final AtomicLongArray table;
+    private final AtomicLongArray doorkeeper;
+    private final int mask;
+    private final int sampleSize;
+
+    private final AtomicBoolean resetting = new AtomicBoolean();
+
+    // Not atomic, losing a few additions only delays the next reset slightly
+    private int additions;
+
+    /**
+     * @param expectedSize the number of keys expected to be tracked
+     */
+    public FrequencySketch(int expectedSize) {
+        int width = ceilingPowerOfTwo(Math.max(64, expectedSize));
+
+        table = new AtomicLongArray(width / 16);
+        doorkeeper = new AtomicLongArray(width / 64);
+        mask = width - 1;
+        sampleSize = 10 * width;
+    }
+
+    /**
+     * Get the number of keys this sketch was sized for
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Get the estimated number of times this key has been recorded, at most 16
+     */
+    public int frequency(Object key) {
+        int hash = spread(key.hashCode());
+
+        int frequency = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            int index = indexOf(hash, i);
+            long word = table.get(index >>> 4);
+            int count = (int) ((word >>> offsetOf(index)) & 0xfL);
+
+            frequency = Math.min(frequency, count);
+        }
+
+        if (mightContain(doorkeeper, hash)) {
+            frequency++;
+        }
+
+        return frequency;
+    }
+
+    /**
+     * Record one occurrence of this key
+     */
+    public void increment(Object key) {
+        int hash = spread(key.hashCode());
+
+        // The first occurrence only goes to the doorkeeper
+        if (!put(doorkeeper, hash)) {
+            for (int i = 0; i < DEPTH; i++) {
+                incrementAt(indexOf(hash, i));
+            }
+        }
+
+        if (++additions >= sampleSize) {
+            reset();
+        }
+    }
+
+    private void incrementAt(int index) {
+        int word = index >>> 4;
+        int offset = offsetOf(index);
+        long mask = 0xfL << offset;
+
+        while (true) {
+            long current = table.get(word);
+            if ((current & mask) == mask) {
+                // Already saturated
+                return;
+            }
+
+            if (table.compareAndSet(word, current, current + (1L << offset))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Age all counters by halving them
+     */
+    private void reset() {
+        if (!resetting.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            for (int i = 0; i < table.length(); i++) {
+                while (true) {
+                    long current = table.get(i);
+                    if (table.compareAndSet(i, current, (current >>> 1) & RESET_MASK)) {
+                        break;
+                    }
+                }
+            }
+
+            for (int i = 0; i < doorkeeper.length(); i++) {
+                doorkeeper.set(i, 0);
+            }
+
+            additions = additions / 2;
+        } finally {
+            resetting.set(false);
+        }
+    }
+
+    /**
+     * Set the bits for this hash in a bloom filter
+     *
+     * @return true if all bits were already set
+     */
+    private boolean put(AtomicLongArray bits, int hash) {
+        boolean present = true;
+        for (int i = 0; i < 2; i++) {
+            int index = indexOf(hash, i);
+            int word = index >>> 6;
+            long bit = 1L << (index & 63);
+
+            while (true) {
+                long current = bits.get(word);
+                if ((current & bit) != 0) {
+                    break;
+                }
+
+                if (bits.compareAndSet(word, current, current | bit)) {
+                    present = false;
+                    break;
+                }
+            }
+        }
+
+        return present;
+    }
+
+    private boolean mightContain(AtomicLongArray bits, int hash) {
+        for (int i = 0; i < 2; i++) {
+            int index = indexOf(hash, i);
+            if ((bits.get(index >>> 6) & (1L << (index & 63))) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private int indexOf(int hash, int i) {
+        int h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 16;
+        return h & mask;
+    }
+
+    private static int offsetOf(int index) {
+        return (index & 15) << 2;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        h ^= (h >>> 11);
+        h *= 0xac4c1b51;
+        h ^= (h >>> 15);
+        return h;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(x - 1));
+    }
+}
@@ -1,37 +1,102 @@
 package com.webimageloader.util;
 
+import java.io.UnsupportedEncodingException;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
+/**
+ * Hashes strings into names suitable for files. Safe to use from several
+ * threads, each thread gets a digester of its own.
+ */
 public class Hasher {
     private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
 
-    private MessageDigest digester;
+    private static final int DIGEST_LENGTH = 20;
+    private static final int BUFFER_SIZE = 512;
 
-    public Hasher() {
-        try {
-            digester = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            digester = null;
+    private static class State {
+        final MessageDigest digester;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final byte[] digest = new byte[DIGEST_LENGTH];
+        final char[] hex = new char[DIGEST_LENGTH * 2];
+
+        State(MessageDigest digester) {
+            this.digester = digester;
         }
     }
 
+    private final ThreadLocal<State> state = new ThreadLocal<State>() {
+        @Override
+        protected State initialValue() {
+            try {
+                return new State(MessageDigest.getInstance("SHA-1"));
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     /**
      * A hashing method that changes a string (like a URL) into a hash suitable
      * for using as a disk filename.
      */
     public String hash(String key) {
-        if (digester != null) {
-            byte[] bytes = digester.digest(key.getBytes());
-            return bytesToHexString(bytes);
-        } else {
+        State s = state.get();
+        if (s == null) {
             return Integer.toHexString(key.hashCode());
         }
+
+        MessageDigest digester = s.digester;
+        if (!updateAscii(digester, key, s.buffer)) {
+            digester.update(getBytes(key));
+        }
+
+        try {
+            digester.digest(s.digest, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new AssertionError(e);
+        }
+
+        return bytesToHexString(s.digest, s.hex);
+    }
+
+    /**
+     * Feed the string to the digester without encoding it to a new array,
+     * which works as long as it's ASCII, like most URLs
+     *
+     * @return false if the string wasn't ASCII, nothing is fed then
+     */
+    private static boolean updateAscii(MessageDigest digester, String key, byte[] buffer) {
+        int length = key.length();
+        for (int i = 0; i < length; i++) {
+            if (key.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+
+        for (int start = 0; start < length; start += buffer.length) {
+            int end = Math.min(length, start + buffer.length);
+            for (int i = start; i < end; i++) {
+                buffer[i - start] = (byte) key.charAt(i);
+            }
+
+            digester.update(buffer, 0, end - start);
+        }
+
+        return true;
+    }
+
+    private static byte[] getBytes(String key) {
+        try {
+            return key.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
     }
 
-    private static String bytesToHexString(byte[] bytes) {
+    private static String bytesToHexString(byte[] bytes, char[] buf) {
         // http://stackoverflow.com/a/5446120/253583
-        char[] buf = new char[bytes.length * 2];
         int c = 0;
         for (byte b : bytes) {
             buf[c++] = HEX_CHARS[(b & 0xF0) >> 4];
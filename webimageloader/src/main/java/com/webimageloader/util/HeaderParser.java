@@ -1,66 +1,36 @@
 package com.webimageloader.util;
 
 import java.net.URLConnection;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
 
 public class HeaderParser {
-    private static final String MAX_AGE = "max-age";
+    private static final ThreadLocal<DateFormat> HTTP_DATE = new ThreadLocal<DateFormat>() {
+        @Override
+        protected DateFormat initialValue() {
+            DateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("GMT"));
 
-    public static long getMaxAge(URLConnection urlConnection) {
-        String cacheControl = urlConnection.getHeaderField("Cache-Control");
-        if (cacheControl == null) {
-            return -1;
-        }
-
-        int pos = cacheControl.indexOf(MAX_AGE);
-        if (pos == -1) {
-            return -1;
+            return format;
         }
+    };
 
-        pos += MAX_AGE.length();
-        pos = skipWhitespace(cacheControl, pos);
-
-        // Consume '='
-        pos++;
-
-        pos = skipWhitespace(cacheControl, pos);
-
-        int start = pos;
-        pos = skipUntil(cacheControl, pos, ",");
-        String value = cacheControl.substring(start, pos).trim();
-
-        try {
-            return Long.parseLong(value);
-        } catch (NumberFormatException e) {
-            return -1;
-        }
+    public static long getMaxAge(URLConnection urlConnection) {
+        return getMaxAge(urlConnection.getHeaderField("Cache-Control"));
     }
 
-    /**
-     * Returns the next index in {@code input} at or after {@code pos} that
-     * contains a character from {@code characters}. Returns the input length if
-     * none of the requested characters can be found.
-     */
-    private static int skipUntil(String input, int pos, String characters) {
-        for (; pos < input.length(); pos++) {
-            if (characters.indexOf(input.charAt(pos)) != -1) {
-                break;
-            }
-        }
-        return pos;
+    public static long getMaxAge(String cacheControl) {
+        return CacheControl.parse(cacheControl).getMaxAge();
     }
 
     /**
-     * Returns the next non-whitespace character in {@code input} that is white
-     * space. Result is undefined if input contains newline characters.
+     * Format a date for use in a header such as If-Modified-Since
      */
-    private static int skipWhitespace(String input, int pos) {
-        for (; pos < input.length(); pos++) {
-            char c = input.charAt(pos);
-            if (c != ' ' && c != '\t') {
-                break;
-            }
-        }
-        return pos;
+    public static String formatDate(long date) {
+        return HTTP_DATE.get().format(new Date(date));
     }
 
     private HeaderParser() {}
@@ -0,0 +1,297 @@
+package com.webimageloader.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.graphics.BitmapFactory;
+
+/**
+ * Reads the dimensions of JPEG, PNG, WebP and GIF images from their headers
+ * without decoding anything, only the first few bytes of the stream are
+ * consumed. This is used instead of {@link BitmapFactory.Options#inJustDecodeBounds}
+ * when the same stream has to be decoded afterwards, as {@link BitmapFactory}
+ * may read far into the image and mess with the stream's mark.
+ */
+public class ImageHeaderParser {
+    private static final int[] PNG_SIGNATURE = { 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    private static final int JPEG_SOI = 0xd8;
+    private static final int JPEG_SOS = 0xda;
+    private static final int JPEG_EOI = 0xd9;
+    private static final int JPEG_TEM = 0x01;
+
+    private InputStream is;
+    private int remaining;
+
+    /**
+     * Read the dimensions of the image in this stream into
+     * {@link BitmapFactory.Options#outWidth}, {@link BitmapFactory.Options#outHeight}
+     * and {@link BitmapFactory.Options#outMimeType}.
+     *
+     * @param is the stream, positioned at the start of the image
+     * @param options the options to write the result to
+     * @param maxBytes give up after reading this many bytes
+     * @return true if the dimensions were found, false if the format is not
+     *         supported or the header was not within {@code maxBytes}
+     * @throws IOException if reading from the stream failed
+     */
+    public static boolean readSize(InputStream is, BitmapFactory.Options options, int maxBytes) throws IOException {
+        return new ImageHeaderParser(is, maxBytes).parse(options);
+    }
+
+    private ImageHeaderParser(InputStream is, int maxBytes) {
+        this.is = is;
+        this.remaining = maxBytes;
+    }
+
+    private boolean parse(BitmapFactory.Options options) throws IOException {
+        int first = read();
+        int second = read();
+        if (first < 0 || second < 0) {
+            return false;
+        }
+
+        if (first == 0xff && second == JPEG_SOI) {
+            return parseJpeg(options);
+        } else if (first == PNG_SIGNATURE[0] && second == PNG_SIGNATURE[1]) {
+            return parsePng(options);
+        } else if (first == 'G' && second == 'I') {
+            return parseGif(options);
+        } else if (first == 'R' && second == 'I') {
+            return parseWebp(options);
+        }
+
+        return false;
+    }
+
+    private boolean parseJpeg(BitmapFactory.Options options) throws IOException {
+        while (true) {
+            if (read() != 0xff) {
+                return false;
+            }
+
+            // Markers may be padded with any number of 0xff
+            int marker;
+            do {
+                marker = read();
+            } while (marker == 0xff);
+
+            if (marker < 0 || marker == JPEG_SOS || marker == JPEG_EOI) {
+                // Image data started without a frame header
+                return false;
+            }
+
+            if (marker == JPEG_TEM || (marker >= 0xd0 && marker <= 0xd7)) {
+                // Standalone markers without a length
+                continue;
+            }
+
+            int length = readShort();
+            if (length < 2) {
+                return false;
+            }
+
+            if (isStartOfFrame(marker)) {
+                // Skip sample precision
+                if (read() < 0) {
+                    return false;
+                }
+
+                int height = readShort();
+                int width = readShort();
+
+                return setSize(options, width, height, "image/jpeg");
+            }
+
+            if (!skip(length - 2)) {
+                return false;
+            }
+        }
+    }
+
+    private static boolean isStartOfFrame(int marker) {
+        // SOF0 to SOF15 except DHT (c4), JPG (c8) and DAC (cc)
+        return marker >= 0xc0 && marker <= 0xcf && marker != 0xc4 && marker != 0xc8 && marker != 0xcc;
+    }
+
+    private boolean parsePng(BitmapFactory.Options options) throws IOException {
+        for (int i = 2; i < PNG_SIGNATURE.length; i++) {
+            if (read() != PNG_SIGNATURE[i]) {
+                return false;
+            }
+        }
+
+        // The first chunk is always IHDR
+        if (!skip(4) || readInt() != fourCC("IHDR")) {
+            return false;
+        }
+
+        int width = readInt();
+        int height = readInt();
+
+        return setSize(options, width, height, "image/png");
+    }
+
+    private boolean parseGif(BitmapFactory.Options options) throws IOException {
+        // "GIF87a" or "GIF89a"
+        if (read() != 'F' || read() != '8' || !skip(2)) {
+            return false;
+        }
+
+        int width = readShortLittleEndian();
+        int height = readShortLittleEndian();
+
+        return setSize(options, width, height, "image/gif");
+    }
+
+    private boolean parseWebp(BitmapFactory.Options options) throws IOException {
+        // "RIFF", file size, "WEBP"
+        if (read() != 'F' || read() != 'F' || !skip(4) || readInt() != fourCC("WEBP")) {
+            return false;
+        }
+
+        int chunk = readInt();
+        // Skip chunk size
+        if (!skip(4)) {
+            return false;
+        }
+
+        int width;
+        int height;
+        if (chunk == fourCC("VP8 ")) {
+            // Frame tag followed by the start code
+            if (!skip(3) || read() != 0x9d || read() != 0x01 || read() != 0x2a) {
+                return false;
+            }
+
+            width = readShortLittleEndian();
+            height = readShortLittleEndian();
+            if (width < 0 || height < 0) {
+                return false;
+            }
+
+            // The top two bits are the scaling factor
+            width &= 0x3fff;
+            height &= 0x3fff;
+        } else if (chunk == fourCC("VP8L")) {
+            if (read() != 0x2f) {
+                return false;
+            }
+
+            int b0 = read();
+            int b1 = read();
+            int b2 = read();
+            int b3 = read();
+            if (b3 < 0) {
+                return false;
+            }
+
+            width = 1 + (b0 | ((b1 & 0x3f) << 8));
+            height = 1 + ((b1 >> 6) | (b2 << 2) | ((b3 & 0x0f) << 10));
+        } else if (chunk == fourCC("VP8X")) {
+            // Skip flags
+            if (!skip(4)) {
+                return false;
+            }
+
+            width = 1 + readTriple();
+            height = 1 + readTriple();
+        } else {
+            return false;
+        }
+
+        return setSize(options, width, height, "image/webp");
+    }
+
+    private static boolean setSize(BitmapFactory.Options options, int width, int height, String mimeType) {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        options.outWidth = width;
+        options.outHeight = height;
+        options.outMimeType = mimeType;
+
+        return true;
+    }
+
+    private static int fourCC(String s) {
+        return (s.charAt(0) << 24) | (s.charAt(1) << 16) | (s.charAt(2) << 8) | s.charAt(3);
+    }
+
+    private int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+
+        remaining--;
+        return is.read();
+    }
+
+    private boolean skip(int count) throws IOException {
+        if (count > remaining) {
+            return false;
+        }
+
+        while (count > 0) {
+            long skipped = is.skip(count);
+            if (skipped <= 0) {
+                // skip() may give up early, make sure we are not at the end
+                if (is.read() < 0) {
+                    return false;
+                }
+
+                skipped = 1;
+            }
+
+            count -= skipped;
+            remaining -= skipped;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return a big endian short or a negative number at the end of the stream
+     */
+    private int readShort() throws IOException {
+        int high = read();
+        int low = read();
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+
+        return (high << 8) | low;
+    }
+
+    private int readShortLittleEndian() throws IOException {
+        int low = read();
+        int high = read();
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+
+        return (high << 8) | low;
+    }
+
+    private int readTriple() throws IOException {
+        int b0 = read();
+        int b1 = read();
+        int b2 = read();
+        if (b0 < 0 || b1 < 0 || b2 < 0) {
+            return -1;
+        }
+
+        return b0 | (b1 << 8) | (b2 << 16);
+    }
+
+    private int readInt() throws IOException {
+        int high = readShort();
+        int low = readShort();
+        if (high < 0 || low < 0) {
+            return -1;
+        }
+
+        return (high << 16) | low;
+    }
+}
@@ -0,0 +1,32 @@
+package com.webimageloader.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An {@link InputSupplier} which also carries the {@link BitmapPool} to use
+ * when decoding it, see {@link BitmapUtils#decodeStream(InputSupplier)}
+ */
+public class PooledInputSupplier implements InputSupplier {
+    private InputSupplier input;
+    private BitmapPool pool;
+
+    public PooledInputSupplier(InputSupplier input, BitmapPool pool) {
+        this.input = input;
+        this.pool = pool;
+    }
+
+    public BitmapPool getBitmapPool() {
+        return pool;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return input.getLength();
+    }
+
+    @Override
+    public InputStream getInput() throws IOException {
+        return input.getInput();
+    }
+}
@@ -0,0 +1,169 @@
+package com.webimageloader.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Stores bitmaps as uncompressed pixels so that reading them back is little
+ * more than a copy, instead of a full JPEG or PNG decode. Meant for small
+ * images, the files are several times larger than compressed ones.
+ * <p>
+ * The format is a 16 byte header followed by the pixels as returned by
+ * {@link Bitmap#copyPixelsToBuffer(java.nio.Buffer)}. The header starts with
+ * a magic number which can't be mistaken for the start of any image format.
+ */
+public class RawBitmap {
+    private static final int MAGIC = 0x57494c52; // "WILR"
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 16;
+
+    private static final Bitmap.Config[] CONFIGS = {
+        null,
+        Bitmap.Config.ALPHA_8,
+        Bitmap.Config.RGB_565,
+        Bitmap.Config.ARGB_4444,
+        Bitmap.Config.ARGB_8888
+    };
+
+    private RawBitmap() {}
+
+    /**
+     * Get the size a bitmap would have when stored
+     *
+     * @param b the bitmap
+     * @return the size in bytes, -1 if the bitmap can't be stored
+     */
+    public static int getSize(Bitmap b) {
+        if (getConfigId(b.getConfig()) == 0) {
+            return -1;
+        }
+
+        return HEADER_SIZE + b.getRowBytes() * b.getHeight();
+    }
+
+    /**
+     * Write a bitmap, which must be storable according to {@link #getSize(Bitmap)}
+     *
+     * @param b the bitmap
+     * @param os stream to write to, not closed
+     * @throws IOException if writing failed
+     */
+    public static void write(Bitmap b, OutputStream os) throws IOException {
+        int configId = getConfigId(b.getConfig());
+        if (configId == 0) {
+            throw new IllegalArgumentException("Unsupported config: " + b.getConfig());
+        }
+
+        ByteBuffer pixels = ByteBuffer.allocate(b.getRowBytes() * b.getHeight());
+        b.copyPixelsToBuffer(pixels);
+
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(configId);
+        out.writeShort(0);
+        out.writeInt(b.getWidth());
+        out.writeInt(b.getHeight());
+        out.write(pixels.array(), 0, pixels.capacity());
+        out.flush();
+    }
+
+    /**
+     * Check if a buffer holds a stored bitmap, without changing its position
+     *
+     * @param buffer the buffer, usually a memory mapped file
+     * @return true if it's a stored bitmap
+     */
+    public static boolean isRawBitmap(ByteBuffer buffer) {
+        return buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Check if a stream starts with a stored bitmap, without reading past
+     * the magic number
+     *
+     * @param is the stream, must support mark and is left where it was
+     * @return true if it's a stored bitmap
+     * @throws IOException if reading failed
+     */
+    public static boolean isRawBitmap(InputStream is) throws IOException {
+        is.mark(4);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = is.read();
+                if (b == -1) {
+                    return false;
+                }
+
+                magic = (magic << 8) | b;
+            }
+
+            return magic == MAGIC;
+        } finally {
+            is.reset();
+        }
+    }
+
+    /**
+     * Read a stored bitmap
+     *
+     * @param buffer the buffer, usually a memory mapped file
+     * @return the bitmap
+     * @throws IOException if the buffer is not a valid stored bitmap
+     */
+    public static Bitmap read(ByteBuffer buffer) throws IOException {
+        buffer = buffer.slice();
+        if (buffer.remaining() < HEADER_SIZE) {
+            throw new IOException("Truncated bitmap");
+        }
+
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a raw bitmap");
+        }
+
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version: " + version);
+        }
+
+        int configId = buffer.get();
+        buffer.getShort();
+        int width = buffer.getInt();
+        int height = buffer.getInt();
+
+        if (configId <= 0 || configId >= CONFIGS.length || width <= 0 || height <= 0) {
+            throw new IOException("Invalid header");
+        }
+
+        Bitmap b = Bitmap.createBitmap(width, height, CONFIGS[configId]);
+        if (buffer.remaining() != b.getRowBytes() * height) {
+            b.recycle();
+            throw new IOException("Truncated bitmap");
+        }
+
+        b.copyPixelsFromBuffer(buffer.slice());
+
+        return b;
+    }
+
+    private static int getConfigId(Bitmap.Config config) {
+        if (config == null) {
+            return 0;
+        }
+
+        for (int i = 1; i < CONFIGS.length; i++) {
+            if (CONFIGS[i] == config) {
+                return i;
+            }
+        }
+
+        return 0;
+    }
+}